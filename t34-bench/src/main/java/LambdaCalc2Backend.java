@@ -0,0 +1,73 @@
+import t34.bench.ChurchBackend;
+
+/**
+ * {@link ChurchBackend} over {@link LambdaCalc2} (invokeinterface flavor).
+ * Has to be in the default package as LambdaCalc2 atoms are package-private.
+ */
+public final class LambdaCalc2Backend implements ChurchBackend {
+
+  //  (def add (% m (% n (% s (% z ((m s) ((n s) z)))))))
+  static final class Add extends LambdaCalc2.AbstractAtom {
+    @Override
+    public LambdaCalc2.Atom fn(final LambdaCalc2.Atom m) {
+      return new LambdaCalc2.AbstractAtom() {
+        @Override
+        public LambdaCalc2.Atom fn(final LambdaCalc2.Atom n) {
+          return new LambdaCalc2.AbstractAtom() {
+            @Override
+            public LambdaCalc2.Atom fn(final LambdaCalc2.Atom s) {
+              return new LambdaCalc2.AbstractAtom() {
+                @Override
+                public LambdaCalc2.Atom fn(LambdaCalc2.Atom z) {
+                  return m.fn(s).fn(n.fn(s).fn(z));
+                }
+              };
+            }
+          };
+        }
+      };
+    }
+  }
+
+  //  (def mul (% m (% n (% s (m (n s))))))
+  static final class Mul extends LambdaCalc2.AbstractAtom {
+    @Override
+    public LambdaCalc2.Atom fn(final LambdaCalc2.Atom m) {
+      return new LambdaCalc2.AbstractAtom() {
+        @Override
+        public LambdaCalc2.Atom fn(final LambdaCalc2.Atom n) {
+          return new LambdaCalc2.AbstractAtom() {
+            @Override
+            public LambdaCalc2.Atom fn(LambdaCalc2.Atom s) {
+              return m.fn(n.fn(s));
+            }
+          };
+        }
+      };
+    }
+  }
+
+  static final Add ADD = new Add();
+  static final Mul MUL = new Mul();
+
+  @Override
+  public Object numeral(int n) {
+    LambdaCalc2.Atom result = LambdaCalc2.ZERO;
+    for (int i = 0; i < n; ++i) {
+      result = LambdaCalc2.SUCC.fn(result);
+    }
+    return result;
+  }
+
+  @Override
+  public Object add(Object m, Object n) { return ADD.fn((LambdaCalc2.Atom) m).fn((LambdaCalc2.Atom) n); }
+
+  @Override
+  public Object mul(Object m, Object n) { return MUL.fn((LambdaCalc2.Atom) m).fn((LambdaCalc2.Atom) n); }
+
+  @Override
+  public Object pow(Object b, Object e) { return ((LambdaCalc2.Atom) e).fn((LambdaCalc2.Atom) b); }
+
+  @Override
+  public int toInt(Object numeral) { return LambdaCalc2.numcall((LambdaCalc2.Atom) numeral).intValue(); }
+}
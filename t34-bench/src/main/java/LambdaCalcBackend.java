@@ -0,0 +1,73 @@
+import t34.bench.ChurchBackend;
+
+/**
+ * {@link ChurchBackend} over {@link LambdaCalc} (invokevirtual flavor).
+ * Has to be in the default package as LambdaCalc atoms are package-private.
+ */
+public final class LambdaCalcBackend implements ChurchBackend {
+
+  //  (def add (% m (% n (% s (% z ((m s) ((n s) z)))))))
+  static final class Add extends LambdaCalc.Atom {
+    @Override
+    LambdaCalc.Atom fn(final LambdaCalc.Atom m) {
+      return new LambdaCalc.Atom() {
+        @Override
+        LambdaCalc.Atom fn(final LambdaCalc.Atom n) {
+          return new LambdaCalc.Atom() {
+            @Override
+            LambdaCalc.Atom fn(final LambdaCalc.Atom s) {
+              return new LambdaCalc.Atom() {
+                @Override
+                LambdaCalc.Atom fn(LambdaCalc.Atom z) {
+                  return m.fn(s).fn(n.fn(s).fn(z));
+                }
+              };
+            }
+          };
+        }
+      };
+    }
+  }
+
+  //  (def mul (% m (% n (% s (m (n s))))))
+  static final class Mul extends LambdaCalc.Atom {
+    @Override
+    LambdaCalc.Atom fn(final LambdaCalc.Atom m) {
+      return new LambdaCalc.Atom() {
+        @Override
+        LambdaCalc.Atom fn(final LambdaCalc.Atom n) {
+          return new LambdaCalc.Atom() {
+            @Override
+            LambdaCalc.Atom fn(LambdaCalc.Atom s) {
+              return m.fn(n.fn(s));
+            }
+          };
+        }
+      };
+    }
+  }
+
+  static final Add ADD = new Add();
+  static final Mul MUL = new Mul();
+
+  @Override
+  public Object numeral(int n) {
+    LambdaCalc.Atom result = LambdaCalc.ZERO;
+    for (int i = 0; i < n; ++i) {
+      result = LambdaCalc.SUCC.fn(result);
+    }
+    return result;
+  }
+
+  @Override
+  public Object add(Object m, Object n) { return ADD.fn((LambdaCalc.Atom) m).fn((LambdaCalc.Atom) n); }
+
+  @Override
+  public Object mul(Object m, Object n) { return MUL.fn((LambdaCalc.Atom) m).fn((LambdaCalc.Atom) n); }
+
+  @Override
+  public Object pow(Object b, Object e) { return ((LambdaCalc.Atom) e).fn((LambdaCalc.Atom) b); }
+
+  @Override
+  public int toInt(Object numeral) { return LambdaCalc.numcall((LambdaCalc.Atom) numeral).intValue(); }
+}
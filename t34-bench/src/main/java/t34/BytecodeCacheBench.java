@@ -0,0 +1,96 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup of a prelude with every lambda compiled: {@code none} generates the classes, {@code cold} generates and
+ * writes them to an empty {@link BytecodeCache}, {@code warm} loads them from the cache written by the previous run.
+ * Every invocation starts with no classes in memory, as a new process would. The writes still pending at the end
+ * of an invocation are flushed outside of the measurement, as they would be on exit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BytecodeCacheBench {
+  private static final String NONE = "none";
+  private static final String COLD = "cold";
+  private static final String WARM = "warm";
+
+  @Param({NONE, COLD, WARM})
+  public String cache;
+
+  @Param({"3000"})
+  public int size;
+
+  private Path directory;
+  private Evaluator evaluator;
+  private List<Define> prelude;
+
+  @Setup(Level.Trial)
+  public void createDirectory() throws IOException {
+    directory = Files.createTempDirectory("t34-bytecode-cache");
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() throws IOException {
+    if (!WARM.equals(cache)) { clear(); }
+    Evaluator.setBytecodeCache(NONE.equals(cache) ? null : new BytecodeCache(directory));
+    Evaluator.CLASS_CACHE.clear();
+    Main.ENV = new Main.Env();
+    evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0);
+    prelude = new ArrayList<>(size);
+    prelude.add((Define) EvaluatorBackend.parse("(define f0 (lambda (x) x))", evaluator.scope));
+    for (int i = 1; i < size; ++i) {
+      final String source = (i % 2 == 1) ?
+          "(define f" + i + " (lambda (x) (f" + (i - 1) + " (inc x))))" :
+          "(define f" + i + " ((lambda (g) (lambda (x) (g x))) f" + (i - 1) + "))";
+      prelude.add((Define) EvaluatorBackend.parse(source, evaluator.scope));
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void flush() { BytecodeCache.flush(); }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Evaluator.setBytecodeCache(null);
+    clear();
+    Files.delete(directory);
+  }
+
+  @Benchmark
+  public Object startup() throws Exception {
+    evaluator.defineAll(prelude);
+    return evaluator.eval(EvaluatorBackend.parse("(f" + (size - 1) + " 0)", evaluator.scope));
+  }
+
+  private void clear() throws IOException {
+    try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (final Path file : files) { Files.delete(file); }
+    }
+  }
+}
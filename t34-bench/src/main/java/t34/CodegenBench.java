@@ -0,0 +1,70 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class generation cost: {@code Evaluator.genLambdaClass} (through lambda evaluation) and
+ * binding of a global symbol by define.
+ * Every invocation defines new classes, so it is measured in fixed size batches to keep metaspace bounded.
+ * With {@code cached=false} the lambda class cache is dropped before each invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = 200)
+@Measurement(iterations = 10, batchSize = 200)
+@Fork(1)
+public class CodegenBench {
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom identity;
+  private PrimitiveAtom succ;
+  private PrimitiveAtom define;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    Main.ENV = new Main.Env();
+    evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0); // generate classes on every eval instead of interpreting
+    identity = EvaluatorBackend.parse("(lambda (x) x)", evaluator.scope);
+    succ = EvaluatorBackend.parse("(lambda (n) (lambda (s) (lambda (z) (s ((n s) z)))))", evaluator.scope);
+    define = EvaluatorBackend.parse("(define one 1)", evaluator.scope);
+  }
+
+  @Benchmark
+  public Object genLambdaClass() throws Exception {
+    dropCache();
+    return evaluator.eval(identity);
+  }
+
+  @Benchmark
+  public Object genNestedLambdaClasses() throws Exception {
+    dropCache();
+    return evaluator.eval(succ);
+  }
+
+  @Benchmark
+  public Object define() throws Exception { return evaluator.eval(define); }
+
+  private void dropCache() {
+    if (!cached) {
+      Evaluator.CLASS_CACHE.clear();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Top level evaluation of already parsed expressions, the way REPL runs them: global lookups included,
+ * parsing excluded. {@code compileThreshold=0} compiles every lambda right away, otherwise lambdas are interpreted
+ * until they get hot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvalBench {
+
+  @Param({"0", "100"})
+  public int compileThreshold;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom incCall;
+  private PrimitiveAtom pow;
+  private PrimitiveAtom nested;
+  private PrimitiveAtom select;
+
+  @Setup
+  public void setUp() {
+    final EvaluatorBackend backend = new EvaluatorBackend();
+    backend.eval("(define n2 ((add (succ zero)) (succ zero)))");
+    backend.eval("(define n5 ((add n2) (succ n2)))");
+    backend.eval("(define compose (lambda (a) (lambda (b) (lambda (c) (lambda (d) (a (b (c d))))))))");
+    backend.eval("(define first (lambda (a) (lambda (b) (lambda (c) (lambda (d) (lambda (e) (lambda (f) a)))))))");
+    evaluator = backend.getEvaluator();
+    evaluator.setCompileThreshold(compileThreshold);
+    incCall = EvaluatorBackend.parse("(inc (inc (inc 0)))", evaluator.scope);
+    pow = EvaluatorBackend.parse("((((pow n5) n5) inc) 0)", evaluator.scope);
+    nested = EvaluatorBackend.parse("((((compose inc) dec) inc) 0)", evaluator.scope);
+    select = EvaluatorBackend.parse("((((((first 1) 2) 3) 4) 5) 6)", evaluator.scope);
+  }
+
+  @Benchmark
+  public Object incCall() throws Exception { return evaluator.eval(incCall); }
+
+  @Benchmark
+  public Object pow() throws Exception { return evaluator.eval(pow); }
+
+  @Benchmark
+  public Object nestedLambdas() throws Exception { return evaluator.eval(nested); }
+
+  @Benchmark
+  public Object selectFirst() throws Exception { return evaluator.eval(select); }
+}
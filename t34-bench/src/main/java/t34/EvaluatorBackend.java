@@ -0,0 +1,80 @@
+package t34;
+
+import t34.bench.ChurchBackend;
+
+/**
+ * {@link ChurchBackend} over t34 {@link Evaluator}, numerals and operations are defined by {@link #PRELUDE}.
+ */
+public final class EvaluatorBackend implements ChurchBackend {
+  public static final String[] PRELUDE = {
+      "(define zero (lambda (s) (lambda (z) z)))",
+      "(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))",
+      "(define add (lambda (m) (lambda (n) (lambda (s) (lambda (z) ((m s) ((n s) z)))))))",
+      "(define mul (lambda (m) (lambda (n) (lambda (s) (m (n s))))))",
+      "(define pow (lambda (b) (lambda (e) (e b))))"
+  };
+
+  private final Evaluator evaluator = new Evaluator();
+  private final Main.Atom zero;
+  private final Main.Atom succ;
+  private final Main.Atom add;
+  private final Main.Atom mul;
+  private final Main.Atom pow;
+
+  public EvaluatorBackend() {
+    this(true);
+  }
+
+  public EvaluatorBackend(boolean churchNumerals) {
+    this(churchNumerals, false);
+  }
+
+  public EvaluatorBackend(boolean churchNumerals, boolean graphReduction) {
+    Main.ENV = new Main.Env(); // start from a clean environment
+    evaluator.setChurchNumerals(churchNumerals);
+    evaluator.setGraphReduction(graphReduction);
+    for (final String define : PRELUDE) {
+      eval(define);
+    }
+    zero = eval("zero");
+    succ = eval("succ");
+    add = eval("add");
+    mul = eval("mul");
+    pow = eval("pow");
+  }
+
+  public Evaluator getEvaluator() { return evaluator; }
+
+  public Main.Atom eval(String source) {
+    try {
+      return evaluator.eval(parse(source, evaluator.scope));
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to eval " + source, e);
+    }
+  }
+
+  public static PrimitiveAtom parse(String source, LexicalScope scope) {
+    return new AstNodeReader(new Parser().init(source.toCharArray(), 0, source.length())).read(scope);
+  }
+
+  @Override
+  public Object numeral(int n) {
+    Main.Atom result = zero;
+    for (int i = 0; i < n; ++i) {
+      result = succ.fn(result);
+    }
+    return result;
+  }
+
+  @Override
+  public Object add(Object m, Object n) { return add.fn((Main.Atom) m).fn((Main.Atom) n); }
+
+  @Override
+  public Object mul(Object m, Object n) { return mul.fn((Main.Atom) m).fn((Main.Atom) n); }
+
+  @Override
+  public Object pow(Object b, Object e) { return pow.fn((Main.Atom) b).fn((Main.Atom) e); }
+
+  @Override
+  public int toInt(Object numeral) { return ((Main.Atom) numeral).fn(Inc.INSTANCE).fn(Int.valueOf(0)).toInt(); }
+}
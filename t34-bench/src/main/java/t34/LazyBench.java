@@ -0,0 +1,65 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Call-by-need against call-by-value on closure numerals, every lambda compiled.
+ * {@code unusedArgument} discards an expensive argument, {@code pow} uses every argument it computes,
+ * {@code sharedArgument} uses an expensive argument twice.
+ * Forcing a numeral built lazily goes through a chain of thunks as long as the numeral, hence the larger stack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss64m")
+public class LazyBench {
+
+  @Param({"false", "true"})
+  public boolean lazy;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom unused;
+  private PrimitiveAtom pow;
+  private PrimitiveAtom shared;
+
+  @Setup
+  public void setUp() {
+    final EvaluatorBackend backend = new EvaluatorBackend(false);
+    evaluator = backend.getEvaluator();
+    evaluator.setCompileThreshold(0);
+    evaluator.setLazy(lazy);
+    for (final String define : EvaluatorBackend.PRELUDE) { // redefine in the selected mode
+      backend.eval(define);
+    }
+    backend.eval("(define n2 (succ (succ zero)))");
+    backend.eval("(define n5 ((add n2) (succ n2)))");
+    backend.eval("(define k (lambda (a) (lambda (b) a)))");
+    backend.eval("(define double (lambda (x) ((add x) x)))");
+    unused = EvaluatorBackend.parse("((k 0) ((((pow n5) n5) inc) 0))", evaluator.scope);
+    pow = EvaluatorBackend.parse("((((pow n5) n5) inc) 0)", evaluator.scope);
+    shared = EvaluatorBackend.parse("(((double ((pow n5) n5)) inc) 0)", evaluator.scope);
+  }
+
+  @Benchmark
+  public Object unusedArgument() throws Exception { return evaluator.eval(unused); }
+
+  @Benchmark
+  public Object pow() throws Exception { return evaluator.eval(pow); }
+
+  @Benchmark
+  public Object sharedArgument() throws Exception { return evaluator.eval(shared); }
+}
@@ -0,0 +1,54 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse cost of {@code depth} nested lambdas, every body refers to the outermost variable, the enclosing one
+ * and a global. Time per op should grow linearly with the depth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestingBench {
+
+  @Param({"10", "100", "1000", "10000"})
+  public int depth;
+
+  private final Parser parser = new Parser();
+  private final AstNodeReader reader = new AstNodeReader(parser);
+  private final GlobalLexicalScope scope = new GlobalLexicalScope();
+  private char[] input;
+
+  @Setup
+  public void setUp() {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < depth; ++i) {
+      builder.append("(lambda (v").append(i).append(") ");
+      if (i > 0) { builder.append("((v0 v").append(i - 1).append(") "); }
+    }
+    builder.append("inc");
+    for (int i = 0; i < depth; ++i) { builder.append(i > 0 ? "))" : ")"); }
+    input = builder.toString().toCharArray();
+  }
+
+  @Benchmark
+  public PrimitiveAtom read() {
+    parser.init(input, 0, input.length);
+    return reader.read(scope);
+  }
+}
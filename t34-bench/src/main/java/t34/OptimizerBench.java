@@ -0,0 +1,56 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Optimizer}: evaluation of a lambda that applies literal lambdas and small globals on its argument,
+ * optimized at the given level, and the cost of the optimization itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptimizerBench {
+  private static final String SOURCE = "(lambda (n) ((compose (twice inc)) ((lambda (x) (dec (dec x))) n)))";
+
+  @Param({"0", "1", "2"})
+  public int level;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom parsed;
+  private Main.Atom fn;
+  private final Main.Atom arg = Int.valueOf(10);
+
+  @Setup
+  public void setUp() throws Exception {
+    final EvaluatorBackend backend = new EvaluatorBackend();
+    evaluator = backend.getEvaluator();
+    evaluator.getOptimizer().setLevel(level);
+    evaluator.eval(evaluator.optimize(EvaluatorBackend.parse(
+        "(define twice (lambda (f) (lambda (x) (f (f x)))))", evaluator.scope)));
+    evaluator.eval(evaluator.optimize(EvaluatorBackend.parse(
+        "(define compose (lambda (f) (lambda (g) (lambda (x) (f (g x))))))", evaluator.scope)));
+    parsed = EvaluatorBackend.parse(SOURCE, evaluator.scope);
+    fn = evaluator.eval(evaluator.optimize(parsed));
+  }
+
+  @Benchmark
+  public Object call() { return fn.fn(arg); }
+
+  @Benchmark
+  public Object optimize() { return evaluator.optimize(parsed); }
+}
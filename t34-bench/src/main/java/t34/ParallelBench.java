@@ -0,0 +1,62 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of the parallel mode: a balanced tree of {@code width} independent {@code pow n5 n5} reductions on closure
+ * numerals, every lambda compiled. Parallelism 0 is the sequential evaluation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelBench {
+
+  @Param({"0", "1", "2", "4", "8", "16", "32"})
+  public int parallelism;
+
+  @Param({"64"})
+  public int width;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom tree;
+
+  @Setup
+  public void setUp() {
+    final EvaluatorBackend backend = new EvaluatorBackend(false);
+    evaluator = backend.getEvaluator();
+    evaluator.setCompileThreshold(0);
+    evaluator.setParallelism(parallelism);
+    backend.eval("(define n2 (succ (succ zero)))");
+    backend.eval("(define n3 (succ n2))");
+    backend.eval("(define k (lambda (a) (lambda (b) a)))");
+    // 8 applications per leaf, the default threshold
+    tree = EvaluatorBackend.parse(build(width, "((((pow ((add n2) n3)) ((add n3) n2)) inc) 0)"), evaluator.scope);
+  }
+
+  @TearDown
+  public void tearDown() { evaluator.setParallelism(0); }
+
+  @Benchmark
+  public Object tree() throws Exception { return evaluator.eval(tree); }
+
+  private static String build(int width, String leaf) {
+    if (width == 1) { return leaf; }
+    return "((k " + build(width / 2, leaf) + ") " + build(width - width / 2, leaf) + ")";
+  }
+}
@@ -0,0 +1,63 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Front end cost: {@link Parser} tokens and {@link AstNodeReader} trees for the church numerals prelude.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBench {
+  private final char[][] prelude = toCharArrays(EvaluatorBackend.PRELUDE);
+  private final Parser parser = new Parser();
+  private final AstNodeReader reader = new AstNodeReader(parser);
+  private final GlobalLexicalScope scope = new GlobalLexicalScope();
+
+  @Benchmark
+  public void tokenize(Blackhole bh) {
+    for (final char[] line : prelude) {
+      parser.init(line, 0, line.length);
+      int depth = 0;
+      do { // each prelude line is a single balanced expression
+        final PrimitiveAtom token = parser.next(scope);
+        if (token == Special.OPEN_BRACE) {
+          ++depth;
+        } else if (token == Special.CLOSE_BRACE) {
+          --depth;
+        }
+        bh.consume(token);
+      } while (depth > 0);
+    }
+  }
+
+  @Benchmark
+  public void read(Blackhole bh) {
+    for (final char[] line : prelude) {
+      parser.init(line, 0, line.length);
+      bh.consume(reader.read(scope));
+    }
+  }
+
+  private static char[][] toCharArrays(String[] lines) {
+    final char[][] result = new char[lines.length][];
+    for (int i = 0; i < lines.length; ++i) {
+      result[i] = lines[i].toCharArray();
+    }
+    return result;
+  }
+}
@@ -0,0 +1,66 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup cost of a large prelude: definitions replayed one by one versus {@link Evaluator#defineAll(List)}.
+ * Every other definition is a lambda referring to the previous one, the rest are applications wrapping it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PreludeBench {
+
+  @Param({"2000"})
+  public int size;
+
+  private Evaluator evaluator;
+  private List<Define> prelude;
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    Main.ENV = new Main.Env();
+    Evaluator.CLASS_CACHE.clear(); // measure cold start
+    evaluator = new Evaluator();
+    prelude = new ArrayList<>(size);
+    prelude.add((Define) EvaluatorBackend.parse("(define f0 (lambda (x) x))", evaluator.scope));
+    for (int i = 1; i < size; ++i) {
+      final String source = (i % 2 == 1) ?
+          "(define f" + i + " (lambda (x) (f" + (i - 1) + " (inc x))))" :
+          "(define f" + i + " ((lambda (g) (lambda (x) (g x))) f" + (i - 1) + "))";
+      prelude.add((Define) EvaluatorBackend.parse(source, evaluator.scope));
+    }
+  }
+
+  @Benchmark
+  public Object replay() throws Exception {
+    for (final Define define : prelude) {
+      evaluator.eval(define);
+    }
+    return evaluator.eval(EvaluatorBackend.parse("(f" + (size - 1) + " 0)", evaluator.scope));
+  }
+
+  @Benchmark
+  public Object defineAll() throws Exception {
+    evaluator.defineAll(prelude);
+    return evaluator.eval(EvaluatorBackend.parse("(f" + (size - 1) + " 0)", evaluator.scope));
+  }
+}
@@ -0,0 +1,58 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the {@link Profiler} counters on compiled code: Church numerals kept as closures, so that every
+ * successor and every application of a numeral is a call of a generated lambda.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfilerBench {
+
+  @Param({"false", "true"})
+  public boolean profile;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom pow;
+  private PrimitiveAtom nested;
+
+  @Setup
+  public void setUp() {
+    Profiler.setEnabled(profile);
+    final EvaluatorBackend backend = new EvaluatorBackend(false);
+    backend.getEvaluator().setCompileThreshold(0);
+    backend.eval("(define n2 ((add (succ zero)) (succ zero)))");
+    backend.eval("(define n5 ((add n2) (succ n2)))");
+    backend.eval("(define compose (lambda (a) (lambda (b) (lambda (c) (lambda (d) (a (b (c d))))))))");
+    evaluator = backend.getEvaluator();
+    pow = EvaluatorBackend.parse("((((pow n5) n5) inc) 0)", evaluator.scope);
+    nested = EvaluatorBackend.parse("((((compose inc) dec) inc) 0)", evaluator.scope);
+  }
+
+  @TearDown
+  public void tearDown() { Profiler.setEnabled(false); }
+
+  @Benchmark
+  public Object pow() throws Exception { return evaluator.eval(pow); }
+
+  @Benchmark
+  public Object nestedLambdas() throws Exception { return evaluator.eval(nested); }
+}
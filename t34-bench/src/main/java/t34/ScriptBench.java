@@ -0,0 +1,78 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming front end: {@link ScriptReader} over a generated multi-line script of {@code defines} definitions,
+ * read from a memory-mapped file and from a {@link java.io.Reader}. Allocation per definition stays constant
+ * regardless of the script size as only the current expression is buffered.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ScriptBench {
+
+  @Param({"10000", "100000"})
+  public int defines;
+
+  private String source;
+  private Path script;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    final StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < defines; ++i) {
+      builder.append("(define f").append(i).append("\n  (lambda (s)\n    (lambda (z)\n      (s (s z)))))\n");
+    }
+    source = builder.toString();
+    script = Files.createTempFile("t34-bench", ".lc");
+    Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.delete(script);
+  }
+
+  @Benchmark
+  public void mappedFile(Blackhole bh) throws IOException {
+    try (final ScriptReader reader = ScriptReader.open(script)) {
+      read(reader, bh);
+    }
+  }
+
+  @Benchmark
+  public void reader(Blackhole bh) throws IOException {
+    read(new ScriptReader(new StringReader(source)), bh);
+  }
+
+  private static void read(ScriptReader reader, Blackhole bh) throws IOException {
+    final GlobalLexicalScope scope = new GlobalLexicalScope();
+    for (PrimitiveAtom node; (node = reader.read(scope)) != null;) {
+      bh.consume(node);
+    }
+  }
+}
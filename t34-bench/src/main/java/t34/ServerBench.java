@@ -0,0 +1,81 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of {@link Server} with 1024 concurrent sessions, each benchmark thread is a client with
+ * a session of its own evaluating a small expression over its own definition.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss512k")
+@Threads(1024)
+public class ServerBench {
+
+  @State(Scope.Benchmark)
+  public static class ServerState {
+    Server server;
+
+    @Setup
+    public void setUp() throws IOException {
+      server = new Server(0);
+      server.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException { server.close(); }
+  }
+
+  @State(Scope.Thread)
+  public static class Session {
+    private Socket socket;
+    private BufferedReader in;
+    private Writer out;
+
+    @Setup
+    public void setUp(ServerState state) throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), state.server.getPort());
+      socket.setTcpNoDelay(true);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      request("(define twice (lambda (f) (lambda (x) (f (f x)))))");
+      request("(define v " + (Thread.currentThread().getId() % 100) + ")");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException { socket.close(); }
+
+    String request(String expression) throws IOException {
+      out.write(expression);
+      out.write('\n');
+      out.flush();
+      return in.readLine();
+    }
+  }
+
+  @Benchmark
+  public String eval(Session session) throws IOException { return session.request("((twice inc) v)"); }
+}
@@ -0,0 +1,86 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup of a compiled prelude: {@code replay} evaluates the definitions, {@code snapshot} loads them from
+ * the {@link Snapshot} written by the trial setup. Both then call the last global, which uses all the others.
+ * Every invocation starts with no classes in memory, as a new process would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m") // the first call restores the 3000 nested globals on the way
+public class SnapshotBench {
+  private static final String REPLAY = "replay";
+  private static final String SNAPSHOT = "snapshot";
+
+  @Param({REPLAY, SNAPSHOT})
+  public String startup;
+
+  @Param({"3000"})
+  public int size;
+
+  private Path file;
+  private Evaluator evaluator;
+  private List<Define> prelude;
+
+  @Setup(Level.Trial)
+  public void writeSnapshot() throws Exception {
+    file = Files.createTempFile("t34-prelude", ".t34s");
+    Snapshot.setKeepClasses(true);
+    setUp();
+    evaluator.defineAll(prelude);
+    Snapshot.write(Main.ENV, file);
+    Snapshot.setKeepClasses(false);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    Evaluator.CLASS_CACHE.clear();
+    Main.ENV = new Main.Env();
+    evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0);
+    prelude = new ArrayList<>(size);
+    prelude.add((Define) EvaluatorBackend.parse("(define f0 (lambda (x) x))", evaluator.scope));
+    for (int i = 1; i < size; ++i) {
+      final String source = (i % 2 == 1) ?
+          "(define f" + i + " (lambda (x) (f" + (i - 1) + " (inc x))))" :
+          "(define f" + i + " ((lambda (g) (lambda (x) (g x))) f" + (i - 1) + "))";
+      prelude.add((Define) EvaluatorBackend.parse(source, evaluator.scope));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception { Files.delete(file); }
+
+  @Benchmark
+  public Object startup() throws Exception {
+    if (SNAPSHOT.equals(startup)) {
+      Snapshot.load(file).bind(Main.ENV);
+    } else {
+      evaluator.defineAll(prelude);
+    }
+    return evaluator.eval(EvaluatorBackend.parse("(f" + (size - 1) + " 0)", evaluator.scope));
+  }
+}
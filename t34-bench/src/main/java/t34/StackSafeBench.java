@@ -0,0 +1,73 @@
+package t34;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the stack-safe mode against the direct one: {@code compiled} generates classes right away,
+ * {@code interpreted} never compiles, {@code stack-safe} runs on {@link StackMachine}.
+ * Numerals are closures, {@code deepNumeral} applies the one built of {@code depth} successors, which nests as deep.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StackSafeBench {
+  private static final String COMPILED = "compiled";
+  private static final String INTERPRETED = "interpreted";
+  private static final String STACK_SAFE = "stack-safe";
+
+  @Param({COMPILED, INTERPRETED, STACK_SAFE})
+  public String mode;
+
+  @Param({"1000"})
+  public int depth;
+
+  private Evaluator evaluator;
+  private PrimitiveAtom pow;
+  private PrimitiveAtom nested;
+  private Main.Atom deep;
+
+  @Setup
+  public void setUp() {
+    final EvaluatorBackend backend = new EvaluatorBackend(false);
+    evaluator = backend.getEvaluator();
+    evaluator.setCompileThreshold(COMPILED.equals(mode) ? 0 : Integer.MAX_VALUE);
+    evaluator.setStackSafe(STACK_SAFE.equals(mode));
+    for (final String define : EvaluatorBackend.PRELUDE) { // redefine in the selected mode
+      backend.eval(define);
+    }
+    backend.eval("(define n2 (succ (succ zero)))");
+    backend.eval("(define n5 ((add n2) (succ n2)))");
+    backend.eval("(define compose (lambda (a) (lambda (b) (lambda (c) (lambda (d) (a (b (c d))))))))");
+    pow = EvaluatorBackend.parse("((((pow n5) n5) inc) 0)", evaluator.scope);
+    nested = EvaluatorBackend.parse("((((compose inc) dec) inc) 0)", evaluator.scope);
+
+    final Main.Atom succ = backend.eval("succ");
+    Main.Atom numeral = backend.eval("zero");
+    for (int i = 0; i < depth; ++i) { numeral = succ.fn(numeral); }
+    deep = numeral;
+  }
+
+  @Benchmark
+  public Object pow() throws Exception { return evaluator.eval(pow); }
+
+  @Benchmark
+  public Object nestedLambdas() throws Exception { return evaluator.eval(nested); }
+
+  @Benchmark
+  public int deepNumeral() { return deep.fn(Inc.INSTANCE).fn(Int.valueOf(0)).toInt(); }
+}
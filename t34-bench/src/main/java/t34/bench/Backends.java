@@ -0,0 +1,50 @@
+package t34.bench;
+
+import t34.EvaluatorBackend;
+
+/**
+ * Lookup for {@link ChurchBackend} implementations by their short names.
+ */
+public final class Backends {
+  private Backends() {}
+
+  /** t34 bytecode-generating evaluator */
+  public static final String T34 = "t34";
+
+  /** t34 evaluator with church numerals compiled as closures */
+  public static final String T34_CLOSURES = "t34-closures";
+
+  /** t34 graph reduction of the same definitions */
+  public static final String GRAPH = "graph";
+
+  /** java/LambdaCalc - abstract class based atoms */
+  public static final String INVOKEVIRTUAL = "invokevirtual";
+
+  /** java2/LambdaCalc2 - interface based atoms */
+  public static final String INVOKEINTERFACE = "invokeinterface";
+
+  public static ChurchBackend create(String name) {
+    switch (name) {
+      case T34:
+        return new EvaluatorBackend(true);
+      case T34_CLOSURES:
+        return new EvaluatorBackend(false);
+      case GRAPH:
+        return new EvaluatorBackend(false, true);
+      case INVOKEVIRTUAL:
+        return newInstance("LambdaCalcBackend"); // lives in the default package next to LambdaCalc
+      case INVOKEINTERFACE:
+        return newInstance("LambdaCalc2Backend");
+      default:
+        throw new IllegalArgumentException("Unknown backend=" + name);
+    }
+  }
+
+  private static ChurchBackend newInstance(String className) {
+    try {
+      return (ChurchBackend) Class.forName(className).newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to instantiate backend " + className, e);
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package t34.bench;
+
+/**
+ * Common facade over the lambda calculus implementations, so that the very same Church numeral workloads could
+ * be run against each of them.
+ * Numerals are opaque to the benchmarks, each backend uses its own atom representation.
+ */
+public interface ChurchBackend {
+  Object numeral(int n);
+
+  Object add(Object m, Object n);
+
+  Object mul(Object m, Object n);
+
+  Object pow(Object b, Object e);
+
+  /** Converts given numeral to int by applying it to inc and 0. */
+  int toInt(Object numeral);
+}
@@ -0,0 +1,58 @@
+package t34.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Church numeral arithmetic run on the same workloads against every backend.
+ * Numerals are built once, so the benchmarks measure reduction only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChurchBench {
+
+  @Param({Backends.T34, Backends.T34_CLOSURES, Backends.GRAPH, Backends.INVOKEVIRTUAL, Backends.INVOKEINTERFACE})
+  public String backend;
+
+  private ChurchBackend lc;
+  private Object n2;
+  private Object n3;
+  private Object n5;
+  private Object n9;
+
+  @Setup
+  public void setUp() {
+    lc = Backends.create(backend);
+    n2 = lc.numeral(2);
+    n3 = lc.numeral(3);
+    n5 = lc.numeral(5);
+    n9 = lc.numeral(9);
+  }
+
+  @Benchmark
+  public int add() { return lc.toInt(lc.add(n9, n5)); }
+
+  @Benchmark
+  public int mul() { return lc.toInt(lc.mul(n9, n5)); }
+
+  @Benchmark
+  public int pow() { return lc.toInt(lc.pow(n5, n5)); }
+
+  @Benchmark
+  public int nested() { return lc.toInt(lc.mul(lc.add(n3, n5), lc.pow(n2, n9))); }
+}
@@ -0,0 +1,42 @@
+package t34.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reference stress test - {@code ((((pow n9) n9) inc) 0)}, takes seconds so measured as a single shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class PowBench {
+
+  @Param({Backends.T34, Backends.T34_CLOSURES, Backends.GRAPH, Backends.INVOKEVIRTUAL, Backends.INVOKEINTERFACE})
+  public String backend;
+
+  private ChurchBackend lc;
+  private Object n9;
+
+  @Setup
+  public void setUp() {
+    lc = Backends.create(backend);
+    n9 = lc.numeral(9);
+  }
+
+  @Benchmark
+  public int powN9N9() { return lc.toInt(lc.pow(n9, n9)); }
+}
@@ -0,0 +1,279 @@
+package t34;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Directory of generated lambda classes shared by the runs of t34. An entry is keyed by the SHA-256 of the
+ * compiler digest, the {@link LambdaShape} and, if the classes have line numbers, the source lines of the lambda, so
+ * the classes generated by another version of the compiler are never picked up, and the class name is derived from
+ * the key, so the classes referring to each other by name are interchangeable between the runs.
+ * Entries are written to a temporary file and renamed, readers see either a complete entry or none. An entry
+ * that doesn't match its key, shape or checksum is ignored and regenerated.
+ * Entries are written by a background thread, so that a run that fills the cache starts as fast as one without it,
+ * the pending writes are flushed on exit.
+ */
+final class BytecodeCache {
+  private static final int MAGIC = 0x7434C1A5;
+  private static final String SUFFIX = ".t34c";
+  /**
+   * Classes whose bytes the generated code depends on: the code generator and every class, method and field
+   * it refers to.
+   */
+  private static final String[] COMPILER_CLASSES = {
+      "Evaluator", "LambdaShape", "Main$Atom", "Main$Fn", "Main$NumericFn", "Main$Speculation", "Main$Deoptimization",
+      "Main$Globals", "Main$Globals$GlobalCallSite", "Main$Env", "Main$LambdaProfile"
+  };
+  /** Digest of the class bytes of the code generator, changes with every build of it, null if unknown. */
+  static final String COMPILER_DIGEST = computeCompilerDigest();
+
+  private final Path directory;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong writes = new AtomicLong();
+  private final AtomicLong rejects = new AtomicLong();
+
+  public BytecodeCache(Path directory) throws IOException {
+    if (COMPILER_DIGEST == null) { throw new IOException("Unable to identify the version of the compiler"); }
+    this.directory = Files.createDirectories(directory);
+  }
+
+  /** @return cache in the directory given by {@code t34.bytecodeCache.dir} or null if it is not set */
+  static BytecodeCache fromSystemProperties() {
+    final String directory = System.getProperty("t34.bytecodeCache.dir");
+    if (directory == null) { return null; }
+    try {
+      final BytecodeCache cache = new BytecodeCache(Paths.get(directory));
+      Runtime.getRuntime().addShutdownHook(new Thread(BytecodeCache::flush, "t34-bytecode-cache-flush"));
+      return cache;
+    } catch (IOException e) {
+      System.err.println(";; Bytecode cache is disabled: " + e);
+      return null;
+    }
+  }
+
+  public Path getDirectory() { return directory; }
+
+  /** @return hex SHA-256 of the compiler digest and the shape */
+  public static String key(LambdaShape shape) { return key(shape, ""); }
+
+  /**
+   * @param lines source lines the class is generated with, empty without line numbers, so that a class is not
+   *              reused with the line numbers of another version of the script
+   * @return hex SHA-256 of the compiler digest, the shape and the lines
+   */
+  public static String key(LambdaShape shape, String lines) {
+    return toHex(sha256((COMPILER_DIGEST + '\n' + shape.getEncoding() + '\n' + lines)
+        .getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /** @return name of the generated class of the key, the same in every run */
+  public static String className(String key) { return "GenFn_" + key.substring(0, 24); }
+
+  /**
+   * Reads the verified entry.
+   *
+   * @return entry or null if there is no valid one
+   */
+  public Entry load(String key, LambdaShape shape) {
+    final byte[] content;
+    try {
+      content = Files.readAllBytes(directory.resolve(key + SUFFIX));
+    } catch (NoSuchFileException e) {
+      misses.incrementAndGet();
+      return null;
+    } catch (IOException e) {
+      return reject();
+    }
+
+    try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content))) {
+      if (in.readInt() != MAGIC || !COMPILER_DIGEST.equals(in.readUTF()) ||
+          !shape.getEncoding().equals(new String(readBytes(in), StandardCharsets.UTF_8))) {
+        return reject();
+      }
+      final int dependencyCount = checkLength(in, in.readInt());
+      final List<String> dependencies = new ArrayList<>(dependencyCount);
+      for (int i = 0; i < dependencyCount; ++i) { dependencies.add(in.readUTF()); }
+      final byte[] classBytes = readBytes(in);
+      if (in.readLong() != checksum(classBytes) || in.read() != -1) { return reject(); }
+      hits.incrementAndGet();
+      return new Entry(classBytes, dependencies);
+    } catch (IOException e) { // truncated
+      return reject();
+    }
+  }
+
+  /**
+   * Queues the entry to be written unless another run has written it already, failures leave the cache as is.
+   * The class bytes must not be modified afterwards.
+   */
+  public void store(String key, LambdaShape shape, Collection<String> dependencies, byte[] classBytes) {
+    final List<String> names = new ArrayList<>(dependencies);
+    Writer.EXECUTOR.execute(() -> write(key, shape, names, classBytes));
+  }
+
+  /** Waits for the entries queued so far by all the caches to be written. */
+  static void flush() {
+    try {
+      Writer.EXECUTOR.submit(() -> {}).get(); // the writes are executed in order
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** Writes the entry in the calling thread, see {@link #store}. */
+  void write(String key, LambdaShape shape, List<String> dependencies, byte[] classBytes) {
+    final Path target = directory.resolve(key + SUFFIX);
+    if (Files.exists(target)) { return; }
+    Path temporary = null;
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(classBytes.length + 256);
+      try (final DataOutputStream out = new DataOutputStream(bytes)) {
+        out.writeInt(MAGIC);
+        out.writeUTF(COMPILER_DIGEST);
+        writeBytes(out, shape.getEncoding().getBytes(StandardCharsets.UTF_8)); // may exceed the limit of writeUTF
+        out.writeInt(dependencies.size());
+        for (final String dependency : dependencies) { out.writeUTF(dependency); }
+        writeBytes(out, classBytes);
+        out.writeLong(checksum(classBytes));
+      }
+      temporary = Files.createTempFile(directory, key, ".tmp");
+      Files.write(temporary, bytes.toByteArray());
+      try {
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      temporary = null;
+      writes.incrementAndGet();
+    } catch (IOException e) {
+      System.err.println(";; Unable to cache " + key + ": " + e);
+    } finally {
+      if (temporary != null) {
+        try {
+          Files.deleteIfExists(temporary);
+        } catch (IOException ignored) {
+          // left for the next cleanup
+        }
+      }
+    }
+  }
+
+  public long getHits() { return hits.get(); }
+  public long getMisses() { return misses.get(); }
+  /** @return number of entries written, the queued ones are not counted until {@link #flush()} */
+  public long getWrites() { return writes.get(); }
+  /** @return number of entries ignored as invalid */
+  public long getRejects() { return rejects.get(); }
+
+  @Override
+  public String toString() {
+    return "bytecodeCache(dir=" + directory + ", hits=" + hits + ", misses=" + misses + ", writes=" + writes +
+        ", rejects=" + rejects + ")";
+  }
+
+  /** Cached class and the names of the generated classes it refers to. */
+  static final class Entry {
+    final byte[] classBytes;
+    final List<String> dependencies;
+
+    Entry(byte[] classBytes, List<String> dependencies) {
+      this.classBytes = classBytes;
+      this.dependencies = dependencies;
+    }
+  }
+
+  //
+  // Private
+  //
+
+  /** Lazy holder of the writer thread. */
+  private static final class Writer {
+    static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "t34-bytecode-cache");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  private Entry reject() {
+    rejects.incrementAndGet();
+    return null;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[checkLength(in, in.readInt())];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static int checkLength(DataInputStream in, int length) throws IOException {
+    if (length < 0 || length > in.available()) { throw new IOException("Invalid length " + length); }
+    return length;
+  }
+
+  private static long checksum(byte[] bytes) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return crc.getValue();
+  }
+
+  private static String computeCompilerDigest() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    for (final String name : COMPILER_CLASSES) {
+      try (final InputStream in = Evaluator.class.getResourceAsStream(name + ".class")) {
+        if (in == null) { return null; }
+        bytes.write(name.getBytes(StandardCharsets.UTF_8), 0, name.length()); // names are ASCII
+        for (int count; (count = in.read(buffer)) > 0;) { bytes.write(buffer, 0, count); }
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    return toHex(sha256(bytes.toByteArray()));
+  }
+
+  private static byte[] sha256(byte[] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // every Java platform has it
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder result = new StringBuilder(bytes.length * 2);
+    for (final byte b : bytes) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return result.toString();
+  }
+}
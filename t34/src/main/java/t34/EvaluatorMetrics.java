@@ -0,0 +1,84 @@
+package t34;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default {@link Metrics}: latency histograms of parsing, compilation and execution and counters of definitions
+ * and errors, all updated without locks, plus the process-wide counters of the generated classes and of the
+ * {@link Int} cache. Enabled by default, {@code t34.metrics=false} turns it off.
+ */
+final class EvaluatorMetrics implements Metrics, EvaluatorMetricsMXBean {
+  static final String OBJECT_NAME = "t34:type=Evaluator";
+  /** Value of {@code t34.metrics}, constant so that the counters of the hot paths are compiled away when false. */
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("t34.metrics", "true"));
+
+  private final LatencyHistogram parse = new LatencyHistogram();
+  private final LatencyHistogram compile = new LatencyHistogram();
+  private final LatencyHistogram execute = new LatencyHistogram();
+  private final LongAdder syntaxErrors = new LongAdder();
+  private final LongAdder evalErrors = new LongAdder();
+  private final LongAdder defines = new LongAdder();
+
+  /** @return metrics registered in the platform MBean server, or {@link Metrics#NONE} if disabled */
+  static Metrics fromSystemProperties() {
+    if (!ENABLED) { return NONE; }
+    final EvaluatorMetrics result = new EvaluatorMetrics();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(result, new ObjectName(OBJECT_NAME));
+    } catch (JMException | RuntimeException e) {
+      System.err.println(";; Metrics are not registered: " + e);
+    }
+    return result;
+  }
+
+  @Override public void parsed(long nanos) { parse.record(nanos); }
+  @Override public void syntaxError() { syntaxErrors.increment(); }
+  @Override public void compiled(long nanos) { compile.record(nanos); }
+  @Override public void executed(long nanos) { execute.record(nanos); }
+  @Override public void defined() { defines.increment(); }
+  @Override public void evalError(Throwable error) { evalErrors.increment(); }
+
+  @Override public Latency getParseLatency() { return new Latency(parse); }
+  @Override public Latency getCompileLatency() { return new Latency(compile); }
+  @Override public Latency getExecuteLatency() { return new Latency(execute); }
+
+  @Override public long getSyntaxErrors() { return syntaxErrors.sum(); }
+  @Override public long getEvalErrors() { return evalErrors.sum(); }
+
+  @Override public long getDefines() { return defines.sum(); }
+  @Override public int getGlobals() { return Main.currentEnv().size(); }
+  @Override public int getGlobalSlots() { return Main.currentEnv().capacity(); }
+
+  @Override public long getGeneratedClasses() { return GeneratedClassLoader.getDefinedClassCount(); }
+  @Override public long getGeneratedClassBytes() { return GeneratedClassLoader.getDefinedBytes(); }
+  @Override public int getLiveGeneratedClasses() { return GeneratedClassLoader.getLiveClassCount(); }
+
+  @Override
+  public double getIntCacheHitRate() {
+    if (!ENABLED) { return Double.NaN; } // not counted
+    final long hits = Int.getCacheHits();
+    final long total = hits + Int.getCacheMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  @Override
+  public void reset() {
+    parse.reset();
+    compile.reset();
+    execute.reset();
+    syntaxErrors.reset();
+    evalErrors.reset();
+    defines.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "metrics(defines=" + defines + ", globals=" + getGlobals() + ", syntaxErrors=" + syntaxErrors +
+        ", evalErrors=" + evalErrors + ", intCacheHitRate=" + String.format("%.3f", getIntCacheHitRate()) +
+        ")\n;; parse(" + getParseLatency() + ")\n;; compile(" + getCompileLatency() + ")\n;; execute(" +
+        getExecuteLatency() + ")";
+  }
+}
@@ -0,0 +1,74 @@
+package t34;
+
+/**
+ * Management interface of {@link EvaluatorMetrics}, registered as {@value EvaluatorMetrics#OBJECT_NAME}.
+ * Latencies are in nanoseconds.
+ */
+public interface EvaluatorMetricsMXBean {
+  Latency getParseLatency();
+  Latency getCompileLatency();
+  Latency getExecuteLatency();
+
+  long getSyntaxErrors();
+  long getEvalErrors();
+
+  long getDefines();
+  /**
+   * @return number of the globals of the environment of the calling thread, the process-wide one unless it serves
+   *         a session of the server
+   */
+  int getGlobals();
+  /**
+   * @return size of the slot table of the same environment. The environment is flat, a lookup is one array read
+   *         whatever the number of definitions, so there is no chain depth to report
+   */
+  int getGlobalSlots();
+
+  long getGeneratedClasses();
+  long getGeneratedClassBytes();
+  int getLiveGeneratedClasses();
+
+  /**
+   * @return share of the numbers taken from the cache of the small ones, 0 if there were none, NaN if they are
+   *         not counted with {@code t34.metrics=false}
+   */
+  double getIntCacheHitRate();
+
+  /** Zeroes the latencies and the counters of this bean, the process-wide counters stay. */
+  void reset();
+
+  /** Distribution of the latencies of one stage, exposed as composite data. */
+  final class Latency {
+    private final long count;
+    private final long mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    Latency(LatencyHistogram histogram) {
+      count = histogram.getCount();
+      mean = histogram.getMean();
+      p50 = histogram.getPercentile(50);
+      p90 = histogram.getPercentile(90);
+      p99 = histogram.getPercentile(99);
+      p999 = histogram.getPercentile(99.9);
+      max = histogram.getMax();
+    }
+
+    public long getCount() { return count; }
+    public long getMean() { return mean; }
+    public long getP50() { return p50; }
+    public long getP90() { return p90; }
+    public long getP99() { return p99; }
+    public long getP999() { return p999; }
+    public long getMax() { return max; }
+
+    @Override
+    public String toString() {
+      return "count=" + count + ", mean=" + mean + ", p50=" + p50 + ", p90=" + p90 + ", p99=" + p99 +
+          ", p999=" + p999 + ", max=" + max;
+    }
+  }
+}
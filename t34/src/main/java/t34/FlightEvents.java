@@ -0,0 +1,99 @@
+package t34;
+
+/**
+ * JDK Flight Recorder events of the evaluation pipeline, emitted when {@code t34.jfr} is set and a recording has
+ * them enabled, e.g. {@code -Dt34.jfr=true -XX:StartFlightRecording=filename=t34.jfr}. With {@code t34.jfr} unset
+ * the begin methods return null without touching the recorder and the event classes are never loaded.
+ * The events are defined by {@code t34.JfrRecorder} in {@code src/main/jfr}, compiled on Java 11+ only and loaded
+ * by name once the events are turned on, so that the rest of t34 builds and runs on Java 8.
+ * Evaluations are recorded when they take at least 20 ms, the threshold of a recording may override it.
+ */
+final class FlightEvents {
+  private static final int MAX_SOURCE_LENGTH = 1024;
+  private static final String RECORDER_CLASS = "t34.JfrRecorder";
+
+  private static boolean enabled; // plain, it is read on every evaluation
+  private static volatile Recorder recorder; // loaded on the first enabling, read only when an event has begun
+
+  static { setEnabled(Boolean.getBoolean("t34.jfr")); }
+
+  /**
+   * Begins and commits the events, an event is an opaque object passed from a begin method to the matching
+   * commit method.
+   */
+  interface Recorder {
+    Object beginParse();
+    void commitParse(Object event, PrimitiveAtom node);
+
+    Object beginClassDefinition();
+    void commitClassDefinition(Object event, Class<?> lambdaClass, int classSize, Lambda lambda, boolean cached);
+
+    Object beginDefine();
+    void commitDefine(Object event, Symbol symbol);
+
+    Object beginEval();
+    void commitEval(Object event, Main.Atom node, boolean failed);
+  }
+
+  private FlightEvents() {}
+
+  static boolean isEnabled() { return enabled; }
+
+  /**
+   * Turns the events on or off, the threads already running may see the change late. The events stay off if the
+   * recorder can't be loaded, e.g. on Java 8.
+   */
+  static synchronized void setEnabled(boolean enabled) {
+    if (enabled && recorder == null) { recorder = loadRecorder(); }
+    FlightEvents.enabled = enabled && recorder != null;
+  }
+
+  /** @return started event or null if the events are off */
+  static Object beginParse() { return enabled ? recorder.beginParse() : null; }
+
+  static void commitParse(Object event, PrimitiveAtom node) {
+    if (event != null) { recorder.commitParse(event, node); }
+  }
+
+  /** @return started event or null if the events are off */
+  static Object beginClassDefinition() { return enabled ? recorder.beginClassDefinition() : null; }
+
+  static void commitClassDefinition(Object event, Class<?> lambdaClass, int classSize, Lambda lambda,
+                                    boolean cached) {
+    if (event != null) { recorder.commitClassDefinition(event, lambdaClass, classSize, lambda, cached); }
+  }
+
+  /** @return started event or null if the events are off */
+  static Object beginDefine() { return enabled ? recorder.beginDefine() : null; }
+
+  static void commitDefine(Object event, Symbol symbol) {
+    if (event != null) { recorder.commitDefine(event, symbol); }
+  }
+
+  /** @return started event or null if the events are off */
+  static Object beginEval() { return enabled ? recorder.beginEval() : null; }
+
+  /** Commits the event if the evaluation has taken long enough, the source is printed in that case only. */
+  static void commitEval(Object event, Main.Atom node, boolean failed) {
+    if (event != null) { recorder.commitEval(event, node, failed); }
+  }
+
+  /** @return source of the node cut to the length kept in an event */
+  static String sourceOf(PrimitiveAtom node) {
+    final String source = Optimizer.toWrittenSource(node);
+    return source.length() <= MAX_SOURCE_LENGTH ? source : source.substring(0, MAX_SOURCE_LENGTH - 3) + "...";
+  }
+
+  //
+  // Private
+  //
+
+  private static Recorder loadRecorder() {
+    try {
+      return (Recorder) Class.forName(RECORDER_CLASS).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) { // built or running without jdk.jfr
+      System.err.println(";; Flight events are off: " + e);
+      return null;
+    }
+  }
+}
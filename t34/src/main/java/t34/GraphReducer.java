@@ -0,0 +1,519 @@
+package t34;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Graph reduction backend. Terms are nodes of a table held in primitive arrays, lambdas are templates that get
+ * instantiated on application: the body is copied with the argument node substituted for the variable.
+ * Subgraphs of the body that don't depend on the variable are shared rather than copied, and every application
+ * is overwritten with its result once reduced, so a closed subexpression under a lambda is reduced once for all
+ * the instances of the lambda (full laziness). A closed application that reads a global is the exception: the
+ * instances share a copy of it, which is dropped once a global is redefined, so that the instances made after
+ * the redefinition see the new value. Arguments are reduced before the application, the same way the bytecode
+ * backend does, reduction stops at lambdas.
+ * Frames of the pending applications are kept in an array rather than on the thread stack, unreachable nodes are
+ * reclaimed by a copying collector.
+ */
+final class GraphReducer {
+  private static final byte IND = 0; // left - node this one has been reduced to
+  private static final byte APP = 1; // left - function, right - argument
+  private static final byte LAM = 2; // left - body, a template
+  private static final byte VAR = 3; // left - de Bruijn index
+  private static final byte INT = 4; // left - value
+  private static final byte GLOBAL = 5; // left - slot, resolved on each evaluation
+  private static final byte PRIM = 6; // left - value added to the number, inc or dec
+  private static final byte MOVED = 7; // left - new location of the node, seen during collection only
+
+  private static final int INITIAL_CAPACITY = 1 << 16;
+  private static final int UNDEFINED = -1;
+  private static final Object NO_OWNER = new Object(); // owner of the top level nodes, the deque takes no nulls
+
+  // node table
+  private byte[] tags = new byte[INITIAL_CAPACITY];
+  private int[] left = new int[INITIAL_CAPACITY];
+  private int[] right = new int[INITIAL_CAPACITY];
+  private int[] free = new int[INITIAL_CAPACITY]; // 1 + the largest de Bruijn index free in the node, 0 if closed
+  private boolean[] readsGlobal = new boolean[INITIAL_CAPACITY]; // the node is or contains a global
+  private int top;
+  private int collectThreshold = INITIAL_CAPACITY / 4 * 3;
+
+  // to-space of the collection, the same size as the node table
+  private byte[] toTags;
+  private int[] toLeft;
+  private int[] toRight;
+  private int[] toFree;
+  private boolean[] toReadsGlobal;
+  private int toTop;
+
+  private int[] stack = new int[256]; // app - the function is being reduced, ~app - the argument is being reduced
+  private int sp;
+  private int[] work = new int[96]; // template instantiation: source, copy and depth of the nodes to copy
+  private int wp;
+
+  private int[] globals = new int[0];
+  private Map<Integer, Integer> sharedCopies = new HashMap<>(); // template node - copy the instances reduce, rare
+  private int[] handles = new int[16]; // nodes referenced by GraphFn instances
+  private HandleRef[] handleRefs = new HandleRef[16];
+  private int handleCount;
+  private int[] freeHandles = new int[16];
+  private int freeHandleCount;
+  private final ReferenceQueue<GraphFn> releasedHandles = new ReferenceQueue<>();
+
+  private long reductions;
+  private long collections;
+
+  /** Reduces the top level expression or lambda. */
+  public synchronized Main.Atom eval(PrimitiveAtom node) { return toAtom(reduce(build(node))); }
+
+  /** Reduces and binds the value of the global, the bindings are not shared with {@link Main#ENV}. */
+  public synchronized void define(GlobalLocation global, PrimitiveAtom value) {
+    final int slot = global.getSlot();
+    final boolean redefined = slot < globals.length && globals[slot] != UNDEFINED;
+    bind(slot, reduce(build(value)));
+    if (redefined) { sharedCopies.clear(); } // the copies may have reduced the old value
+  }
+
+  /** @return number of applications of lambdas */
+  public synchronized long getReductions() { return reductions; }
+
+  public synchronized long getCollections() { return collections; }
+
+  synchronized Main.Atom apply(GraphFn fn, Main.Atom arg) {
+    final int argNode = fromAtom(arg);
+    return toAtom(reduce(newNode(APP, handles[fn.handle], argNode)));
+  }
+
+  //
+  // Private
+  //
+
+  private int reduce(int node) {
+    final int base = sp;
+    try {
+      for (;;) {
+        if (top >= collectThreshold) {
+          Main.checkInterrupted(); // templates are copied on every reduction, so the collections come regularly
+          node = collect(node);
+        }
+        node = follow(node);
+        final byte tag = tags[node];
+        if (tag == APP) {
+          push(node);
+          node = left[node];
+          continue;
+        }
+        if (tag == GLOBAL) {
+          node = global(left[node]);
+          continue;
+        }
+        if (tag == VAR) { throw new IllegalStateException("Free variable in the reduced graph"); }
+
+        int value = node; // lambda, number or primitive
+        for (;;) {
+          if (sp == base) { return value; }
+          final int frame = stack[--sp];
+          if (frame >= 0) { // the function is known, reduce the argument
+            left[frame] = value;
+            push(~frame);
+            node = right[frame];
+            break;
+          }
+
+          final int app = ~frame;
+          right[app] = value;
+          final int fn = left[app];
+          if (tags[fn] == LAM) { // the application is replaced by the instance, which gets reduced in its place
+            ++reductions;
+            node = instantiate(left[fn], value);
+            tags[app] = IND;
+            left[app] = node;
+            break;
+          }
+          if (tags[fn] == PRIM) {
+            if (tags[value] != INT) { throw new UnsupportedOperationException("Treating Fn as Int"); }
+            tags[app] = INT;
+            left[app] = left[value] + left[fn];
+            value = app;
+            continue;
+          }
+          throw new UnsupportedOperationException("Treating Int as Fn");
+        }
+      }
+    } finally {
+      sp = base;
+    }
+  }
+
+  private int instantiate(int body, int arg) {
+    body = follow(body);
+    if (free[body] == 0) { return shareClosed(body); }
+    if (tags[body] == VAR) { return arg; }
+
+    final int start = top;
+    final int root = newNode(tags[body], 0, 0);
+    pushWork(body, root, 0);
+    while (wp > 0) {
+      wp -= 3;
+      final int source = work[wp];
+      final int copy = work[wp + 1];
+      final int depth = work[wp + 2];
+      if (tags[source] == APP) {
+        final int fn = copyChild(left[source], depth, arg);
+        final int fnArg = copyChild(right[source], depth, arg);
+        left[copy] = fn;
+        right[copy] = fnArg;
+      } else { // lambda
+        final int lambdaBody = copyChild(left[source], depth + 1, arg);
+        left[copy] = lambdaBody;
+      }
+    }
+    computeFree(start);
+    return root;
+  }
+
+  /** @return the node itself if it doesn't refer to the instantiated variable, otherwise its copy to fill */
+  private int copyChild(int node, int depth, int arg) {
+    node = follow(node);
+    if (free[node] <= depth) { return depth == 0 ? shareClosed(node) : node; } // nested lambdas stay templates
+    if (tags[node] == VAR) { return arg; } // the variable of the template, others are bound within
+    final int copy = newNode(tags[node], 0, 0);
+    pushWork(node, copy, depth);
+    return copy;
+  }
+
+  /**
+   * @return closed node of a template for an instance to reduce: the node itself, or the copy shared by the
+   *         instances since the last redefinition if the node is an application that reads a global, as the template
+   *         would keep the value of the global once reduced
+   */
+  private int shareClosed(int node) {
+    if (tags[node] != APP || !readsGlobal[node]) { return node; }
+    final Integer shared = sharedCopies.get(node);
+    if (shared != null) { return shared; }
+
+    final int start = top;
+    final int base = wp; // the work of the instantiation in progress stays below
+    final int root = newSharedCopy(node);
+    while (wp > base) {
+      wp -= 3;
+      final int source = work[wp];
+      final int copy = work[wp + 1];
+      left[copy] = copyClosedChild(left[source]);
+      right[copy] = copyClosedChild(right[source]);
+    }
+    computeFree(start);
+    return root;
+  }
+
+  private int copyClosedChild(int node) {
+    node = follow(node);
+    if (tags[node] != APP || !readsGlobal[node]) { return node; } // lambdas stay templates
+    final Integer shared = sharedCopies.get(node);
+    return shared != null ? shared : newSharedCopy(node);
+  }
+
+  private int newSharedCopy(int node) {
+    final int copy = newNode(APP, 0, 0);
+    sharedCopies.put(node, copy);
+    pushWork(node, copy, 0);
+    return copy;
+  }
+
+  /** Computes free variables of the nodes allocated since start, children always follow their parents. */
+  private void computeFree(int start) {
+    for (int i = top - 1; i >= start; --i) {
+      if (tags[i] == APP) {
+        free[i] = Math.max(free[left[i]], free[right[i]]);
+        readsGlobal[i] = readsGlobal[left[i]] || readsGlobal[right[i]];
+      } else if (tags[i] == LAM) {
+        free[i] = Math.max(free[left[i]] - 1, 0);
+        readsGlobal[i] = readsGlobal[left[i]];
+      }
+    }
+  }
+
+  /** Builds the graph of the tree, the nodes are allocated top down. */
+  private int build(PrimitiveAtom root) {
+    final int start = top;
+    final ArrayDeque<Object> pending = new ArrayDeque<>(); // tree node, owner lambda, parent node and field
+    final int result = newTreeNode(root, null);
+    pushChildren(pending, root, null, result);
+    while (!pending.isEmpty()) {
+      final int field = (Integer) pending.pop();
+      final int parent = (Integer) pending.pop();
+      final Object ownerItem = pending.pop();
+      final Lambda owner = ownerItem == NO_OWNER ? null : (Lambda) ownerItem;
+      final PrimitiveAtom node = (PrimitiveAtom) pending.pop();
+      final int child = newTreeNode(node, owner);
+      if (field == 0) {
+        left[parent] = child;
+      } else {
+        right[parent] = child;
+      }
+      pushChildren(pending, node, owner, child);
+    }
+    computeFree(start);
+    return result;
+  }
+
+  private static void pushChildren(ArrayDeque<Object> pending, PrimitiveAtom node, Lambda owner, int id) {
+    if (node instanceof Call) {
+      pushChild(pending, ((Call) node).lhs, owner, id, 0);
+      pushChild(pending, ((Call) node).rhs, owner, id, 1);
+    } else if (node instanceof Lambda) {
+      pushChild(pending, ((Lambda) node).body, (Lambda) node, id, 0);
+    }
+  }
+
+  private static void pushChild(ArrayDeque<Object> pending, PrimitiveAtom node, Lambda owner, int parent,
+                                int field) {
+    pending.push(node);
+    pending.push(owner == null ? NO_OWNER : owner);
+    pending.push(parent);
+    pending.push(field);
+  }
+
+  private int newTreeNode(PrimitiveAtom node, Lambda owner) {
+    if (node instanceof Symbol) {
+      final Location location = ((Symbol) node).location;
+      if (location == SimpleLocation.VAR) { return newNode(VAR, 0, 0); }
+      if (location instanceof GlobalLocation) { return newNode(GLOBAL, ((GlobalLocation) location).getSlot(), 0); }
+      return newNode(VAR, owner.getDepth() - ((ClosureLocation) location).getParameterIndex(), 0);
+    }
+    if (node instanceof Int) { return newNode(INT, node.toInt(), 0); }
+    if (node instanceof Call) { return newNode(APP, 0, 0); }
+    if (node instanceof Lambda) { return newNode(LAM, 0, 0); }
+    throw new UnsupportedOperationException("Can't reduce " + node);
+  }
+
+  private int global(int slot) {
+    if (slot < globals.length && globals[slot] != UNDEFINED) { return globals[slot]; }
+    final Main.Env env = Main.currentEnv();
+    final Main.Atom builtin = env.isDefined(slot) ? env.get(slot) : null;
+    if (builtin == Inc.INSTANCE || builtin == Dec.INSTANCE) { // bound on the first use
+      final int node = fromAtom(builtin);
+      bind(slot, node);
+      return node;
+    }
+    throw new IllegalStateException("Undefined symbol " + env.getSymbols().symbolOf(slot));
+  }
+
+  private void bind(int slot, int node) {
+    if (slot >= globals.length) {
+      final int oldLength = globals.length;
+      globals = Arrays.copyOf(globals, Math.max(slot + 1, oldLength * 2));
+      Arrays.fill(globals, oldLength, globals.length, UNDEFINED);
+    }
+    globals[slot] = node;
+  }
+
+  private Main.Atom toAtom(int node) {
+    switch (tags[node]) {
+      case INT: return Int.valueOf(left[node]);
+      case PRIM: return left[node] > 0 ? Inc.INSTANCE : Dec.INSTANCE;
+      default: return new GraphFn(this, newHandle(node));
+    }
+  }
+
+  private int fromAtom(Main.Atom atom) {
+    if (atom instanceof Int) { return newNode(INT, atom.toInt(), 0); }
+    if (atom == Inc.INSTANCE) { return newNode(PRIM, 1, 0); }
+    if (atom == Dec.INSTANCE) { return newNode(PRIM, -1, 0); }
+    if (atom instanceof GraphFn && ((GraphFn) atom).reducer == this) { return handles[((GraphFn) atom).handle]; }
+    throw new UnsupportedOperationException("Can't pass " + atom + " to the graph reducer");
+  }
+
+  private int follow(int node) {
+    while (tags[node] == IND) { node = left[node]; }
+    return node;
+  }
+
+  private int newNode(byte tag, int leftValue, int rightValue) {
+    if (top == tags.length) { grow(tags.length * 2); }
+    tags[top] = tag;
+    left[top] = leftValue;
+    right[top] = rightValue;
+    free[top] = tag == VAR ? leftValue + 1 : 0;
+    readsGlobal[top] = tag == GLOBAL;
+    return top++;
+  }
+
+  private void grow(int capacity) {
+    tags = Arrays.copyOf(tags, capacity);
+    left = Arrays.copyOf(left, capacity);
+    right = Arrays.copyOf(right, capacity);
+    free = Arrays.copyOf(free, capacity);
+    readsGlobal = Arrays.copyOf(readsGlobal, capacity);
+    collectThreshold = capacity / 4 * 3;
+  }
+
+  private void push(int frame) {
+    if (sp == stack.length) { stack = Arrays.copyOf(stack, sp * 2); }
+    stack[sp++] = frame;
+  }
+
+  private void pushWork(int source, int copy, int depth) {
+    if (wp == work.length) { work = Arrays.copyOf(work, wp * 2); }
+    work[wp] = source;
+    work[wp + 1] = copy;
+    work[wp + 2] = depth;
+    wp += 3;
+  }
+
+  //
+  // Collection
+  //
+
+  /**
+   * Copies the nodes reachable from the frames, globals, handles, the current node and the shared copies of the live
+   * templates to the new table, indirections are skipped.
+   *
+   * @return new location of the current node
+   */
+  private int collect(int current) {
+    releaseHandles();
+    ++collections;
+    final int capacity = tags.length;
+    if (toTags == null || toTags.length != capacity) {
+      toTags = new byte[capacity];
+      toLeft = new int[capacity];
+      toRight = new int[capacity];
+      toFree = new int[capacity];
+      toReadsGlobal = new boolean[capacity];
+    }
+    toTop = 0;
+
+    final int result = forward(current);
+    for (int i = 0; i < sp; ++i) {
+      final int frame = stack[i];
+      stack[i] = frame >= 0 ? forward(frame) : ~forward(~frame);
+    }
+    for (int i = 0; i < globals.length; ++i) {
+      if (globals[i] != UNDEFINED) { globals[i] = forward(globals[i]); }
+    }
+    for (int i = 0; i < handleCount; ++i) {
+      if (handles[i] != UNDEFINED) { handles[i] = forward(handles[i]); }
+    }
+    int scanned = scan(0);
+    final Map<Integer, Integer> liveCopies = new HashMap<>();
+    for (boolean moved = !sharedCopies.isEmpty(); moved; scanned = scan(scanned)) {
+      moved = false; // copies are kept while their templates live, they may keep more templates alive
+      for (final Iterator<Map.Entry<Integer, Integer>> i = sharedCopies.entrySet().iterator(); i.hasNext();) {
+        final Map.Entry<Integer, Integer> entry = i.next();
+        if (tags[entry.getKey()] != MOVED) { continue; }
+        liveCopies.put(left[entry.getKey()], forward(entry.getValue()));
+        i.remove();
+        moved = true;
+      }
+    }
+    sharedCopies = liveCopies;
+
+    final byte[] fromTags = tags; // swap the spaces, the old one is the next to-space
+    final int[] fromLeft = left;
+    final int[] fromRight = right;
+    final int[] fromFree = free;
+    final boolean[] fromReadsGlobal = readsGlobal;
+    tags = toTags;
+    left = toLeft;
+    right = toRight;
+    free = toFree;
+    readsGlobal = toReadsGlobal;
+    top = toTop;
+    toTags = fromTags;
+    toLeft = fromLeft;
+    toRight = fromRight;
+    toFree = fromFree;
+    toReadsGlobal = fromReadsGlobal;
+    if (top > capacity / 2) { grow(capacity * 2); } // keep the collections rare while the live graph grows
+    return result;
+  }
+
+  /** Forwards the children of the copied nodes from the given one on, including the nodes copied meanwhile. */
+  private int scan(int from) {
+    for (int i = from; i < toTop; ++i) {
+      if (toTags[i] == APP) {
+        toLeft[i] = forward(toLeft[i]);
+        toRight[i] = forward(toRight[i]);
+      } else if (toTags[i] == LAM) {
+        toLeft[i] = forward(toLeft[i]);
+      }
+    }
+    return toTop;
+  }
+
+  private int forward(int node) {
+    node = follow(node);
+    if (tags[node] == MOVED) { return left[node]; }
+    final int copy = toTop++;
+    toTags[copy] = tags[node];
+    toLeft[copy] = left[node];
+    toRight[copy] = right[node];
+    toFree[copy] = free[node];
+    toReadsGlobal[copy] = readsGlobal[node];
+    tags[node] = MOVED;
+    left[node] = copy;
+    return copy;
+  }
+
+  private int newHandle(int node) {
+    releaseHandles(); // reuse the handles early so the collections don't keep the dead lambdas alive
+    final int handle;
+    if (freeHandleCount > 0) {
+      handle = freeHandles[--freeHandleCount];
+    } else {
+      if (handleCount == handles.length) {
+        handles = Arrays.copyOf(handles, handleCount * 2);
+        handleRefs = Arrays.copyOf(handleRefs, handleCount * 2);
+      }
+      handle = handleCount++;
+    }
+    handles[handle] = node;
+    return handle;
+  }
+
+  void register(GraphFn fn) { handleRefs[fn.handle] = new HandleRef(fn, releasedHandles); }
+
+  private void releaseHandles() {
+    for (Reference<? extends GraphFn> ref; (ref = releasedHandles.poll()) != null;) {
+      final int handle = ((HandleRef) ref).handle;
+      handles[handle] = UNDEFINED;
+      handleRefs[handle] = null;
+      if (freeHandleCount == freeHandles.length) { freeHandles = Arrays.copyOf(freeHandles, freeHandleCount * 2); }
+      freeHandles[freeHandleCount++] = handle;
+    }
+  }
+
+  private static final class HandleRef extends WeakReference<GraphFn> {
+    final int handle;
+
+    HandleRef(GraphFn fn, ReferenceQueue<GraphFn> queue) {
+      super(fn, queue);
+      this.handle = fn.handle;
+    }
+  }
+}
+
+/**
+ * Lambda reduced by {@link GraphReducer}, applying it reduces the application in the graph.
+ */
+final class GraphFn extends Main.Fn {
+  final GraphReducer reducer;
+  final int handle;
+
+  GraphFn(GraphReducer reducer, int handle) {
+    this.reducer = reducer;
+    this.handle = handle;
+    reducer.register(this);
+  }
+
+  public Main.Atom fn(Main.Atom arg) { return reducer.apply(this, arg); }
+
+  public String toString() { return "<graph#" + handle + ">"; }
+}
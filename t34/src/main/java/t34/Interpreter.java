@@ -0,0 +1,209 @@
+package t34;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tree-walking interpreter tier. Lambdas start as {@link InterpretedFn} and get promoted to the generated classes
+ * once they have been invoked {@code compileThreshold} times, zero threshold compiles every lambda right away.
+ * Compilation happens in the invoking thread or, with background compilation enabled, in a daemon thread while
+ * the lambda keeps being interpreted.
+ * The interpreter resolves symbols the same way the generated code does, so both tiers are interchangeable.
+ */
+final class Interpreter {
+  static final Main.Atom[] NO_CLOSURE = new Main.Atom[0];
+
+  private volatile int compileThreshold;
+  private volatile boolean backgroundCompilation;
+  private final AtomicLong promotions = new AtomicLong();
+
+  public Interpreter(int compileThreshold, boolean backgroundCompilation) {
+    setCompileThreshold(compileThreshold);
+    setBackgroundCompilation(backgroundCompilation);
+  }
+
+  public int getCompileThreshold() { return compileThreshold; }
+
+  public void setCompileThreshold(int compileThreshold) {
+    if (compileThreshold < 0) { throw new IllegalArgumentException("compileThreshold=" + compileThreshold); }
+    this.compileThreshold = compileThreshold;
+  }
+
+  public boolean isBackgroundCompilation() { return backgroundCompilation; }
+  public void setBackgroundCompilation(boolean backgroundCompilation) {
+    this.backgroundCompilation = backgroundCompilation;
+  }
+
+  /** @return true if lambdas are interpreted before they get compiled */
+  public boolean isTiered() { return compileThreshold > 0; }
+
+  /** @return number of lambdas compiled after reaching the threshold */
+  public long getPromotions() { return promotions.get(); }
+
+  /**
+   * Evaluates the node within the lambda body.
+   *
+   * @param owner lambda the node belongs to or null for the top level expression
+   * @param closure values of the owner's {@link Lambda#getCaptures() captures}
+   * @param arg value of the owner's variable
+   */
+  public Main.Atom eval(PrimitiveAtom node, Lambda owner, Main.Atom[] closure, Main.Atom arg) {
+    if (node instanceof Symbol) {
+      final Location location = ((Symbol) node).location;
+      if (location == SimpleLocation.VAR) { return arg; }
+      if (location instanceof GlobalLocation) { return Main.currentEnv().get(((GlobalLocation) location).getSlot()); }
+      return closure[owner.getCaptureIndex(((ClosureLocation) location).getParameterIndex())];
+    }
+
+    if (node instanceof Call) {
+      final Call call = (Call) node;
+      return eval(call.lhs, owner, closure, arg).fn(eval(call.rhs, owner, closure, arg));
+    }
+
+    if (node instanceof Lambda) {
+      final Lambda lambda = (Lambda) node;
+      final int[] captures = lambda.getCaptures();
+      if (captures.length == 0) { return instantiate(lambda, NO_CLOSURE); }
+      final Main.Atom[] nestedClosure = new Main.Atom[captures.length];
+      for (int i = 0; i < captures.length; ++i) {
+        final int level = captures[i];
+        nestedClosure[i] = level == owner.getDepth() ? arg : closure[owner.getCaptureIndex(level)];
+      }
+      return instantiate(lambda, nestedClosure);
+    }
+
+    if (node instanceof Int) { return node; }
+    throw new UnsupportedOperationException("Can't interpret " + node);
+  }
+
+  /** Creates the lambda instance in the current tier of the lambda, closed lambdas share one instance. */
+  public Main.Atom instantiate(Lambda lambda, Main.Atom[] closure) {
+    final LambdaTier tier = lambda.tier;
+    final MethodHandle constructor = tier.constructor;
+    if (constructor != null) { return newInstance(constructor, closure); }
+    if (closure.length > 0) { return new InterpretedFn(this, lambda, closure); }
+
+    Main.Atom result = tier.closedInstance;
+    if (result == null) { // racy initialization is fine, instances of a closed lambda are equivalent
+      result = new InterpretedFn(this, lambda, NO_CLOSURE);
+      tier.closedInstance = result;
+    }
+    return result;
+  }
+
+  /**
+   * Counts the invocation of the interpreted lambda.
+   *
+   * @return instance of the compiled lambda or null if the lambda should be interpreted
+   */
+  Main.Atom promote(Lambda lambda, Main.Atom[] closure) {
+    final LambdaTier tier = lambda.tier;
+    MethodHandle constructor = tier.constructor;
+    if (constructor == null) {
+      final int threshold = compileThreshold;
+      if (tier.invocations.incrementAndGet() < threshold || !tier.queued.compareAndSet(false, true)) {
+        return null;
+      }
+
+      if (backgroundCompilation) {
+        BackgroundCompiler.EXECUTOR.execute(() -> compile(lambda));
+        return null;
+      }
+      constructor = compile(lambda);
+    }
+    return newInstance(constructor, closure);
+  }
+
+  private MethodHandle compile(Lambda lambda) {
+    final LambdaTier tier = lambda.tier;
+    try {
+      final Class<?> lambdaClass = Evaluator.genLambdaClass(lambda);
+      final int closureSize = lambda.getShape().getClosureSize();
+      final MethodHandle constructor;
+      if (closureSize == 0) { // always the shared instance
+        constructor = MethodHandles.dropArguments(MethodHandles.constant(Main.Atom.class,
+            Evaluator.getClosedInstance(lambdaClass)), 0, Main.Atom[].class);
+      } else {
+        final MethodType type = MethodType.methodType(void.class, Collections.nCopies(closureSize, Main.Atom.class));
+        constructor = MethodHandles.publicLookup().findConstructor(lambdaClass, type)
+            .asSpreader(Main.Atom[].class, closureSize)
+            .asType(MethodType.methodType(Main.Atom.class, Main.Atom[].class));
+      }
+      tier.constructor = constructor;
+      promotions.incrementAndGet();
+      return constructor;
+    } catch (Exception e) {
+      throw new IllegalStateException("Unable to compile lambda", e);
+    }
+  }
+
+  private static Main.Atom newInstance(MethodHandle constructor, Main.Atom[] closure) {
+    try {
+      return (Main.Atom) constructor.invokeExact(closure);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException("Unable to instantiate lambda", e);
+    }
+  }
+
+  /** Lazy holder of the compiler thread. */
+  private static final class BackgroundCompiler {
+    static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "t34-compiler");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+}
+
+/**
+ * Tier state of a lambda: number of interpreted invocations and constructor of the compiled class.
+ */
+final class LambdaTier {
+  final AtomicInteger invocations = new AtomicInteger();
+  final AtomicBoolean queued = new AtomicBoolean();
+  volatile MethodHandle constructor;
+  volatile Main.Atom closedInstance; // interpreted instance of the lambda without captures
+}
+
+/**
+ * Lambda instance in the interpreter tier, delegates to the compiled instance once the lambda gets promoted.
+ */
+final class InterpretedFn extends Main.Fn {
+  private final Interpreter interpreter;
+  private final Lambda lambda;
+  private final Main.Atom[] closure;
+  private Main.Atom compiled; // racy caching is fine, all the compiled instances for the same closure are equivalent
+
+  InterpretedFn(Interpreter interpreter, Lambda lambda, Main.Atom[] closure) {
+    this.interpreter = interpreter;
+    this.lambda = lambda;
+    this.closure = closure;
+  }
+
+  public boolean isCompiled() { return compiled != null; }
+
+  public Lambda getLambda() { return lambda; }
+
+  /** @return values of the lambda's {@link Lambda#getCaptures() captures} */
+  public Main.Atom[] getClosure() { return closure; }
+
+  public Main.Atom fn(Main.Atom arg) {
+    Main.Atom target = compiled;
+    if (target == null) {
+      Main.checkInterrupted(); // the compiled code checks on its own
+      target = interpreter.promote(lambda, closure);
+      if (target == null) { return interpreter.eval(lambda.body, lambda, closure, arg); }
+      compiled = target;
+    }
+    return target.fn(arg);
+  }
+}
@@ -0,0 +1,87 @@
+package t34;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with the bucket layout of HdrHistogram: 16 linear buckets per
+ * power of two, so a percentile is off by at most 1/16 of its value, and the whole long range fits 976 buckets.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder total = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    final long value = Math.max(nanos, 0);
+    counts.incrementAndGet(indexOf(value));
+    total.add(value);
+    if (value > max.get()) { max.accumulateAndGet(value, Math::max); }
+  }
+
+  /** @return number of the values recorded */
+  public long getCount() {
+    long result = 0;
+    for (int i = 0; i < BUCKETS; ++i) { result += counts.get(i); }
+    return result;
+  }
+
+  /**
+   * @param percentile from 0 to 100
+   * @return the highest value of the bucket the percentile falls into, not greater than the maximum
+   */
+  public long getPercentile(double percentile) {
+    final long[] snapshot = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      snapshot[i] = counts.get(i);
+      count += snapshot[i];
+    }
+    if (count == 0) { return 0; }
+    final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) { return Math.min(highestValueOf(i), max.get()); }
+    }
+    return max.get();
+  }
+
+  public long getMax() { return max.get(); }
+
+  /** @return mean or 0 if nothing has been recorded */
+  public long getMean() {
+    final long count = getCount();
+    return count > 0 ? total.sum() / count : 0;
+  }
+
+  /** Drops the values recorded so far, the ones being recorded concurrently may survive partially. */
+  public void reset() {
+    for (int i = 0; i < BUCKETS; ++i) { counts.set(i, 0); }
+    total.reset();
+    max.set(0);
+  }
+
+  //
+  // Private
+  //
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) { return (int) value; }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value); // at least SUB_BUCKET_BITS
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long highestValueOf(int index) {
+    if (index < SUB_BUCKETS) { return index; }
+    final int shift = index / SUB_BUCKETS - 1;
+    final long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
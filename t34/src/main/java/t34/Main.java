@@ -1,56 +1,543 @@
 package t34;
 
 import net.sf.cglib.asm.ClassWriter;
+import net.sf.cglib.asm.Handle;
+import net.sf.cglib.asm.Label;
 import net.sf.cglib.asm.MethodVisitor;
 import net.sf.cglib.asm.Opcodes;
-import net.sf.cglib.core.ReflectUtils;
+import net.sf.cglib.asm.Type;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public final class Main {
+  private static final int SCRIPT_DEFINE_BATCH = 1024;
+  private static final int PROFILE_LINES = 30;
 
   public static abstract class Atom {
     public abstract Atom fn(Atom arg);
     public abstract int toInt();
+
+    /** Unboxed {@code fn(arg).toInt()}, numeric functions override it to skip allocation of the intermediate Int. */
+    public int applyInt(int arg) { return fn(Int.valueOf(arg)).toInt(); }
+
+    /**
+     * {@link #toInt()} of the unboxed code, see {@link NumericFn}: a value that is not a number throws
+     * {@link Deoptimization} rather than fails.
+     */
+    public int toIntOrDeoptimize() { throw Deoptimization.INSTANCE; }
+
+    /** {@link #applyInt(int)} of the unboxed code, a result that is not a number throws {@link Deoptimization}. */
+    public int applyIntOrDeoptimize(int arg) { return fn(Int.valueOf(arg)).toIntOrDeoptimize(); }
   }
 
   public static abstract class Fn extends Atom {
     public int toInt() { throw new UnsupportedOperationException("Treating Fn as Int"); }
   }
 
+  /**
+   * Base class of the generated lambdas that may compute a number. Besides the boxed body such lambda has the unboxed
+   * one, which takes and returns int, and is tried first. Once the unboxed body meets a function where it expects
+   * a number, it throws {@link Deoptimization} and the lambda class falls back to the boxed body for good. The bodies
+   * have no side effects, so re-evaluation of the failed call with the boxed body is safe. Any other error of the
+   * unboxed body is the error of the call and leaves the speculation as is.
+   */
+  public static abstract class NumericFn extends Fn {
+    public final Atom fn(Atom arg) {
+      final Speculation speculation = speculation();
+      if (speculation.unboxed && arg instanceof Int) {
+        try {
+          return Int.valueOf(applyUnboxed(arg.toInt()));
+        } catch (Deoptimization e) {
+          speculation.unboxed = false;
+        }
+      }
+      return applyBoxed(arg);
+    }
+
+    public final int applyInt(int arg) { return applyBoxedIfDeoptimized(arg).toInt(); }
+
+    public final int applyIntOrDeoptimize(int arg) { return applyBoxedIfDeoptimized(arg).toIntOrDeoptimize(); }
+
+    /** Boxes the argument for the boxed operations within the unboxed body. */
+    public static Atom box(int value) { return Int.valueOf(value); }
+
+    /** @return speculation state shared by all the instances of the lambda class */
+    protected abstract Speculation speculation();
+
+    protected abstract Atom applyBoxed(Atom arg);
+
+    protected abstract int applyUnboxed(int arg);
+
+    /** @return result of the unboxed body as Int, or the result of the boxed body once the speculation fails */
+    private Atom applyBoxedIfDeoptimized(int arg) {
+      final Speculation speculation = speculation();
+      if (speculation.unboxed) {
+        try {
+          return Int.valueOf(applyUnboxed(arg));
+        } catch (Deoptimization e) {
+          speculation.unboxed = false;
+        }
+      }
+      return applyBoxed(Int.valueOf(arg));
+    }
+  }
+
+  /**
+   * Thrown by the unboxed body of a {@link NumericFn} that meets a function where it expects a number. Preallocated
+   * and without a stack trace, as it is control flow rather than an error.
+   */
+  public static final class Deoptimization extends RuntimeException {
+    static final Deoptimization INSTANCE = new Deoptimization();
+
+    private Deoptimization() { super("Unboxed code has met a function", null, false, false); }
+  }
+
+  /** Whether the unboxed body of a {@link NumericFn} class still holds. */
+  public static final class Speculation {
+    volatile boolean unboxed = true;
+
+    public boolean isUnboxed() { return unboxed; }
+  }
+
+  /**
+   * Counters of a lambda class generated in the profiling mode, see {@link Profiler}. The class holds its profile
+   * in a static field, the only strong reference to it, and bumps it on every call of its body and in its
+   * constructor.
+   */
+  public static final class LambdaProfile {
+    private static final int CALLS = 0;
+    private static final int ALLOCATIONS = 1;
+
+    private final String className;
+    private final String source;
+    private final SourcePosition position;
+    private final StripedCounters counters = new StripedCounters(2);
+
+    LambdaProfile(String className, String source, SourcePosition position) {
+      this.className = className;
+      this.source = source;
+      this.position = position;
+    }
+
+    /** @return profile of the generated class, called from its static initializer */
+    public static LambdaProfile of(Class<?> lambdaClass) { return Profiler.profileOf(lambdaClass); }
+
+    public void call() { counters.increment(CALLS); }
+
+    public void allocate() { counters.increment(ALLOCATIONS); }
+
+    public String getClassName() { return className; }
+
+    /** @return source text of the lambda, the first one compiled into the class among alpha-equivalent ones */
+    public String getSource() { return source; }
+
+    /** @return position of the same lambda in its script, null if it has not been read from a script */
+    public SourcePosition getPosition() { return position; }
+
+    public long getCalls() { return counters.sum(CALLS); }
+
+    public long getAllocations() { return counters.sum(ALLOCATIONS); }
+
+    void reset() { counters.reset(); }
+  }
+
+  /**
+   * Global environment: values of the global symbols in a flat table indexed by the {@link GlobalLocation} slots of
+   * its {@link #getSymbols() symbol table}. Each slot that has been linked from the generated code has a {@link SwitchPoint}, invalidated on redefinition.
+   * Reads don't lock, so that the parallel tasks don't serialize on them, writes are synchronized.
+   */
   public static class Env {
-    @SuppressWarnings("unused") public Atom inc() { return Inc.INSTANCE; }
-    @SuppressWarnings("unused") public Atom dec() { return Dec.INSTANCE; }
+    private volatile AtomicReferenceArray<Atom> values = new AtomicReferenceArray<>(0); // replaced on growth
+    private SwitchPoint[] switchPoints = new SwitchPoint[0];
+    private final GlobalLocation.Table symbols;
+
+    /** Creates the environment on {@link GlobalLocation#SHARED}. */
+    public Env() { this(GlobalLocation.SHARED); }
+
+    public Env(GlobalLocation.Table symbols) {
+      this.symbols = symbols;
+      define(symbols.of("inc").getSlot(), Inc.INSTANCE);
+      define(symbols.of("dec").getSlot(), Dec.INSTANCE);
+      define(symbols.of(Thunk.DELAY_SYMBOL).getSlot(), Delay.INSTANCE);
+    }
+
+    @SuppressWarnings("unused") public Atom inc() { return lookup("inc"); }
+    @SuppressWarnings("unused") public Atom dec() { return lookup("dec"); }
+
+    /** @return table numbering the slots of this environment */
+    public GlobalLocation.Table getSymbols() { return symbols; }
+
+    public Atom lookup(String symbol) { return get(slotOf(symbol)); }
+
+    /** @return slot of the symbol, an undefined one isn't added to the symbol table */
+    public int slotOf(String symbol) {
+      final GlobalLocation location = symbols.find(symbol);
+      if (location == null) { throw new IllegalStateException("Undefined symbol " + symbol); }
+      return location.getSlot();
+    }
+
+    public Atom get(int slot) {
+      final AtomicReferenceArray<Atom> current = values;
+      final Atom result = slot < current.length() ? current.get(slot) : null;
+      if (result == null) { throw new IllegalStateException("Undefined symbol " + symbols.symbolOf(slot)); }
+      return result;
+    }
+
+    public boolean isDefined(int slot) {
+      final AtomicReferenceArray<Atom> current = values;
+      return slot < current.length() && current.get(slot) != null;
+    }
+
+    public void define(int slot, Atom value) { defineAll(new int[] { slot }, new Atom[] { value }); }
+
+    /**
+     * Binds all the given slots at once, the usages linked to the previous values are invalidated in one step.
+     */
+    public void defineAll(int[] slots, Atom[] newValues) {
+      if (slots.length != newValues.length) { throw new IllegalArgumentException("slots and values mismatch"); }
+      final List<SwitchPoint> invalidated = new ArrayList<>();
+      synchronized (this) {
+        int maxSlot = -1;
+        for (final int slot : slots) { maxSlot = Math.max(maxSlot, slot); }
+        ensureCapacity(maxSlot + 1);
+        for (int i = 0; i < slots.length; ++i) {
+          final int slot = slots[i];
+          values.set(slot, newValues[i]);
+          if (switchPoints[slot] != null) {
+            invalidated.add(switchPoints[slot]);
+            switchPoints[slot] = null;
+          }
+        }
+      }
+      if (!invalidated.isEmpty()) {
+        SwitchPoint.invalidateAll(invalidated.toArray(new SwitchPoint[invalidated.size()]));
+      }
+    }
+
+    /**
+     * Binds the slot to the value unless it has been bound to something else than the expected value.
+     *
+     * @return true if the slot has been bound
+     */
+    public boolean replace(int slot, Atom expected, Atom value) {
+      final SwitchPoint invalidated;
+      synchronized (this) {
+        if (slot >= values.length() || values.get(slot) != expected) { return false; }
+        values.set(slot, value);
+        invalidated = switchPoints[slot];
+        switchPoints[slot] = null;
+      }
+      if (invalidated != null) { SwitchPoint.invalidateAll(new SwitchPoint[] { invalidated }); }
+      return true;
+    }
+
+    public int size() {
+      final AtomicReferenceArray<Atom> current = values;
+      int result = 0;
+      for (int i = 0; i < current.length(); ++i) { result += (current.get(i) != null ? 1 : 0); }
+      return result;
+    }
+
+    /** @return upper bound of the defined slots */
+    int capacity() { return values.length(); }
+
+    synchronized SwitchPoint switchPoint(int slot) {
+      ensureCapacity(slot + 1);
+      SwitchPoint result = switchPoints[slot];
+      if (result == null) {
+        result = new SwitchPoint();
+        switchPoints[slot] = result;
+      }
+      return result;
+    }
+
+    private void ensureCapacity(int capacity) {
+      final AtomicReferenceArray<Atom> current = values;
+      if (capacity > current.length()) {
+        final int newCapacity = Math.max(capacity, Math.max(16, current.length() * 2));
+        final AtomicReferenceArray<Atom> grown = new AtomicReferenceArray<>(newCapacity);
+        for (int i = 0; i < current.length(); ++i) { grown.set(i, current.get(i)); }
+        values = grown; // the writes go to the new array only, they hold the lock
+        switchPoints = Arrays.copyOf(switchPoints, newCapacity);
+      }
+    }
+  }
+
+  /** Environment of the threads that are not bound to a session, see {@link #bindEnv(Env)}. */
+  public static volatile Main.Env ENV = new Main.Env(); // read by the parallel tasks, see ParallelEvaluator
+
+  private static final ThreadLocal<Env> SESSION_ENV = new ThreadLocal<>();
+  private static volatile boolean sessionEnvs; // the thread local is looked up only once some thread has been bound
+  private static volatile boolean interruptible; // the interrupted status is read only once evaluations may be cancelled
+
+  /** Lets the evaluations be cancelled from now on by interrupting their threads, see {@link #checkInterrupted()}. */
+  public static void enableInterruption() { interruptible = true; }
+
+  /**
+   * Called on every invocation of a lambda: once {@link #enableInterruption() enabled}, an interrupted thread stops
+   * evaluating with {@link CancellationException}. The interrupted status is cleared, so the thread may go on.
+   */
+  public static void checkInterrupted() {
+    if (interruptible && Thread.interrupted()) { throw new CancellationException("Evaluation interrupted"); }
+  }
+
+  /** @return environment of the session the current thread serves or {@link #ENV} */
+  public static Env currentEnv() {
+    if (sessionEnvs) {
+      final Env env = SESSION_ENV.get();
+      if (env != null) { return env; }
+    }
+    return ENV;
+  }
+
+  /**
+   * Binds the current thread to the environment of a session, null binds it back to {@link #ENV}.
+   *
+   * @return previous binding of the thread, null if it used {@link #ENV}
+   */
+  public static Env bindEnv(Env env) {
+    final Env previous = sessionEnvs ? SESSION_ENV.get() : null;
+    if (env == null) {
+      SESSION_ENV.remove();
+    } else {
+      sessionEnvs = true;
+      SESSION_ENV.set(env);
+    }
+    return previous;
+  }
+
+  /**
+   * Bootstrap methods for invokedynamic instructions in the generated code.
+   * A global symbol is linked to its current value as a constant guarded by the slot's {@link SwitchPoint},
+   * which is invalidated once the symbol gets redefined, and by the identity of the {@link #currentEnv() current
+   * environment}. Generated classes are shared by the sessions, so a call site keeps a constant per environment for
+   * up to {@link #MAX_LINKED_ENVS} environments, a site shared by more of them looks the value up on every call.
+   * Slots are resolved by the symbol in each environment, as the sessions number them on their own, and the linked
+   * environments are held weakly, so that a site doesn't keep the environment of a closed session.
+   */
+  public static final class Globals {
+    private Globals() {}
+
+    private static final MethodHandle RELINK;
+    private static final MethodHandle CURRENT_ENV;
+    private static final MethodHandle SAME;
+    private static final MethodHandle LOOKUP;
+    private static final int MAX_LINKED_ENVS = 4;
+
+    static {
+      final MethodHandles.Lookup lookup = MethodHandles.lookup();
+      try {
+        RELINK = lookup.findVirtual(GlobalCallSite.class, "relink", MethodType.methodType(Atom.class));
+        CURRENT_ENV = lookup.findStatic(Main.class, "currentEnv", MethodType.methodType(Env.class));
+        SAME = lookup.findStatic(Globals.class, "same",
+            MethodType.methodType(boolean.class, Env.class, WeakReference.class));
+        LOOKUP = lookup.findStatic(Globals.class, "lookup", MethodType.methodType(Atom.class, String.class));
+      } catch (ReflectiveOperationException e) {
+        throw new ExceptionInInitializerError(e);
+      }
+    }
+
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapGlobal(MethodHandles.Lookup caller, String symbol, MethodType type) {
+      return new GlobalCallSite(symbol, type);
+    }
+
+    @SuppressWarnings("unused")
+    public static CallSite bootstrapInt(MethodHandles.Lookup caller, String name, MethodType type, int value) {
+      return new ConstantCallSite(MethodHandles.constant(Atom.class, Int.valueOf(value)));
+    }
+
+    private static boolean same(Env env, WeakReference<Env> linked) { return linked.get() == env; }
+
+    private static Atom lookup(String symbol) { return currentEnv().lookup(symbol); }
+
+    /** Value of the symbol in one environment, valid until the switch point is invalidated. */
+    private static final class Link {
+      final WeakReference<Env> env;
+      final SwitchPoint switchPoint;
+      final Atom value;
+
+      Link(Env env, SwitchPoint switchPoint, Atom value) {
+        this.env = new WeakReference<>(env);
+        this.switchPoint = switchPoint;
+        this.value = value;
+      }
+    }
+
+    private static final class GlobalCallSite extends MutableCallSite {
+      private static final AtomicReferenceFieldUpdater<GlobalCallSite, Link[]> LINKS =
+          AtomicReferenceFieldUpdater.newUpdater(GlobalCallSite.class, Link[].class, "links");
+
+      private final String symbol;
+      private volatile Link[] links = new Link[0]; // null once the site looks the value up on every call
+
+      GlobalCallSite(String symbol, MethodType type) {
+        super(type);
+        this.symbol = symbol;
+        setTarget(RELINK.bindTo(this)); // link on first call, so that forward references are allowed
+      }
+
+      /**
+       * Called on a miss of the linked target. A racing relink may install an older target, which only costs
+       * another miss.
+       */
+      @SuppressWarnings("unused")
+      Atom relink() {
+        final Env env = currentEnv();
+        for (;;) {
+          final Link[] current = links;
+          if (current == null) {
+            setTarget(MethodHandles.insertArguments(LOOKUP, 0, symbol));
+            return env.lookup(symbol);
+          }
+
+          final List<Link> valid = new ArrayList<>(current.length + 1);
+          for (final Link link : current) { // redefined values, collected and stale links of this env are dropped
+            final Env linked = link.env.get();
+            if (linked != null && linked != env && !link.switchPoint.hasBeenInvalidated()) { valid.add(link); }
+          }
+          if (valid.size() >= MAX_LINKED_ENVS) { // shared by several sessions, the lookup target is set above
+            LINKS.compareAndSet(this, current, null);
+            continue;
+          }
+
+          final int slot = env.slotOf(symbol);
+          final SwitchPoint switchPoint = env.switchPoint(slot); // taken before the value, so a racing define relinks
+          final Atom value = env.get(slot);
+          valid.add(new Link(env, switchPoint, value));
+          final Link[] linked = valid.toArray(new Link[valid.size()]);
+          if (LINKS.compareAndSet(this, current, linked)) {
+            setTarget(target(linked));
+            return value;
+          }
+        }
+      }
+
+      // checks the environments in turn, the current one is looked up once
+      private MethodHandle target(Link[] linked) {
+        final MethodHandle fallback = RELINK.bindTo(this);
+        MethodHandle result = MethodHandles.dropArguments(fallback, 0, Env.class);
+        for (int i = linked.length - 1; i >= 0; --i) {
+          final Link link = linked[i];
+          result = MethodHandles.guardWithTest(MethodHandles.insertArguments(SAME, 1, link.env),
+              MethodHandles.dropArguments(link.switchPoint.guardWithTest(
+                  MethodHandles.constant(Atom.class, link.value), fallback), 0, Env.class),
+              result);
+        }
+        return MethodHandles.foldArguments(result, CURRENT_ENV);
+      }
+    }
   }
 
-  public static Main.Env ENV = new Main.Env();
+  public static void main(String[] args) throws Exception {
+    final Snapshot prelude = Snapshot.fromSystemProperties();
+    if (prelude != null) { prelude.bind(ENV); }
+    if (args.length > 2 && "--snapshot".equals(args[0])) {
+      Snapshot.setKeepClasses(true);
+      shareClassesByShape();
+      try (final ScriptReader r = ScriptReader.open(Paths.get(args[1]))) {
+        if (!runScript(r)) { System.exit(1); }
+      }
+      System.out.println(";; Written " + Snapshot.write(ENV, Paths.get(args[2])) + " globals to " + args[2]);
+      return;
+    }
+    if (args.length > 0 && "--server".equals(args[0])) {
+      final int port = args.length > 1 ? Integer.parseInt(args[1]) : Server.DEFAULT_PORT;
+      try (final Server server = new Server(port, prelude)) {
+        System.out.println(";; Listening on port " + server.getPort());
+        server.serve();
+      }
+      return;
+    }
+    if (args.length > 0) { // batch mode
+      try (final ScriptReader r = ScriptReader.open(Paths.get(args[0]))) {
+        if (!runScript(r)) { System.exit(1); }
+      }
+      return;
+    }
 
-  public static void main(String[] args) throws IOException {
     System.out.println(";; Simple Lambda Calc Interpreter");
-    try (final BufferedReader r = new BufferedReader(new InputStreamReader(System.in))) {
+    shareClassesByShape();
+    try (final ScriptReader r = new ScriptReader(new InputStreamReader(System.in))) {
       startRepl(r);
     }
     System.out.println(";; Goodbye!");
   }
 
-  private static void startRepl(BufferedReader r) throws IOException {
-    final Parser parser = new Parser();
-    final AstNodeReader reader = new AstNodeReader(parser);
+  /** Turns the line numbers off unless {@code t34.lineNumbers} is set, so that equivalent lambdas share a class. */
+  private static void shareClassesByShape() {
+    if (System.getProperty("t34.lineNumbers") == null) { Evaluator.setLineNumbers(false); }
+  }
+
+  private static void startRepl(ScriptReader r) throws IOException {
     final Evaluator evaluator = new Evaluator();
 
     for (;;) {
       System.out.print("> ");
-      final String line = r.readLine();
-      if ("(quit)".equals(line)) { return; }
-      parser.init(line.toCharArray(), 0, line.length());
+      final PrimitiveAtom node;
+      try {
+        if (!r.nextExpression() || r.isExpression("(quit)")) { return; }
+        if (r.isExpression("(profile)")) {
+          System.out.println(Profiler.report(PROFILE_LINES));
+          continue;
+        }
+        if (r.isExpression("(profile reset)")) {
+          Profiler.reset();
+          continue;
+        }
+        if (r.isExpression("(stats)")) {
+          System.out.println(";; " + Evaluator.CLASS_CACHE + "\n;; " + GeneratedClassLoader.getStats() +
+              (Evaluator.getBytecodeCache() != null ? "\n;; " + Evaluator.getBytecodeCache() : "") +
+              "\n;; interpreter(compileThreshold=" + evaluator.getInterpreter().getCompileThreshold() +
+              ", promotions=" + evaluator.getInterpreter().getPromotions() + ")\n;; optimizer(level=" +
+              evaluator.getOptimizer().getLevel() + ", betaReductions=" + evaluator.getOptimizer().getBetaReductions() +
+              ", inlines=" + evaluator.getOptimizer().getInlines() + ", folds=" + evaluator.getOptimizer().getFolds() +
+              ")" + (Evaluator.getMetrics() != Metrics.NONE ? "\n;; " + Evaluator.getMetrics() : ""));
+          continue;
+        }
+        node = evaluator.optimize(r.parse(evaluator.scope));
+      } catch (RuntimeException e) {
+        System.err.println(";; Syntax error: " + e.getMessage());
+        continue;
+      }
       try {
         final long start = System.nanoTime();
-        final Atom result = evaluator.eval(reader.read(evaluator.scope));
+        final Atom result = evaluator.eval(node);
         final long delta = System.nanoTime() - start;
         System.out.println(result + "\n;; time=" + delta + " nanoseconds (~" +
             TimeUnit.NANOSECONDS.toMillis(delta) + " msec, ~" + TimeUnit.NANOSECONDS.toSeconds(delta) + " sec)");
@@ -60,6 +547,41 @@ public final class Main {
       }
     }
   }
+
+  /**
+   * Runs the script without prompts: prints the values of expressions, consecutive definitions are bound
+   * in batches through {@link Evaluator#defineAll(List)}.
+   *
+   * @return false if the script failed
+   */
+  static boolean runScript(ScriptReader r) throws IOException {
+    final Evaluator evaluator = new Evaluator();
+    final List<Define> defines = new ArrayList<>();
+    final int[] defineLines = new int[SCRIPT_DEFINE_BATCH];
+    try {
+      for (PrimitiveAtom node; (node = r.read(evaluator.scope)) != null;) {
+        node = evaluator.optimize(node);
+        if (node instanceof Define) {
+          defineLines[defines.size()] = r.getLine();
+          defines.add((Define) node);
+          if (defines.size() < SCRIPT_DEFINE_BATCH) { continue; }
+        }
+        evaluator.defineAll(defines);
+        defines.clear();
+        if (!(node instanceof Define)) { System.out.println(evaluator.eval(node)); }
+      }
+      evaluator.defineAll(defines);
+      return true;
+    } catch (DefinitionException e) { // read ahead of the failed one, the line is the one of the definition
+      System.err.println(";; Error at line " + defineLines[e.index] + " in definition of " + e.define.sym);
+      e.getCause().printStackTrace(System.err);
+      return false;
+    } catch (Exception e) {
+      System.err.println(";; Error at line " + r.getLine());
+      e.printStackTrace(System.err);
+      return false;
+    }
+  }
 }
 
 abstract class PrimitiveAtom extends Main.Atom {
@@ -72,14 +594,30 @@ final class Int extends PrimitiveAtom {
   private final static Int[] CACHE = new Int[CACHE_SIZE];
   static { for (int i = 0; i < CACHE.length; ++i) { CACHE[i] = new Int(i); } }
 
+  private static final StripedCounters CACHE_COUNTERS = new StripedCounters(2);
+  private static final int HITS = 0;
+  private static final int MISSES = 1;
+
   private final int value;
   private Int(int value) { this.value = value; }
 
   public static Int valueOf(int value) {
-    return (value >= 0 && value < CACHE_SIZE) ? CACHE[value] : new Int(value);
+    if (value >= 0 && value < CACHE_SIZE) {
+      if (EvaluatorMetrics.ENABLED) { CACHE_COUNTERS.increment(HITS); }
+      return CACHE[value];
+    }
+    if (EvaluatorMetrics.ENABLED) { CACHE_COUNTERS.increment(MISSES); }
+    return new Int(value);
   }
 
+  /** @return number of the values taken from the cache, 0 with {@code t34.metrics=false} */
+  static long getCacheHits() { return CACHE_COUNTERS.sum(HITS); }
+
+  /** @return number of the values allocated */
+  static long getCacheMisses() { return CACHE_COUNTERS.sum(MISSES); }
+
   public int toInt() { return value; }
+  public int toIntOrDeoptimize() { return value; }
   public boolean equals(Object o) { return this == o || o instanceof Int && value == ((Int) o).value; }
   public int hashCode() { return value; }
   public String toString() { return Integer.toString(value); }
@@ -89,6 +627,8 @@ final class Inc extends Main.Fn {
   private Inc() {}
   public static final Inc INSTANCE = new Inc();
   public Main.Atom fn(Main.Atom arg) { return Int.valueOf(arg.toInt() + 1); }
+  public int applyInt(int arg) { return arg + 1; }
+  public int applyIntOrDeoptimize(int arg) { return arg + 1; }
   public String toString() { return "<lambda#inc>"; }
 }
 
@@ -96,9 +636,222 @@ final class Dec extends Main.Fn {
   private Dec() {}
   public static final Dec INSTANCE = new Dec();
   public Main.Atom fn(Main.Atom arg) { return Int.valueOf(arg.toInt() - 1); }
+  public int applyInt(int arg) { return arg - 1; }
+  public int applyIntOrDeoptimize(int arg) { return arg - 1; }
   public String toString() { return "<lambda#dec>"; }
 }
 
+/**
+ * Church numeral held as a count: {@code n(s)(z)} applies {@code s} to {@code z} n times in a loop instead of
+ * going through a chain of successor closures.
+ * Applying a numeral to a numeral is exponentiation, {@code (e b)} is extensionally equal to {@code b^e}.
+ */
+final class ChurchNat extends Main.Fn {
+  public static final ChurchNat ZERO = new ChurchNat(0);
+
+  private final int count;
+
+  private ChurchNat(int count) { this.count = count; }
+
+  public static ChurchNat valueOf(int count) { return count == 0 ? ZERO : new ChurchNat(count); }
+
+  public int getCount() { return count; }
+
+  public Main.Atom fn(Main.Atom s) {
+    if (s instanceof ChurchNat && count != 0) { // s^0 is the numeral one, which is not the identity zero returns
+      final ChurchNat pow = ChurchNumerals.pow((ChurchNat) s, this);
+      if (pow != null) { return pow; }
+    }
+    return new Iteration(count, s);
+  }
+
+  @Override
+  public boolean equals(Object o) { return this == o || o instanceof ChurchNat && count == ((ChurchNat) o).count; }
+
+  @Override
+  public int hashCode() { return count; }
+
+  @Override
+  public String toString() { return "<church#" + count + ">"; }
+
+  /** Partially applied numeral, {@code n(s)}. */
+  private static final class Iteration extends Main.Fn {
+    private final int count;
+    private final Main.Atom s;
+
+    Iteration(int count, Main.Atom s) {
+      this.count = count;
+      this.s = s;
+    }
+
+    public Main.Atom fn(Main.Atom z) {
+      int i = 0;
+      Main.Atom result = z;
+      if (z instanceof Int) { // box once instead of on every step
+        if (s == Inc.INSTANCE || s == Dec.INSTANCE) { return Int.valueOf(applyInt(z.toInt())); }
+        int unboxed = z.toInt();
+        try {
+          for (; i < count; ++i) {
+            unboxed = s.applyIntOrDeoptimize(unboxed);
+          }
+          return Int.valueOf(unboxed);
+        } catch (Main.Deoptimization e) { // s has returned a function, the steps so far are kept
+          result = Int.valueOf(unboxed);
+        }
+      }
+
+      for (; i < count; ++i) {
+        result = s.fn(result);
+      }
+      return result;
+    }
+
+    public int applyInt(int z) {
+      // inc and dec applied n times are known in advance, overflow wraps the same way
+      if (s == Inc.INSTANCE) { return z + count; }
+      if (s == Dec.INSTANCE) { return z - count; }
+
+      int result = z;
+      for (int i = 0; i < count; ++i) {
+        result = s.applyInt(result);
+      }
+      return result;
+    }
+
+    public int applyIntOrDeoptimize(int z) {
+      if (s == Inc.INSTANCE) { return z + count; }
+      if (s == Dec.INSTANCE) { return z - count; }
+
+      int result = z;
+      for (int i = 0; i < count; ++i) {
+        result = s.applyIntOrDeoptimize(result);
+      }
+      return result;
+    }
+  }
+}
+
+/**
+ * Recognizes definitions of zero, successor and arithmetics on Church numerals and replaces them with the
+ * operations on {@link ChurchNat} counts. Each operation falls back to the compiled lambda once any of its
+ * arguments is not a {@link ChurchNat} or the result doesn't fit int.
+ */
+final class ChurchNumerals {
+  private ChurchNumerals() {}
+
+  private enum Op { SUCC, ADD, MUL, POW }
+
+  private static final LambdaShape ZERO = shapeOf("(lambda (s) (lambda (z) z))");
+  private static final Map<LambdaShape, Op> OPERATIONS = new HashMap<>();
+
+  static {
+    OPERATIONS.put(shapeOf("(lambda (n) (lambda (s) (lambda (z) (s ((n s) z)))))"), Op.SUCC);
+    OPERATIONS.put(shapeOf("(lambda (n) (lambda (s) (lambda (z) ((n s) (s z)))))"), Op.SUCC);
+    OPERATIONS.put(shapeOf("(lambda (m) (lambda (n) (lambda (s) (lambda (z) ((m s) ((n s) z))))))"), Op.ADD);
+    OPERATIONS.put(shapeOf("(lambda (m) (lambda (n) (lambda (s) (lambda (z) ((n s) ((m s) z))))))"), Op.ADD);
+    OPERATIONS.put(shapeOf("(lambda (m) (lambda (n) (lambda (s) (m (n s)))))"), Op.MUL);
+    OPERATIONS.put(shapeOf("(lambda (m) (lambda (n) (lambda (s) (n (m s)))))"), Op.MUL);
+    OPERATIONS.put(shapeOf("(lambda (b) (lambda (e) (e b)))"), Op.POW);
+  }
+
+  /**
+   * @return numeral or operation equivalent to the given lambda or the compiled lambda itself if the lambda is
+   * not recognized
+   */
+  public static Main.Atom recognize(Lambda lambda, Main.Atom compiled) {
+    final LambdaShape shape = lambda.getShape();
+    if (ZERO.equals(shape)) { return ChurchNat.ZERO; }
+    final Op op = OPERATIONS.get(shape);
+    if (op == null) { return compiled; }
+    return op == Op.SUCC ? new Succ(compiled) : new Binary(op, compiled);
+  }
+
+  /** @return name of the recognized operation or null if the atom is not one */
+  static String operationOf(Main.Atom atom) {
+    if (atom instanceof Succ) { return "succ"; }
+    if (atom instanceof Binary) { return ((Binary) atom).op.name().toLowerCase(); }
+    return null;
+  }
+
+  /** @return compiled lambda of the recognized operation */
+  static Main.Atom fallbackOf(Main.Atom operation) {
+    return operation instanceof Succ ? ((Succ) operation).fallback : ((Binary) operation).fallback;
+  }
+
+  /** @return recognized operation of the given {@link #operationOf(Main.Atom) name} */
+  static Main.Atom operation(String name, Main.Atom fallback) {
+    return "succ".equals(name) ? new Succ(fallback) : new Binary(Op.valueOf(name.toUpperCase()), fallback);
+  }
+
+  static ChurchNat pow(ChurchNat b, ChurchNat e) {
+    long result = 1;
+    for (int i = 0; i < e.getCount(); ++i) {
+      result *= b.getCount();
+      if (result > Integer.MAX_VALUE) { return null; }
+      if (result == 0 || result == 1) { break; } // 0^n and 1^n won't change
+    }
+    return ChurchNat.valueOf((int) result);
+  }
+
+  private static ChurchNat apply(Op op, ChurchNat m, ChurchNat n) {
+    final long a = m.getCount();
+    final long b = n.getCount();
+    final long result;
+    switch (op) {
+      case ADD: result = a + b; break;
+      case MUL: result = a * b; break;
+      case POW: return b != 0 ? pow(m, n) : null; // (zero b) is the identity, not the numeral one
+      default: throw new IllegalArgumentException("Not a binary operation " + op);
+    }
+    return result <= Integer.MAX_VALUE ? ChurchNat.valueOf((int) result) : null;
+  }
+
+  private static LambdaShape shapeOf(String source) {
+    final Parser parser = new Parser().init(source.toCharArray(), 0, source.length());
+    return ((Lambda) new AstNodeReader(parser).read(new GlobalLexicalScope())).getShape();
+  }
+
+  private static final class Succ extends Main.Fn {
+    private final Main.Atom fallback;
+
+    Succ(Main.Atom fallback) { this.fallback = fallback; }
+
+    public Main.Atom fn(Main.Atom n) {
+      if (n instanceof ChurchNat && ((ChurchNat) n).getCount() < Integer.MAX_VALUE) {
+        return ChurchNat.valueOf(((ChurchNat) n).getCount() + 1);
+      }
+      return fallback.fn(n);
+    }
+
+    public String toString() { return "<church#succ>"; }
+  }
+
+  private static final class Binary extends Main.Fn {
+    private final Op op;
+    private final Main.Atom fallback;
+
+    Binary(Op op, Main.Atom fallback) {
+      this.op = op;
+      this.fallback = fallback;
+    }
+
+    public Main.Atom fn(final Main.Atom m) {
+      if (!(m instanceof ChurchNat)) { return fallback.fn(m); }
+      return new Main.Fn() {
+        public Main.Atom fn(Main.Atom n) {
+          if (n instanceof ChurchNat) {
+            final ChurchNat result = apply(op, (ChurchNat) m, (ChurchNat) n);
+            if (result != null) { return result; }
+          }
+          return fallback.fn(m).fn(n);
+        }
+      };
+    }
+
+    public String toString() { return "<church#" + op.name().toLowerCase() + ">"; }
+  }
+}
+
 abstract class TextAtom extends PrimitiveAtom {
   private final String text;
   public TextAtom(String text) { this.text = text; }
@@ -122,13 +875,38 @@ final class Symbol extends TextAtom {
   }
 }
 
+/**
+ * Place of a list in the source, kept by {@link Call} and {@link Lambda} for the line numbers of the generated code.
+ * Symbols have none, a symbol node is shared by all the uses of the variable.
+ */
+final class SourcePosition {
+  /** Name of the source file or null if the source is not a file. */
+  public final String file;
+  /** 1-based line of the open brace. */
+  public final int line;
+  /** 1-based column of the open brace. */
+  public final int column;
+
+  public SourcePosition(String file, int line, int column) {
+    this.file = file;
+    this.line = line;
+    this.column = column;
+  }
+
+  public String toString() { return (file != null ? file : "<input>") + ':' + line + ':' + column; }
+}
+
 final class Call extends PrimitiveAtom {
   public final PrimitiveAtom lhs;
   public final PrimitiveAtom rhs;
+  public final SourcePosition position; // null if unknown
 
-  public Call(PrimitiveAtom lhs, PrimitiveAtom rhs) {
+  public Call(PrimitiveAtom lhs, PrimitiveAtom rhs) { this(lhs, rhs, null); }
+
+  public Call(PrimitiveAtom lhs, PrimitiveAtom rhs, SourcePosition position) {
     this.lhs = lhs;
     this.rhs = rhs;
+    this.position = position;
   }
 
   public String toString() { return "<call>"; }
@@ -137,13 +915,258 @@ final class Call extends PrimitiveAtom {
 final class Lambda extends PrimitiveAtom {
   public final LexicalScope scope;
   public final PrimitiveAtom body;
+  public final SourcePosition position; // null if unknown
+  final LambdaTier tier = new LambdaTier();
+  private LambdaShape shape; // lazily computed, racy initialization is fine as shape is immutable
+  private int[] captures; // lazily computed, same as shape
+  private String lines; // lazily computed, same as shape
+
+  public Lambda(LexicalScope scope, PrimitiveAtom body) { this(scope, body, null); }
 
-  public Lambda(LexicalScope scope, PrimitiveAtom body) {
+  public Lambda(LexicalScope scope, PrimitiveAtom body, SourcePosition position) {
     this.scope = scope;
     this.body = body;
+    this.position = position;
+  }
+
+  public LambdaShape getShape() {
+    LambdaShape result = shape;
+    if (result == null) {
+      result = LambdaShape.of(this);
+      shape = result;
+    }
+    return result;
+  }
+
+  /**
+   * @return script file and line of every lambda and call of the tree, empty if the tree is not read from a script;
+   *         with {@link Evaluator#isLineNumbers()} the generated class has them in its line numbers, so
+   *         alpha-equivalent lambdas share a class only if they are equal
+   */
+  public String getLines() {
+    String result = lines;
+    if (result == null) {
+      final StringBuilder builder = new StringBuilder();
+      appendLine(builder, position);
+      appendLines(builder, body);
+      result = builder.toString();
+      lines = result;
+    }
+    return result;
+  }
+
+  /** @return de Bruijn level of the lambda's variable, i.e. number of the enclosing lambdas */
+  public int getDepth() { return scope.getLocalClosureLocation().getParameterIndex(); }
+
+  /**
+   * Free variables of the lambda: sorted de Bruijn levels of the enclosing lambdas' variables used by the body or
+   * by the nested lambdas. Closure of the lambda holds their values only, in this order.
+   */
+  public int[] getCaptures() {
+    int[] result = captures;
+    if (result == null) {
+      final BitSet levels = new BitSet();
+      collectCaptures(body, getDepth(), levels);
+      result = levels.stream().toArray();
+      captures = result;
+    }
+    return result;
+  }
+
+  /** @return index of the closure field holding the variable of the given de Bruijn level */
+  public int getCaptureIndex(int level) {
+    final int index = Arrays.binarySearch(getCaptures(), level);
+    if (index < 0) { throw new IllegalStateException("Variable at level " + level + " is not captured"); }
+    return index;
   }
 
   public String toString() { return "<lambda>"; }
+
+  private static void appendLines(StringBuilder builder, PrimitiveAtom node) {
+    if (node instanceof Call) {
+      appendLine(builder, ((Call) node).position);
+      appendLines(builder, ((Call) node).lhs);
+      appendLines(builder, ((Call) node).rhs);
+    } else if (node instanceof Lambda) {
+      builder.append(((Lambda) node).getLines()); // reuse nested lines, so the whole tree is visited once
+    }
+  }
+
+  private static void appendLine(StringBuilder builder, SourcePosition position) {
+    if (position != null && position.file != null) {
+      builder.append(position.file).append(':').append(position.line).append(' ');
+    }
+  }
+
+  private static void collectCaptures(PrimitiveAtom node, int depth, BitSet levels) {
+    if (node instanceof Symbol) {
+      final Location location = ((Symbol) node).location;
+      if (location instanceof ClosureLocation) { levels.set(((ClosureLocation) location).getParameterIndex()); }
+    } else if (node instanceof Call) {
+      collectCaptures(((Call) node).lhs, depth, levels);
+      collectCaptures(((Call) node).rhs, depth, levels);
+    } else if (node instanceof Lambda) {
+      for (final int level : ((Lambda) node).getCaptures()) {
+        if (level < depth) { levels.set(level); } // the lambda's own variable is not a capture
+      }
+    }
+  }
+}
+
+/**
+ * Structural, alpha-equivalent identity of a lambda. Parameter names are erased and every symbol is encoded by
+ * its location, which also captures the closure layout, so lambdas that differ only by names of their
+ * parameters have equal shapes and can share one generated class.
+ * Closure variables are encoded by their index among {@link Lambda#getCaptures() captures}, so the shape
+ * doesn't depend on the nesting depth of the lambda.
+ */
+final class LambdaShape {
+  private final String encoding;
+  private final int closureSize;
+
+  private LambdaShape(String encoding, int closureSize) {
+    this.encoding = encoding;
+    this.closureSize = closureSize;
+  }
+
+  public static LambdaShape of(Lambda lambda) {
+    final StringBuilder builder = new StringBuilder(64);
+    final int closureSize = lambda.getCaptures().length;
+    builder.append('\\').append(closureSize).append('.');
+    append(builder, lambda, lambda.body);
+    return new LambdaShape(builder.toString(), closureSize);
+  }
+
+  /** @return number of the closure fields */
+  public int getClosureSize() { return closureSize; }
+
+  /** @return textual form of the shape, the same in every run */
+  public String getEncoding() { return encoding; }
+
+  // encoding is prefix-free: v | c<index>' ' | $<global>' ' | #<int>' ' | (<lhs><rhs>) |
+  // \<closure size>.<body><captures of the nested lambda, each is v or c<index>' '>
+  private static void append(StringBuilder builder, Lambda owner, PrimitiveAtom node) {
+    if (node instanceof Symbol) {
+      final Location location = ((Symbol) node).location;
+      if (location == SimpleLocation.VAR) {
+        builder.append('v');
+      } else if (location instanceof GlobalLocation) {
+        builder.append('$').append(node.toString()).append(' ');
+      } else {
+        appendClosure(builder, owner, ((ClosureLocation) location).getParameterIndex());
+      }
+      return;
+    }
+
+    if (node instanceof Int) {
+      builder.append('#').append(node.toInt()).append(' ');
+      return;
+    }
+
+    if (node instanceof Call) {
+      final Call call = (Call) node;
+      builder.append('(');
+      append(builder, owner, call.lhs);
+      append(builder, owner, call.rhs);
+      builder.append(')');
+      return;
+    }
+
+    if (node instanceof Lambda) {
+      final Lambda lambda = (Lambda) node;
+      builder.append(lambda.getShape().encoding); // reuse nested shape, so the whole tree is encoded once
+      for (final int level : lambda.getCaptures()) {
+        if (level == owner.getDepth()) {
+          builder.append('v');
+        } else {
+          appendClosure(builder, owner, level);
+        }
+      }
+      return;
+    }
+
+    throw new UnsupportedOperationException("Unsupported atom in lambda body=" + node);
+  }
+
+  private static void appendClosure(StringBuilder builder, Lambda owner, int level) {
+    builder.append('c').append(owner.getCaptureIndex(level)).append(' ');
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || o instanceof LambdaShape && encoding.equals(((LambdaShape) o).encoding);
+  }
+
+  @Override
+  public int hashCode() { return encoding.hashCode(); }
+
+  @Override
+  public String toString() { return encoding; }
+}
+
+/**
+ * Bounded LRU cache of generated lambda classes keyed by {@link LambdaShape}.
+ */
+final class LambdaClassCache {
+  private final Map<Key, Class<?>> classes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public LambdaClassCache(final int maxSize) {
+    if (maxSize <= 0) { throw new IllegalArgumentException("maxSize=" + maxSize); }
+    this.classes = new LinkedHashMap<Key, Class<?>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Class<?>> eldest) {
+        if (size() <= maxSize) { return false; }
+        ++evictions;
+        return true;
+      }
+    };
+  }
+
+  public Class<?> get(LambdaShape shape) { return get(shape, ""); }
+
+  /** @param lines source lines of the lambda, see {@link Lambda#getLines()}, the class has them in its line numbers */
+  public synchronized Class<?> get(LambdaShape shape, String lines) {
+    final Class<?> result = classes.get(new Key(shape, lines));
+    if (result != null) { ++hits; } else { ++misses; }
+    return result;
+  }
+
+  public void put(LambdaShape shape, Class<?> lambdaClass) { put(shape, "", lambdaClass); }
+
+  public synchronized void put(LambdaShape shape, String lines, Class<?> lambdaClass) {
+    classes.put(new Key(shape, lines), lambdaClass);
+  }
+  public synchronized void clear() { classes.clear(); }
+
+  public synchronized int size() { return classes.size(); }
+  public synchronized long getHits() { return hits; }
+  public synchronized long getMisses() { return misses; }
+  public synchronized long getEvictions() { return evictions; }
+
+  @Override
+  public synchronized String toString() {
+    return "classCache(size=" + classes.size() + ", hits=" + hits + ", misses=" + misses +
+        ", evictions=" + evictions + ")";
+  }
+
+  private static final class Key {
+    final LambdaShape shape;
+    final String lines;
+
+    Key(LambdaShape shape, String lines) {
+      this.shape = shape;
+      this.lines = lines;
+    }
+
+    public boolean equals(Object o) {
+      return this == o || o instanceof Key && shape.equals(((Key) o).shape) && lines.equals(((Key) o).lines);
+    }
+
+    public int hashCode() { return 31 * shape.hashCode() + lines.hashCode(); }
+  }
 }
 
 final class Define extends PrimitiveAtom {
@@ -163,9 +1186,16 @@ interface Location {
 final class ClosureLocation implements Location {
   private boolean used;
   private final int index;
+  private final Symbol node;
+
+  public ClosureLocation(int index, String name) {
+    this.index = index;
+    this.node = new Symbol(name, this);
+  }
 
-  public ClosureLocation(int index) { this.index = index; }
   public int getParameterIndex() { return index; }
+  /** @return symbol node shared by all the references to this location */
+  public Symbol getNode() { return node; }
   public void mark() { this.used = true; }
   @Override
   public String toString() {
@@ -174,51 +1204,185 @@ final class ClosureLocation implements Location {
 }
 
 enum SimpleLocation implements Location {
-  VAR,
-  GLOBAL
+  VAR
+}
+
+/**
+ * Slot of the global symbol in {@link Main.Env}. Slots are numbered by a {@link Table}: the environments that are not
+ * bound to a session share {@link #SHARED}, the environment of a server session has a bounded table of its own, so
+ * the symbols a session reads go away with it. Built-ins have the same slots in every table. Slots are never reused.
+ */
+final class GlobalLocation implements Location {
+  private static final String[] BUILT_INS = { "inc", "dec", Thunk.DELAY_SYMBOL };
+
+  /** Table of the environments not bound to a session, unbounded. */
+  static final Table SHARED = new Table(Integer.MAX_VALUE);
+
+  private final String symbol;
+  private final int slot;
+  private final Symbol node;
+
+  private GlobalLocation(String symbol, int slot) {
+    this.symbol = symbol;
+    this.slot = slot;
+    this.node = new Symbol(symbol, this);
+  }
+
+  /** @return location of the symbol in {@link #SHARED} */
+  public static GlobalLocation of(String symbol) { return SHARED.of(symbol); }
+
+  public String getSymbol() { return symbol; }
+  public int getSlot() { return slot; }
+  /** @return symbol node shared by all the references to this global */
+  public Symbol getNode() { return node; }
+
+  @Override
+  public String toString() {
+    return "global(" + slot + ":" + symbol + ")";
+  }
+
+  /** Symbols of the environments that use the table, each gets the next slot on its first reference. */
+  static final class Table {
+    private final int maxSize;
+    private final Map<String, GlobalLocation> locations = new ConcurrentHashMap<>();
+    private final List<GlobalLocation> slots = new ArrayList<>();
+
+    /** @param maxSize number of symbols, built-ins included, the table takes before it refuses new ones */
+    Table(int maxSize) {
+      if (maxSize < BUILT_INS.length) { throw new IllegalArgumentException("maxSize=" + maxSize); }
+      this.maxSize = maxSize;
+      for (final String builtIn : BUILT_INS) { of(builtIn); }
+    }
+
+    public GlobalLocation of(String symbol) {
+      final GlobalLocation existing = locations.get(symbol); // lock-free for the known symbols
+      if (existing != null) { return existing; }
+      synchronized (locations) {
+        GlobalLocation result = locations.get(symbol);
+        if (result == null) {
+          if (slots.size() >= maxSize) {
+            throw new IllegalStateException("Too many global symbols, the limit is " + maxSize);
+          }
+          result = new GlobalLocation(symbol, slots.size());
+          locations.put(symbol, result);
+          slots.add(result);
+        }
+        return result;
+      }
+    }
+
+    /** @return location of the symbol or null if it has never been referenced, nothing is added to the table */
+    public GlobalLocation find(String symbol) { return locations.get(symbol); }
+
+    public String symbolOf(int slot) {
+      synchronized (locations) {
+        return slot < slots.size() ? slots.get(slot).symbol : "#" + slot;
+      }
+    }
+
+    public int size() { return locations.size(); }
+
+    public int getMaxSize() { return maxSize; }
+  }
 }
 
 interface LexicalScope {
   Location lookup(String symbol);
+  /** @return symbol node of the given name in this scope, one node is shared by all the references */
+  Symbol lookupNode(String symbol);
   boolean isGlobal();
+  LexicalScope getGlobalScope();
 
-  default Map<String, Location> getLocations() { throw new UnsupportedOperationException(); }
   default String getLocalVarName() { throw new UnsupportedOperationException(); }
+  default Symbol getLocalVarNode() { throw new UnsupportedOperationException(); }
   default ClosureLocation getLocalClosureLocation() { throw new UnsupportedOperationException(); }
 }
 
+/** Scope of the global symbols, they resolve in the table of the {@link Main#currentEnv() current environment}. */
 final class GlobalLexicalScope implements LexicalScope {
   public boolean isGlobal() { return true; }
-  public Location lookup(String symbol) { return SimpleLocation.GLOBAL; }
+  public LexicalScope getGlobalScope() { return this; }
+  public Location lookup(String symbol) { return Main.currentEnv().getSymbols().of(symbol); }
+  public Symbol lookupNode(String symbol) { return Main.currentEnv().getSymbols().of(symbol).getNode(); }
 }
 
+/**
+ * Scope of a lambda variable. Scopes are not copied: every nested scope takes O(1) to create and registers itself
+ * in {@link Bindings} shared by all the scopes of the top level lambda. The closure index of a variable is the
+ * de Bruijn level of its lambda, {@code depth - level} is its de Bruijn index.
+ * Lookups resolve against the lambdas being parsed, i.e. they are valid for the innermost scope only, which is how
+ * {@link Parser} uses them.
+ */
 final class LambdaLexicalScope implements LexicalScope {
-  private final Map<String, Location> locations;
+  private final Bindings bindings;
+  private final int depth;
   private final String localVarName;
   private final ClosureLocation localClosureLocation;
+  private final Symbol localVarNode;
+  private final LexicalScope globalScope;
+  private LambdaLexicalScope shadowed; // previous binder of the same name
 
   public LambdaLexicalScope(LexicalScope parent, String varName) {
     localVarName = varName;
+    globalScope = parent.getGlobalScope();
     if (parent.isGlobal()) {
-      localClosureLocation = new ClosureLocation(0);
-      locations = new HashMap<>();
+      bindings = new Bindings();
+      depth = 0;
     } else {
-      locations = new HashMap<>(parent.getLocations());
-      localClosureLocation = new ClosureLocation(parent.getLocalClosureLocation().getParameterIndex() + 1);
-      locations.put(parent.getLocalVarName(), parent.getLocalClosureLocation()); // parent's var visible as a closure
+      final LambdaLexicalScope lambdaParent = (LambdaLexicalScope) parent;
+      bindings = lambdaParent.bindings;
+      depth = lambdaParent.depth + 1;
     }
 
-    locations.put(varName, SimpleLocation.VAR);
+    localClosureLocation = new ClosureLocation(depth, varName);
+    localVarNode = new Symbol(varName, SimpleLocation.VAR);
+    bindings.enter(this);
   }
 
   public boolean isGlobal() { return false; }
-  public Map<String, Location> getLocations() { return locations; }
+  public LexicalScope getGlobalScope() { return globalScope; }
   public String getLocalVarName() { return localVarName; }
+  public Symbol getLocalVarNode() { return localVarNode; }
   public ClosureLocation getLocalClosureLocation() { return localClosureLocation; }
   public Location lookup(String symbol) {
-    Location result = locations.get(symbol);
-    if (result != null) { return result; }
-    return SimpleLocation.GLOBAL; // no such symbol - assume it was (or it will be) defined in global scope
+    final LambdaLexicalScope binder = bindings.find(symbol, depth);
+    if (binder == this) { return SimpleLocation.VAR; }
+    if (binder != null) { return binder.localClosureLocation; }
+    return globalScope.lookup(symbol); // no such symbol - assume it was (or it will be) defined in global scope
+  }
+  public Symbol lookupNode(String symbol) {
+    final LambdaLexicalScope binder = bindings.find(symbol, depth);
+    if (binder == this) { return localVarNode; }
+    if (binder != null) { return binder.localClosureLocation.getNode(); }
+    return globalScope.lookupNode(symbol);
+  }
+
+  /**
+   * Binders visible from the lambda being parsed: the scopes on the current path by depth, and the innermost binder
+   * of every name with the binders it shadows chained through {@link #shadowed}. Binders of the lambdas parsed
+   * already are dropped lazily, so every lookup takes amortized O(1).
+   */
+  private static final class Bindings {
+    private LambdaLexicalScope[] path = new LambdaLexicalScope[16];
+    private final Map<String, LambdaLexicalScope> innermost = new HashMap<>();
+
+    void enter(LambdaLexicalScope scope) {
+      if (scope.depth == path.length) { path = Arrays.copyOf(path, path.length * 2); }
+      path[scope.depth] = scope;
+      scope.shadowed = innermost.put(scope.localVarName, scope);
+    }
+
+    LambdaLexicalScope find(String name, int depth) {
+      final LambdaLexicalScope first = innermost.get(name);
+      LambdaLexicalScope binder = first;
+      while (binder != null && (binder.depth > depth || path[binder.depth] != binder)) { // lambda is parsed already
+        binder = binder.shadowed;
+      }
+      if (binder != first) {
+        if (binder != null) { innermost.put(name, binder); } else { innermost.remove(name); }
+      }
+      return binder;
+    }
   }
 }
 
@@ -226,15 +1390,45 @@ final class ParserException extends RuntimeException {
   public ParserException(String message) { super(message); }
 }
 
+/** Failure of one of the definitions given to {@link Evaluator#defineAll(List)}, caused by its value. */
+final class DefinitionException extends Exception {
+  public final Define define;
+  /** Index of the definition in the list. */
+  public final int index;
+
+  public DefinitionException(Define define, int index, Exception cause) {
+    super("Definition of " + define.sym + " has failed: " + cause, cause);
+    this.define = define;
+    this.index = index;
+  }
+}
+
 final class Parser {
+  private final SymbolTable symbols = new SymbolTable();
   private char[] buffer;
   private int start;
   private int end;
-
-  public Parser init(char[] buffer, int start, int end) {
+  private String sourceName;
+  private int line;
+  private int lineStart; // index of the first character of the line, negative if the line starts before the buffer
+  private int tokenStart;
+
+  public Parser init(char[] buffer, int start, int end) { return init(buffer, start, end, null, 1, 1); }
+
+  /**
+   * Starts parsing of the buffer range that is a part of the named source.
+   *
+   * @param line 1-based line of the first character of the range in the source
+   * @param column 1-based column of the first character of the range in the source
+   */
+  public Parser init(char[] buffer, int start, int end, String sourceName, int line, int column) {
     this.buffer = buffer;
     this.start = start;
     this.end = end;
+    this.sourceName = sourceName;
+    this.line = line;
+    this.lineStart = start - (column - 1);
+    this.tokenStart = start;
     return this;
   }
 
@@ -243,14 +1437,18 @@ final class Parser {
   }
 
   public PrimitiveAtom next(LexicalScope scope) {
-    for (; start < end; ++start) { // skip whitespace
+    for (; start < end; ++start) { // skip whitespace, tokens never span lines
       char ch = buffer[start];
       if (ch > ' ') {
         break;
       }
+      if (ch == '\n') {
+        ++line;
+        lineStart = start + 1;
+      }
     }
 
-    int tokenStart = start;
+    tokenStart = start;
     for (; start < end; ++start) {
       char ch = buffer[start];
       if (tokenStart == start) {
@@ -268,137 +1466,643 @@ final class Parser {
     }
 
     if (tokenStart == start) { throw new ParserException("unexpected end of input or illegal character"); }
-    return toToken(new String(buffer, tokenStart, start - tokenStart), scope);
+    return toToken(tokenStart, start, scope);
   }
 
   public void expect(Special token, LexicalScope scope) {
     if (next(scope) != token) { throw new ParserException("token expected: " + token.toString()); }
   }
 
-  private PrimitiveAtom toToken(String val, LexicalScope scope) {
-    final char c0 = val.charAt(0);
-    if (c0 >= '0' && c0 <= '9') { return Int.valueOf(Integer.parseInt(val)); } // number?
+  /** @return position of the token returned by the last {@link #next(LexicalScope)} */
+  public SourcePosition position() { return new SourcePosition(sourceName, line, tokenStart - lineStart + 1); }
 
-    if (Special.DEFINE.toString().equals(val)) { return Special.DEFINE; } // special?
-    if (Special.LAMBDA.toString().equals(val)) { return Special.LAMBDA; }
+  private PrimitiveAtom toToken(int from, int to, LexicalScope scope) {
+    final char c0 = buffer[from];
+    if (c0 >= '0' && c0 <= '9') { return parseInt(from, to); } // number?
 
-    final Location location = scope.lookup(val);
-    location.mark();
-    return new Symbol(val, location); // default - treat as a symbol
+    final int index = symbols.intern(buffer, from, to);
+    final Special keyword = symbols.getKeyword(index); // special?
+    if (keyword != null) { return keyword; }
+
+    final Symbol symbol = scope.lookupNode(symbols.getName(index)); // default - treat as a symbol
+    symbol.location.mark();
+    return symbol;
+  }
+
+  private Int parseInt(int from, int to) {
+    int value = 0;
+    for (int i = from; i < to; ++i) {
+      final int digit = buffer[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new ParserException("illegal number: " + new String(buffer, from, to - from));
+      }
+      if (value > (Integer.MAX_VALUE - digit) / 10) {
+        throw new ParserException("number is too big: " + new String(buffer, from, to - from));
+      }
+      value = value * 10 + digit;
+    }
+    return Int.valueOf(value);
   }
 }
 
+/**
+ * Intern table of the names met by {@link Parser}, keyed by the range of the parser's buffer, so that a known name
+ * is resolved without creating a string. Names are {@link String#intern() interned}, hence the same name gets
+ * the same string in every table and scope maps compare them by identity. Keywords are entries of the table too.
+ */
+final class SymbolTable {
+  private String[] names = new String[64];
+  private Special[] keywords = new Special[names.length];
+  private int[] hashes = new int[names.length];
+  private int size;
+
+  public SymbolTable() {
+    put(Special.LAMBDA.toString(), Special.LAMBDA);
+    put(Special.DEFINE.toString(), Special.DEFINE);
+  }
+
+  /** @return index of the name given by the range of the buffer, valid until the next call */
+  public int intern(char[] buffer, int from, int to) {
+    int hash = 0;
+    for (int i = from; i < to; ++i) { hash = 31 * hash + buffer[i]; } // same as String.hashCode
+    final int mask = names.length - 1;
+    for (int index = hash & mask;; index = (index + 1) & mask) {
+      final String name = names[index];
+      if (name == null) { return put(new String(buffer, from, to - from).intern(), null); }
+      if (hashes[index] == hash && matches(name, buffer, from, to)) { return index; }
+    }
+  }
+
+  public String getName(int index) { return names[index]; }
+  public Special getKeyword(int index) { return keywords[index]; }
+  public int size() { return size; }
+
+  //
+  // Private
+  //
+
+  private int put(String name, Special keyword) {
+    if (2 * (size + 1) > names.length) { resize(); }
+    final int hash = name.hashCode();
+    final int mask = names.length - 1;
+    int index = hash & mask;
+    while (names[index] != null) { index = (index + 1) & mask; }
+    names[index] = name;
+    keywords[index] = keyword;
+    hashes[index] = hash;
+    ++size;
+    return index;
+  }
+
+  private void resize() {
+    final String[] oldNames = names;
+    final Special[] oldKeywords = keywords;
+    names = new String[oldNames.length * 2];
+    keywords = new Special[names.length];
+    hashes = new int[names.length];
+    size = 0;
+    for (int i = 0; i < oldNames.length; ++i) {
+      if (oldNames[i] != null) { put(oldNames[i], oldKeywords[i]); }
+    }
+  }
+
+  private static boolean matches(String name, char[] buffer, int from, int to) {
+    if (name.length() != to - from) { return false; }
+    for (int i = 0; i < name.length(); ++i) {
+      if (name.charAt(i) != buffer[from + i]) { return false; }
+    }
+    return true;
+  }
+}
+
+/**
+ * Reads the tree of a top level expression. Nesting is tracked by an explicit stack of the unfinished lists
+ * rather than by recursion, so the depth of the input is not limited by the thread stack.
+ */
 final class AstNodeReader {
   private final Parser parser;
+  private final ArrayList<Frame> frames = new ArrayList<>();
   public AstNodeReader(Parser parser) { this.parser = parser; }
 
   public PrimitiveAtom read(LexicalScope scope) {
-    return readToken(scope, parser.next(scope));
+    final Object event = FlightEvents.beginParse();
+    final int bottom = frames.size();
+    try {
+      final PrimitiveAtom result = read(scope, bottom);
+      FlightEvents.commitParse(event, result);
+      return result;
+    } finally {
+      while (frames.size() > bottom) { frames.remove(frames.size() - 1); } // drop the frames of a failed read
+    }
   }
 
-  private PrimitiveAtom readToken(LexicalScope scope, PrimitiveAtom token) {
-    if (token instanceof Symbol || token instanceof Int) { return token; }
-    if (token != Special.OPEN_BRACE) { throw new RuntimeException("open brace expected"); }
-    token = parser.next(scope);
-    if (token == Special.LAMBDA) { return readLambdaDefinition(scope); }
-    if (token == Special.DEFINE) { return readDefine(scope); }
+  private PrimitiveAtom read(LexicalScope scope, int bottom) {
+    PrimitiveAtom token = parser.next(scope);
+    for (;;) {
+      if (!(token instanceof Symbol || token instanceof Int)) { // start of a list
+        if (token != Special.OPEN_BRACE) { throw new ParserException("open brace expected"); }
+        final SourcePosition position = parser.position();
+        token = parser.next(scope);
+        if (token == Special.LAMBDA) {
+          final LexicalScope lambdaScope = readLambdaDefinition(scope);
+          frames.add(new Frame(scope, lambdaScope, null, position));
+          scope = lambdaScope;
+          token = parser.next(scope);
+        } else if (token == Special.DEFINE) {
+          final PrimitiveAtom name = parser.next(scope);
+          if (!(name instanceof Symbol)) { throw new ParserException("defined name is not a symbol"); }
+          final Symbol sym = (Symbol) name;
+          frames.add(new Frame(scope, null, sym, position));
+          token = parser.next(scope);
+        } else {
+          frames.add(new Frame(scope, null, null, position)); // call, the token starts its lhs
+        }
+        continue;
+      }
 
-    final PrimitiveAtom lhs = readToken(scope, token);
-    final PrimitiveAtom rhs = readToken(scope, parser.next(scope));
-    parser.expect(Special.CLOSE_BRACE, scope);
-    return new Call(lhs, rhs);
-  }
+      PrimitiveAtom value = token;
+      for (;;) { // complete the lists ending with the value
+        if (frames.size() == bottom) { return value; }
+        final Frame frame = frames.get(frames.size() - 1);
+        if (frame.lambdaScope == null && frame.sym == null && frame.lhs == null) { // lhs of a call, read rhs
+          frame.lhs = value;
+          break;
+        }
 
-  private Define readDefine(LexicalScope scope) {
-    final Symbol sym = (Symbol) parser.next(scope); // TODO: check and report if not a symbol
-    return new Define(sym, read(scope));
+        frames.remove(frames.size() - 1);
+        scope = frame.scope;
+        if (frame.lambdaScope != null) {
+          parser.expect(Special.CLOSE_BRACE, scope); // end lambda
+          value = new Lambda(frame.lambdaScope, value, frame.position);
+        } else if (frame.sym != null) {
+          parser.expect(Special.CLOSE_BRACE, scope); // end define
+          value = new Define(frame.sym, value);
+        } else {
+          parser.expect(Special.CLOSE_BRACE, scope);
+          value = new Call(frame.lhs, value, frame.position);
+        }
+      }
+      token = parser.next(scope);
+    }
   }
 
-  private Lambda readLambdaDefinition(LexicalScope parentScope) {
+  private LexicalScope readLambdaDefinition(LexicalScope parentScope) {
     parser.expect(Special.OPEN_BRACE, parentScope); // start arg list
     PrimitiveAtom token = parser.next(parentScope);
     if (!(token instanceof Symbol)) { throw new ParserException("arg is not a symbol"); }
     final String varName = token.toString();
     parser.expect(Special.CLOSE_BRACE, parentScope); // end arg list
-    final LexicalScope scope = new LambdaLexicalScope(parentScope, varName);
-    final PrimitiveAtom body = readToken(scope, parser.next(scope));
-    parser.expect(Special.CLOSE_BRACE, parentScope); // end lambda
-    return new Lambda(scope, body);
+    return new LambdaLexicalScope(parentScope, varName);
+  }
+
+  /** Unfinished list: lambda, define or call. */
+  private static final class Frame {
+    final LexicalScope scope;
+    final LexicalScope lambdaScope;
+    final Symbol sym;
+    final SourcePosition position;
+    PrimitiveAtom lhs;
+
+    Frame(LexicalScope scope, LexicalScope lambdaScope, Symbol sym, SourcePosition position) {
+      this.scope = scope;
+      this.lambdaScope = lambdaScope;
+      this.sym = sym;
+      this.position = position;
+    }
   }
 }
 
+/**
+ * Loader of a single generated class, so that the class can be unloaded as soon as nothing refers to it:
+ * neither instances, nor the classes of the enclosing lambdas, nor {@link LambdaClassCache}.
+ * Classes of the nested lambdas are resolved through the strong references to them, which the loader keeps
+ * as the generated code needs them.
+ * With {@code t34.dumpClasses.dir} set every class is also written to that directory before it is defined, even one
+ * that fails verification, as {@code <class name>.class} to be inspected with javap.
+ */
+final class GeneratedClassLoader extends ClassLoader {
+  private static final ClassLoader PARENT = GeneratedClassLoader.class.getClassLoader();
+  private static final AtomicLong DEFINED_COUNT = new AtomicLong();
+  private static final AtomicLong DEFINED_BYTES = new AtomicLong();
+  private static final ReferenceQueue<Class<?>> UNLOADED = new ReferenceQueue<>();
+  private static final Set<Reference<Class<?>>> LIVE = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private static volatile Path dumpDirectory = pathOf(System.getProperty("t34.dumpClasses.dir"));
+  private static volatile boolean keepClassBytes;
+
+  private final Map<String, Class<?>> dependencies;
+  private final byte[] classBytes; // null unless kept for snapshots, see Snapshot#setKeepClasses
+
+  private GeneratedClassLoader(Map<String, Class<?>> dependencies, byte[] classBytes) {
+    super(PARENT);
+    this.dependencies = dependencies;
+    this.classBytes = classBytes;
+  }
+
+  public static Class<?> define(String className, byte[] classBytes, Map<String, Class<?>> dependencies) {
+    final Path directory = dumpDirectory;
+    if (directory != null) { dump(directory, className, classBytes); }
+    final GeneratedClassLoader loader = new GeneratedClassLoader(dependencies, keepClassBytes ? classBytes : null);
+    final Class<?> result = loader.defineClass(className.replace('/', '.'), classBytes, 0, classBytes.length);
+    DEFINED_COUNT.incrementAndGet();
+    DEFINED_BYTES.addAndGet(classBytes.length);
+    expungeUnloaded();
+    LIVE.add(new WeakReference<Class<?>>(result, UNLOADED));
+    return result;
+  }
+
+  @Override
+  protected Class<?> findClass(String name) throws ClassNotFoundException {
+    final Class<?> result = dependencies.get(name);
+    if (result == null) { throw new ClassNotFoundException(name); }
+    return result;
+  }
+
+  /** @return directory the classes are dumped to or null if they are not */
+  static Path getDumpDirectory() { return dumpDirectory; }
+
+  /** Dumps the classes defined from now on to the directory, null stops dumping. */
+  static void setDumpDirectory(Path directory) { dumpDirectory = directory; }
+
+  /** Keeps the bytes of the classes defined from now on, see {@link #getClassBytes}. */
+  static void setKeepClassBytes(boolean keep) { keepClassBytes = keep; }
+
+  /** @return whether the class has been defined by this loader */
+  static boolean isGenerated(Class<?> atomClass) { return atomClass.getClassLoader() instanceof GeneratedClassLoader; }
+
+  /**
+   * @return bytes of the generated class or null if the class has not been defined by this loader or has been
+   *         defined while the bytes were not kept
+   */
+  static byte[] getClassBytes(Class<?> generatedClass) {
+    final ClassLoader loader = generatedClass.getClassLoader();
+    return loader instanceof GeneratedClassLoader ? ((GeneratedClassLoader) loader).classBytes : null;
+  }
+
+  /** @return generated classes the class refers to, the class has to be defined by this loader */
+  static Collection<Class<?>> getDependencies(Class<?> generatedClass) {
+    return ((GeneratedClassLoader) generatedClass.getClassLoader()).dependencies.values();
+  }
+
+  /** Number of generated classes that have not been collected yet. */
+  public static int getLiveClassCount() {
+    expungeUnloaded();
+    return LIVE.size();
+  }
+
+  public static long getDefinedClassCount() { return DEFINED_COUNT.get(); }
+  public static long getDefinedBytes() { return DEFINED_BYTES.get(); }
+
+  /** Used metaspace in bytes or -1 if VM has no metaspace memory pool. */
+  public static long getMetaspaceUsed() {
+    for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if ("Metaspace".equals(pool.getName())) { return pool.getUsage().getUsed(); }
+    }
+    return -1L;
+  }
+
+  public static String getStats() {
+    return "generatedClasses(live=" + getLiveClassCount() + ", defined=" + getDefinedClassCount() +
+        ", bytes=" + getDefinedBytes() + "), metaspace(used=" + getMetaspaceUsed() / 1024 + " KiB, unloaded=" +
+        ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount() + " classes)";
+  }
+
+  private static void expungeUnloaded() {
+    for (Reference<? extends Class<?>> ref = UNLOADED.poll(); ref != null; ref = UNLOADED.poll()) {
+      LIVE.remove(ref);
+    }
+  }
+
+  private static void dump(Path directory, String className, byte[] classBytes) {
+    try {
+      Files.write(Files.createDirectories(directory).resolve(className.replace('/', '.') + ".class"), classBytes);
+    } catch (IOException e) {
+      System.err.println(";; Unable to dump " + className + ": " + e);
+    }
+  }
+
+  private static Path pathOf(String directory) { return directory != null ? Paths.get(directory) : null; }
+}
+
 final class Evaluator implements Opcodes {
-  private static int FN_INDEX = 0;
-  private static int ENV_INDEX = 0;
-  private String prevEnvClassName = "t34/Main$Env";
-  private static final ClassLoader LOADER = Evaluator.class.getClassLoader();
+  private static final AtomicInteger FN_INDEX = new AtomicInteger();
+  static final LambdaClassCache CLASS_CACHE = new LambdaClassCache(Integer.getInteger("t34.classCache.maxSize", 1024));
+  private static volatile BytecodeCache bytecodeCache = BytecodeCache.fromSystemProperties();
+  private static volatile Metrics metrics = EvaluatorMetrics.fromSystemProperties();
+  private static volatile boolean lineNumbers = Boolean.parseBoolean(System.getProperty("t34.lineNumbers", "true"));
+
+  private static final Handle GLOBAL_BOOTSTRAP = new Handle(H_INVOKESTATIC, "t34/Main$Globals", "bootstrapGlobal",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)" +
+          "Ljava/lang/invoke/CallSite;");
+  private static final Handle INT_BOOTSTRAP = new Handle(H_INVOKESTATIC, "t34/Main$Globals", "bootstrapInt",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)" +
+          "Ljava/lang/invoke/CallSite;");
+  private static final String TOP_LEVEL_VAR = "%toplevel"; // can't be produced by parser, so never referenced
+  static final String INSTANCE_FIELD = "INSTANCE"; // shared instance of a lambda that captures nothing
+  static final String SPECULATION_FIELD = "SPECULATION"; // unboxed body state of a numeric lambda class
+  static final String PROFILE_FIELD = "PROFILE"; // counters of a lambda class generated in the profiling mode
 
   public final GlobalLexicalScope scope = new GlobalLexicalScope();
+  private boolean churchNumerals = Boolean.parseBoolean(System.getProperty("t34.churchNumerals", "true"));
+  private final Interpreter interpreter = new Interpreter(Integer.getInteger("t34.compileThreshold", 100),
+      Boolean.getBoolean("t34.backgroundCompilation"));
+  private final Optimizer optimizer = new Optimizer(Integer.getInteger("t34.optimizer.level", 1),
+      Boolean.getBoolean("t34.optimizer.dump") ? System.err : null);
+  private final StackMachine machine = new StackMachine();
+  private volatile boolean stackSafe = Boolean.getBoolean("t34.stackSafe");
+  private volatile boolean lazy = Boolean.getBoolean("t34.lazy");
+  private GraphReducer graph; // created on the first use, its tables are large
+  private volatile boolean graphReduction = Boolean.getBoolean("t34.graphReduction");
+  private volatile ParallelEvaluator parallel = createParallel(Integer.getInteger("t34.parallelism", 0),
+      Integer.getInteger("t34.parallel.threshold", 8));
+
+  public Interpreter getInterpreter() { return interpreter; }
+  public Optimizer getOptimizer() { return optimizer; }
+
+  /** @return the node rewritten by {@link Optimizer}, the result is to be passed to {@link #eval(Main.Atom)} */
+  public PrimitiveAtom optimize(PrimitiveAtom node) { return optimizer.optimize(node, scope); }
+
+  /**
+   * Sets number of invocations after which an interpreted lambda gets compiled, 0 compiles every lambda
+   * before the first invocation.
+   */
+  public void setCompileThreshold(int compileThreshold) { interpreter.setCompileThreshold(compileThreshold); }
+
+  public void setBackgroundCompilation(boolean backgroundCompilation) {
+    interpreter.setBackgroundCompilation(backgroundCompilation);
+  }
+
+  /**
+   * Enables or disables recognition of Church numerals definitions, see {@link ChurchNumerals}.
+   */
+  public void setChurchNumerals(boolean churchNumerals) { this.churchNumerals = churchNumerals; }
+
+  /**
+   * Enables or disables the stack-safe mode, see {@link StackMachine}. Lambdas created in this mode stay
+   * interpreted, the ones created before keep running in their tier.
+   */
+  public void setStackSafe(boolean stackSafe) { this.stackSafe = stackSafe; }
 
+  public boolean isStackSafe() { return stackSafe; }
+
+  /**
+   * Enables or disables the call-by-need mode: arguments that are calls are passed as {@link Thunk}s and evaluated
+   * on the first use, see {@link Optimizer#delayArguments}. Results of the top level expressions are forced.
+   */
+  public void setLazy(boolean lazy) { this.lazy = lazy; }
+
+  public boolean isLazy() { return lazy; }
+
+  /**
+   * Switches the session to {@link GraphReducer}. Its globals are separate from the globals of the bytecode
+   * backend, lazy and stack-safe modes don't apply to it.
+   */
+  public void setGraphReduction(boolean graphReduction) { this.graphReduction = graphReduction; }
+
+  public boolean isGraphReduction() { return graphReduction; }
+
+  public synchronized GraphReducer getGraphReducer() {
+    if (graph == null) { graph = new GraphReducer(); }
+    return graph;
+  }
+
+  /**
+   * Sets the number of threads the applications are split across, see {@link ParallelEvaluator}, 0 evaluates
+   * them sequentially. The parallel mode doesn't apply to the lazy, stack-safe and graph reduction modes.
+   */
+  public void setParallelism(int parallelism) {
+    final ParallelEvaluator old = parallel;
+    parallel = createParallel(parallelism, old != null ? old.getThreshold() : 8);
+    if (old != null) { old.shutdown(); }
+  }
+
+  public int getParallelism() {
+    final ParallelEvaluator current = parallel;
+    return current != null ? current.getParallelism() : 0;
+  }
+
+  /** @return parallel evaluator or null if the applications are evaluated sequentially */
+  public ParallelEvaluator getParallelEvaluator() { return parallel; }
+
+  private static ParallelEvaluator createParallel(int parallelism, int threshold) {
+    if (parallelism < 0) { throw new IllegalArgumentException("parallelism=" + parallelism); }
+    return parallelism > 0 ? new ParallelEvaluator(parallelism, threshold) : null;
+  }
+
+  /** Evaluates the top level node, the latency and the failure go to {@link #getMetrics()}. */
   public Main.Atom eval(Main.Atom node) throws Exception {
-    if (node instanceof Symbol) { return (Main.Atom) Main.ENV.getClass().getMethod(node.toString()).invoke(Main.ENV); }
+    final Metrics current = metrics;
+    final Object event = FlightEvents.beginEval();
+    if (current == Metrics.NONE && event == null) { return evaluate(node); } // no clock reads, they are not free
+    final long start = System.nanoTime();
+    try {
+      final Main.Atom result = evaluate(node);
+      current.executed(System.nanoTime() - start);
+      FlightEvents.commitEval(event, node, false);
+      return result;
+    } catch (Exception | Error e) {
+      current.evalError(e);
+      FlightEvents.commitEval(event, node, true);
+      throw e;
+    }
+  }
 
-    if (node instanceof Call) {
-      final Call call = ((Call) node);
-      return eval(call.lhs).fn(eval(call.rhs));
+  private Main.Atom evaluate(Main.Atom node) throws Exception {
+    if (graphReduction) { return evalGraph(node); }
+    if (lazy && (node instanceof Call || node instanceof Lambda)) {
+      return Thunk.force(evalNode(Optimizer.delayArguments((PrimitiveAtom) node, scope)));
     }
+    final ParallelEvaluator current = parallel;
+    if (current != null && !stackSafe && node instanceof Call) { return current.eval((Call) node, this::evalNode); }
+    return evalNode(node);
+  }
 
+  private Main.Atom evalGraph(Main.Atom node) {
+    if (node instanceof Define) {
+      final Define define = (Define) node;
+      getGraphReducer().define((GlobalLocation) define.sym.location, define.value);
+      return Int.valueOf(0);
+    }
+    if (node instanceof PrimitiveAtom) { return getGraphReducer().eval((PrimitiveAtom) node); }
+    if (node instanceof Main.Fn) { return node; }
+    throw new UnsupportedOperationException("Can't eval " + node);
+  }
+
+  private Main.Atom evalNode(Main.Atom node) throws Exception {
+    if (node instanceof Symbol || node instanceof Call) { return evalExpression((PrimitiveAtom) node); }
     if (node instanceof Define) { return evalDefine((Define) node); }
     if (node instanceof Lambda) { return evalLambda((Lambda) node); }
     if (node instanceof PrimitiveAtom || node instanceof Main.Fn) { return node; }
     throw new UnsupportedOperationException("Can't eval " + node);
   }
 
-  private Main.Fn evalLambda(Lambda lambda) throws Exception { return (Main.Fn) genLambdaClass(lambda).newInstance(); }
+  private Main.Atom evalLambda(Lambda lambda) throws Exception {
+    if (stackSafe) { return machine.instantiate(lambda); }
+    if (interpreter.isTiered()) { return interpreter.instantiate(lambda, Interpreter.NO_CLOSURE); }
+    return getClosedInstance(genLambdaClass(lambda)); // top level lambda captures nothing
+  }
+
+  private Main.Atom evalExpression(PrimitiveAtom node) throws Exception {
+    if (stackSafe) { return machine.eval(node); }
+    if (interpreter.isTiered()) { return interpreter.eval(node, null, Interpreter.NO_CLOSURE, null); } // runs once
+    // compiled as a body of the lambda that ignores its argument
+    final Lambda lambda = new Lambda(new LambdaLexicalScope(scope, TOP_LEVEL_VAR), node,
+        node instanceof Call ? ((Call) node).position : null);
+    return getClosedInstance(genLambdaClass(lambda)).fn(null);
+  }
 
   private Int evalDefine(Define define) throws Exception {
-    final Main.Atom evalVal = eval(define.value); // generate function using second define argument
-    final Class<?> newEnvClass = genNewEnv(define.sym.toString()); // generate new environment class
-    newEnvClass.getDeclaredField("SYM").set(null, evalVal); // update associated symbol value
-    Main.ENV = (Main.Env) newEnvClass.newInstance(); // create new environment
-    prevEnvClassName = newEnvClass.getName(); // this update should be the last one or error will break the state
+    final Main.Atom evalVal = evalDefinedValue(define);
+    Main.currentEnv().define(getSlot(define), evalVal);
     return Int.valueOf(0);
   }
 
-  private Class<?> genNewEnv(String sym) throws Exception {
-    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-    MethodVisitor mv;
-    final String parentClassSgn = prevEnvClassName;
-    final String className = "Env" + (++ENV_INDEX);
+  private Main.Atom evalDefinedValue(Define define) throws Exception {
+    final Object event = FlightEvents.beginDefine();
+    final Main.Atom result = evaluate(define.value);
+    Main.Atom value = result;
+    if (churchNumerals && define.value instanceof Lambda) {
+      value = ChurchNumerals.recognize((Lambda) define.value, result);
+    }
+    // numerals are never inlined, they are faster as counts
+    optimizer.define((GlobalLocation) define.sym.location, value == result ? define.value : null, value);
+    metrics.defined();
+    FlightEvents.commitDefine(event, define.sym);
+    return value;
+  }
 
-    cw.visit(49, ACC_PUBLIC + ACC_SUPER, className, null, parentClassSgn, null);
-    cw.visitSource(className + ".java", null);
-    cw.visitField(ACC_PUBLIC + ACC_STATIC, "SYM", "Lt34/Main$Atom;", null, null).visitEnd();
+  /**
+   * Evaluates and binds the given definitions in order.
+   * Lambdas reach globals through the linked call sites only, so consecutive lambda and number definitions
+   * are published to the environment together, the others need the preceding definitions to be visible.
+   *
+   * @return number of definitions
+   * @throws DefinitionException if a definition fails, the preceding ones stay defined
+   */
+  public int defineAll(List<Define> defines) throws DefinitionException {
+    if (defines.isEmpty()) { return 0; }
+    final Metrics current = metrics;
+    if (current == Metrics.NONE) {
+      defineEach(defines);
+      return defines.size();
+    }
+    final long start = System.nanoTime();
+    try {
+      defineEach(defines);
+      current.executed(System.nanoTime() - start);
+      return defines.size();
+    } catch (Exception | Error e) {
+      current.evalError(e instanceof DefinitionException ? e.getCause() : e);
+      throw e;
+    }
+  }
 
-    // ctor
-    mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
-    mv.visitVarInsn(ALOAD, 0);
-    mv.visitMethodInsn(INVOKESPECIAL, parentClassSgn, "<init>", "()V");
-    mv.visitInsn(RETURN);
-    mv.visitMaxs(0, 0);
-    mv.visitEnd();
+  private void defineEach(List<Define> defines) throws DefinitionException {
+    final int[] slots = new int[defines.size()];
+    final Main.Atom[] values = new Main.Atom[defines.size()];
+    int pending = 0;
+    for (int i = 0; i < defines.size(); ++i) {
+      final Define define = defines.get(i);
+      try {
+        if (!(define.value instanceof Lambda || define.value instanceof Int)) {
+          publish(slots, values, pending);
+          pending = 0;
+          evalDefine(define);
+          continue;
+        }
+        slots[pending] = getSlot(define);
+        values[pending] = evalDefinedValue(define);
+        ++pending;
+      } catch (Exception e) {
+        publish(slots, values, pending); // as if they were defined one by one
+        throw new DefinitionException(define, i, e);
+      }
+    }
+    publish(slots, values, pending);
+  }
 
-    // fn - sym
-    mv = cw.visitMethod(ACC_PUBLIC, sym, "()Lt34/Main$Atom;", null, null);
-    mv.visitFieldInsn(GETSTATIC, className, "SYM", "Lt34/Main$Atom;");
-    mv.visitInsn(ARETURN);
-    mv.visitMaxs(0, 0);
-    mv.visitEnd();
+  private static void publish(int[] slots, Main.Atom[] values, int count) {
+    if (count > 0) { Main.currentEnv().defineAll(Arrays.copyOf(slots, count), Arrays.copyOf(values, count)); }
+  }
 
-    cw.visitEnd(); // end of class
-    return (Class<?>) ReflectUtils.defineClass(className, cw.toByteArray(), LOADER);
+  private static int getSlot(Define define) { return ((GlobalLocation) define.sym.location).getSlot(); }
+
+  /** Makes the names of the classes generated from now on differ from {@code GenFn<index>} and the lower ones. */
+  static void reserveClassIndex(int index) {
+    for (int current; (current = FN_INDEX.get()) < index;) { FN_INDEX.compareAndSet(current, index); }
   }
 
-  private static Class<?> genLambdaClass(Lambda lambda) throws Exception {
-    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-    MethodVisitor mv;
-    final String className = "GenFn" + (++FN_INDEX);
+  /** @return receiver of the measurements of all the evaluators, {@link Metrics#NONE} if they are off */
+  static Metrics getMetrics() { return metrics; }
+
+  /** Replaces the receiver of the measurements, e.g. with an adapter to a metrics library. */
+  static void setMetrics(Metrics metrics) { Evaluator.metrics = Objects.requireNonNull(metrics, "metrics"); }
+
+  /** @return on-disk cache of the generated classes or null if they are generated in every run */
+  static BytecodeCache getBytecodeCache() { return bytecodeCache; }
+
+  /**
+   * Sets the on-disk cache of the generated classes, null disables it. The classes generated before stay in
+   * {@link #CLASS_CACHE}, so it should be cleared once the cache is changed.
+   */
+  static void setBytecodeCache(BytecodeCache cache) { bytecodeCache = cache; }
+
+  /** @return whether the generated classes have the source lines of their lambdas, see {@link Lambda#getLines()} */
+  static boolean isLineNumbers() { return lineNumbers; }
 
-    cw.visit(49, ACC_PUBLIC + ACC_SUPER, className, null, "t34/Main$Fn", null);
-    cw.visitSource(className + ".java", null);
+  /**
+   * Turns the line numbers of the generated classes on or off, on by default. With them alpha-equivalent lambdas of a
+   * script share a class only if they are on the same lines, so the REPL and snapshots turn them off. The classes
+   * generated before stay in {@link #CLASS_CACHE}, so it should be cleared once the setting is changed.
+   */
+  static void setLineNumbers(boolean enabled) { lineNumbers = enabled; }
 
-    // fields
-    int numberOfFields = lambda.scope.getLocalClosureLocation().getParameterIndex();
+  /** @return shared instance of the generated class of a lambda with no captures */
+  static Main.Atom getClosedInstance(Class<?> lambdaClass) throws Exception {
+    return (Main.Atom) lambdaClass.getField(INSTANCE_FIELD).get(null);
+  }
+
+  static Class<?> genLambdaClass(Lambda lambda) throws Exception {
+    final LambdaShape shape = lambda.getShape();
+    final String lines = lineNumbers ? lambda.getLines() : "";
+    Class<?> result = CLASS_CACHE.get(shape, lines);
+    if (result == null) {
+      final Metrics current = metrics;
+      if (current == Metrics.NONE) {
+        result = defineLambdaClass(lambda, lines);
+      } else {
+        final long start = System.nanoTime();
+        result = defineLambdaClass(lambda, lines);
+        current.compiled(System.nanoTime() - start);
+      }
+      CLASS_CACHE.put(shape, lines, result);
+    }
+    return result;
+  }
+
+  private static Class<?> defineLambdaClass(Lambda lambda, String lines) throws Exception {
+    final boolean profiled = Profiler.isEnabled();
+    final BytecodeCache cache = profiled ? null : bytecodeCache; // the cached classes have no counters
+    final String key = cache != null ? BytecodeCache.key(lambda.getShape(), lines) : null;
+    final Object event = FlightEvents.beginClassDefinition();
+    if (cache != null) {
+      final Class<?> cached = loadCachedClass(cache, key, lambda, event);
+      if (cached != null) { return cached; }
+    }
+
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+    MethodVisitor mv;
+    final String className = key != null ? BytecodeCache.className(key) : "GenFn" + FN_INDEX.incrementAndGet();
+    final Map<String, Class<?>> dependencies = new HashMap<>();
+
+    // lambdas returning a function are never numbers, the rest speculate on the int flow
+    final boolean numeric = !(lambda.body instanceof Lambda);
+    final String superName = numeric ? "t34/Main$NumericFn" : "t34/Main$Fn";
+    cw.visit(V1_7, ACC_PUBLIC + ACC_SUPER, className, null, superName, null); // 1.7+ for invokedynamic
+    cw.visitSource(!lines.isEmpty() && lambda.position != null && lambda.position.file != null ?
+        lambda.position.file : className + ".java", null);
+
+    // fields, one per captured variable
+    int numberOfFields = lambda.getCaptures().length;
     for (int i = 0; i < numberOfFields; ++i) {
       cw.visitField(ACC_PRIVATE, "c" + i, "Lt34/Main$Atom;", null, null).visitEnd();
     }
@@ -410,7 +2114,8 @@ final class Evaluator implements Opcodes {
     signature.append(")V");
     mv = cw.visitMethod(ACC_PUBLIC, "<init>", signature.toString(), null, null);
     mv.visitVarInsn(ALOAD, 0);
-    mv.visitMethodInsn(INVOKESPECIAL, "t34/Main$Fn", "<init>", "()V");
+    mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V");
+    if (profiled) { genProfileCall(className, mv, "allocate"); }
     for (int i = 0; i < numberOfFields; ++i) {
       mv.visitVarInsn(ALOAD, 0);
       mv.visitVarInsn(ALOAD, i + 1);
@@ -420,38 +2125,184 @@ final class Evaluator implements Opcodes {
     mv.visitMaxs(0, 0);
     mv.visitEnd();
 
-    // @Override fn
-    mv = cw.visitMethod(ACC_PUBLIC, "fn", "(Lt34/Main$Atom;)Lt34/Main$Atom;", null, null);
-    genBody(lambda.body, className, mv);
-    mv.visitInsn(ARETURN);
-    mv.visitMaxs(0, 0);
-    mv.visitEnd();
+    if (numeric) {
+      cw.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL, SPECULATION_FIELD, "Lt34/Main$Speculation;", null, null)
+          .visitEnd();
+    }
+    if (numberOfFields == 0) { // closed lambda, all the evaluations share one instance
+      cw.visitField(ACC_PUBLIC + ACC_STATIC + ACC_FINAL, INSTANCE_FIELD, "Lt34/Main$Atom;", null, null).visitEnd();
+    }
+    if (profiled) {
+      cw.visitField(ACC_PRIVATE + ACC_STATIC + ACC_FINAL, PROFILE_FIELD, "Lt34/Main$LambdaProfile;", null, null)
+          .visitEnd();
+    }
+    if (numeric || numberOfFields == 0 || profiled) {
+      mv = cw.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+      if (profiled) { // before the instance, its constructor counts the allocation
+        mv.visitLdcInsn(Type.getObjectType(className));
+        mv.visitMethodInsn(INVOKESTATIC, "t34/Main$LambdaProfile", "of",
+            "(Ljava/lang/Class;)Lt34/Main$LambdaProfile;");
+        mv.visitFieldInsn(PUTSTATIC, className, PROFILE_FIELD, "Lt34/Main$LambdaProfile;");
+      }
+      if (numeric) { // before the instance, so that it is never seen uninitialized
+        mv.visitTypeInsn(NEW, "t34/Main$Speculation");
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, "t34/Main$Speculation", "<init>", "()V");
+        mv.visitFieldInsn(PUTSTATIC, className, SPECULATION_FIELD, "Lt34/Main$Speculation;");
+      }
+      if (numberOfFields == 0) {
+        mv.visitTypeInsn(NEW, className);
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, className, "<init>", "()V");
+        mv.visitFieldInsn(PUTSTATIC, className, INSTANCE_FIELD, "Lt34/Main$Atom;");
+      }
+      mv.visitInsn(RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+
+    if (!numeric) {
+      // @Override fn
+      mv = cw.visitMethod(ACC_PUBLIC, "fn", "(Lt34/Main$Atom;)Lt34/Main$Atom;", null, null);
+      genLineNumber(mv, lambda, lambda.position);
+      if (profiled) { genProfileCall(className, mv, "call"); }
+      genInterruptionCheck(mv);
+      genBody(lambda.body, lambda, className, mv, dependencies, false);
+      mv.visitInsn(ARETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    } else {
+      // @Override speculation
+      mv = cw.visitMethod(ACC_PROTECTED, "speculation", "()Lt34/Main$Speculation;", null, null);
+      mv.visitFieldInsn(GETSTATIC, className, SPECULATION_FIELD, "Lt34/Main$Speculation;");
+      mv.visitInsn(ARETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      // @Override applyBoxed
+      mv = cw.visitMethod(ACC_PROTECTED, "applyBoxed", "(Lt34/Main$Atom;)Lt34/Main$Atom;", null, null);
+      genLineNumber(mv, lambda, lambda.position);
+      if (profiled) { genProfileCall(className, mv, "call"); }
+      genInterruptionCheck(mv);
+      genBody(lambda.body, lambda, className, mv, dependencies, false);
+      mv.visitInsn(ARETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      // @Override applyUnboxed
+      mv = cw.visitMethod(ACC_PROTECTED, "applyUnboxed", "(I)I", null, null);
+      genLineNumber(mv, lambda, lambda.position);
+      if (profiled) { genProfileCall(className, mv, "call"); } // the call falling back to applyBoxed counts twice
+      genInterruptionCheck(mv);
+      genUnboxedBody(lambda.body, lambda, className, mv, dependencies);
+      mv.visitInsn(IRETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
 
     cw.visitEnd(); // end of class
-    return (Class<?>) ReflectUtils.defineClass(className, cw.toByteArray(), LOADER);
+    final byte[] classBytes = cw.toByteArray();
+    if (cache != null) { cache.store(key, lambda.getShape(), dependencies.keySet(), classBytes); }
+    final Class<?> result = GeneratedClassLoader.define(className, classBytes, dependencies);
+    if (profiled) { Profiler.register(result, lambda); }
+    FlightEvents.commitClassDefinition(event, result, classBytes.length, lambda, false);
+    return result;
   }
 
-  private static void genBody(PrimitiveAtom atom, String className, MethodVisitor mv) throws Exception {
+  /**
+   * Defines the class cached on disk. Nested lambdas are resolved the same way {@link #genBody} does,
+   * so they get their classes from the caches too.
+   *
+   * @return class or null if it has to be generated
+   */
+  private static Class<?> loadCachedClass(BytecodeCache cache, String key, Lambda lambda,
+                                          Object event) throws Exception {
+    final BytecodeCache.Entry entry = cache.load(key, lambda.getShape());
+    if (entry == null) { return null; }
+    final Map<String, Class<?>> dependencies = new HashMap<>();
+    final List<PrimitiveAtom> pending = new ArrayList<>();
+    pending.add(lambda.body);
+    while (!pending.isEmpty()) {
+      final PrimitiveAtom node = pending.remove(pending.size() - 1);
+      if (node instanceof Call) {
+        pending.add(((Call) node).lhs);
+        pending.add(((Call) node).rhs);
+      } else if (node instanceof Lambda) {
+        final Class<?> lambdaClass = genLambdaClass((Lambda) node);
+        dependencies.put(lambdaClass.getName(), lambdaClass);
+      }
+    }
+    // classes generated before the cache was enabled have other names
+    if (!dependencies.keySet().equals(new HashSet<>(entry.dependencies))) { return null; }
+    final Class<?> result = GeneratedClassLoader.define(BytecodeCache.className(key), entry.classBytes, dependencies);
+    FlightEvents.commitClassDefinition(event, result, entry.classBytes.length, lambda, true);
+    return result;
+  }
+
+  /**
+   * Generates the int-valued body: numbers stay on the operand stack as int, calls with a number argument go through
+   * {@link Main.Atom#applyIntOrDeoptimize(int)}, anything else is computed boxed and converted with
+   * {@link Main.Atom#toIntOrDeoptimize()}, which throws for functions and makes {@link Main.NumericFn} fall back to
+   * the boxed body.
+   */
+  private static void genUnboxedBody(PrimitiveAtom atom, Lambda owner, String className, MethodVisitor mv,
+                                     Map<String, Class<?>> dependencies) throws Exception {
+    if (atom instanceof Symbol && ((Symbol) atom).location == SimpleLocation.VAR) {
+      mv.visitVarInsn(ILOAD, 1);
+      return;
+    }
+
+    if (atom instanceof Int) {
+      mv.visitLdcInsn(atom.toInt());
+      return;
+    }
+
+    if (atom instanceof Call) {
+      final Call call = (Call) atom;
+      genBody(call.lhs, owner, className, mv, dependencies, true);
+      genUnboxedBody(call.rhs, owner, className, mv, dependencies);
+      genLineNumber(mv, owner, call.position);
+      mv.visitMethodInsn(INVOKEVIRTUAL, "t34/Main$Atom", "applyIntOrDeoptimize", "(I)I");
+      return;
+    }
+
+    genBody(atom, owner, className, mv, dependencies, true);
+    mv.visitMethodInsn(INVOKEVIRTUAL, "t34/Main$Atom", "toIntOrDeoptimize", "()I");
+  }
+
+  /**
+   * Generates the boxed value of the node.
+   *
+   * @param unboxedArg true if the variable is held as int, as it is in the unboxed body
+   */
+  private static void genBody(PrimitiveAtom atom, Lambda owner, String className, MethodVisitor mv,
+                              Map<String, Class<?>> dependencies, boolean unboxedArg) throws Exception {
     if (atom instanceof Symbol) {
       final Symbol symbol = (Symbol) atom;
-      if (symbol.location == SimpleLocation.GLOBAL) {
-        mv.visitFieldInsn(GETSTATIC, "t34/Main", "ENV", "Lt34/Main$Env;");
-        mv.visitMethodInsn(INVOKEVIRTUAL, "t34/Main$Env", symbol.toString(), "()Lt34/Main$Atom;");
+      if (symbol.location instanceof GlobalLocation) {
+        mv.visitInvokeDynamicInsn(symbol.toString(), "()Lt34/Main$Atom;", GLOBAL_BOOTSTRAP);
         return;
       } else if (symbol.location == SimpleLocation.VAR) {
-        mv.visitVarInsn(ALOAD, 1);
+        genArg(mv, unboxedArg);
         return;
       }
       final ClosureLocation closureLocation = (ClosureLocation) symbol.location;
       mv.visitVarInsn(ALOAD, 0);
-      mv.visitFieldInsn(GETFIELD, className, "c" + closureLocation.getParameterIndex(), "Lt34/Main$Atom;");
+      final int field = owner.getCaptureIndex(closureLocation.getParameterIndex());
+      mv.visitFieldInsn(GETFIELD, className, "c" + field, "Lt34/Main$Atom;");
+      return;
+    }
+
+    if (atom instanceof Int) {
+      mv.visitInvokeDynamicInsn("int", "()Lt34/Main$Atom;", INT_BOOTSTRAP, atom.toInt());
       return;
     }
 
     if (atom instanceof Call) {
       final Call call = (Call) atom;
-      genBody(call.lhs, className, mv);
-      genBody(call.rhs, className, mv);
+      genBody(call.lhs, owner, className, mv, dependencies, unboxedArg);
+      genBody(call.rhs, owner, className, mv, dependencies, unboxedArg);
+      genLineNumber(mv, owner, call.position);
       mv.visitMethodInsn(INVOKEVIRTUAL, "t34/Main$Atom", "fn", "(Lt34/Main$Atom;)Lt34/Main$Atom;");
       return;
     }
@@ -460,15 +2311,24 @@ final class Evaluator implements Opcodes {
       final Lambda lambda = (Lambda) atom;
       final Class<?> lambdaClass = genLambdaClass(lambda);
       final String lambdaClassName = lambdaClass.getName();
+      dependencies.put(lambdaClassName, lambdaClass);
+      final int[] captures = lambda.getCaptures();
+      if (captures.length == 0) { // closed lambda is instantiated once, globals are resolved by its own call sites
+        mv.visitFieldInsn(GETSTATIC, lambdaClassName, INSTANCE_FIELD, "Lt34/Main$Atom;");
+        return;
+      }
+
       mv.visitTypeInsn(NEW, lambdaClassName);
       mv.visitInsn(DUP);
-      int totalArgCount = lambda.scope.getLocalClosureLocation().getParameterIndex();
-      int parentFieldCount = totalArgCount - 1;
-      for (int i = 0; i < parentFieldCount; ++i) {
-        mv.visitVarInsn(ALOAD, 0);
-        mv.visitFieldInsn(GETFIELD, className, "c" + i, "Lt34/Main$Atom;");
+      final int totalArgCount = captures.length;
+      for (final int level : captures) {
+        if (level == owner.getDepth()) {
+          genArg(mv, unboxedArg);
+        } else {
+          mv.visitVarInsn(ALOAD, 0);
+          mv.visitFieldInsn(GETFIELD, className, "c" + owner.getCaptureIndex(level), "Lt34/Main$Atom;");
+        }
       }
-      mv.visitVarInsn(ALOAD, 1);
       final StringBuilder signatureBuilder = new StringBuilder(10 + 15 * totalArgCount);
       signatureBuilder.append('(');
       for (int i = 0; i < totalArgCount; ++i) { signatureBuilder.append("Lt34/Main$Atom;"); }
@@ -479,4 +2339,38 @@ final class Evaluator implements Opcodes {
 
     throw new UnsupportedOperationException("Unsupported atom in lambda body=" + atom);
   }
+
+  /**
+   * Attributes the following instructions to the line of the node. Nodes of another source, e.g. the calls inlined
+   * by {@link Optimizer}, keep the line of the preceding instructions, the class names a single source file.
+   * Lambdas not read from a script have no lines, nor do any lambdas unless {@link #isLineNumbers()}, so that their
+   * classes are shared, see {@link Lambda#getLines()}.
+   */
+  private static void genLineNumber(MethodVisitor mv, Lambda owner, SourcePosition position) {
+    if (!lineNumbers || position == null || owner.position == null || owner.position.file == null ||
+        !owner.position.file.equals(position.file)) {
+      return;
+    }
+    final Label label = new Label();
+    mv.visitLabel(label);
+    mv.visitLineNumber(position.line, label);
+  }
+
+  private static void genInterruptionCheck(MethodVisitor mv) {
+    mv.visitMethodInsn(INVOKESTATIC, "t34/Main", "checkInterrupted", "()V");
+  }
+
+  private static void genProfileCall(String className, MethodVisitor mv, String counter) {
+    mv.visitFieldInsn(GETSTATIC, className, PROFILE_FIELD, "Lt34/Main$LambdaProfile;");
+    mv.visitMethodInsn(INVOKEVIRTUAL, "t34/Main$LambdaProfile", counter, "()V");
+  }
+
+  private static void genArg(MethodVisitor mv, boolean unboxedArg) {
+    if (unboxedArg) {
+      mv.visitVarInsn(ILOAD, 1);
+      mv.visitMethodInsn(INVOKESTATIC, "t34/Main$NumericFn", "box", "(I)Lt34/Main$Atom;");
+    } else {
+      mv.visitVarInsn(ALOAD, 1);
+    }
+  }
 }
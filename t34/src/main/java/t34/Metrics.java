@@ -0,0 +1,28 @@
+package t34;
+
+/**
+ * Receiver of the measurements of the evaluation pipeline, see {@link Evaluator#setMetrics(Metrics)}. Methods are
+ * called on the evaluation path by any thread, implementations must not block. Latencies are in nanoseconds.
+ */
+interface Metrics {
+  /** Ignores everything. */
+  Metrics NONE = new Metrics() {};
+
+  /** An expression has been parsed. */
+  default void parsed(long nanos) {}
+
+  /** An expression has failed to parse. */
+  default void syntaxError() {}
+
+  /** A lambda class has been generated or loaded from the bytecode cache, with the nested classes it needs. */
+  default void compiled(long nanos) {}
+
+  /** A top level expression or a batch of definitions has been evaluated. */
+  default void executed(long nanos) {}
+
+  /** A global has been defined. */
+  default void defined() {}
+
+  /** Evaluation of a top level expression has failed. */
+  default void evalError(Throwable error) {}
+}
@@ -0,0 +1,471 @@
+package t34;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites the trees read by {@link AstNodeReader} before they get to {@link Evaluator}.
+ * Levels of aggressiveness:
+ * <ul>
+ *   <li>0 - off, trees are evaluated as read;</li>
+ *   <li>1 - beta-reduction of the literal lambda applications, which never changes the result: the argument is
+ *   substituted if it is a variable, a number or a small lambda, globals are substituted only outside of the nested
+ *   lambdas as they are bound by the time of the call, an undefined global is never dropped, so that it still
+ *   fails;</li>
+ *   <li>2 - also treats the current global definitions as constants: inlines small lambdas and numbers bound to
+ *   globals, folds {@code inc}/{@code dec} of numbers and substitutes globals anywhere. Code optimized this way
+ *   doesn't see later redefinitions of those globals;</li>
+ *   <li>3 - same as 2 with larger size limits.</li>
+ * </ul>
+ * Every rewrite consumes fuel, so the terms without normal form, e.g.
+ * {@code ((lambda (x) (x x)) (lambda (x) (x x)))}, are rewritten a bounded number of times. The rewrites recurse,
+ * so the trees deeper than {@link #MAX_DEPTH} are left as read.
+ */
+final class Optimizer {
+  private static final int[] DUPLICATE_SIZE = { 0, 8, 8, 32 }; // max size of a lambda substituted more than once
+  private static final int[] INLINE_SIZE = { 0, 0, 16, 64 }; // max size of an inlined global definition
+  private static final int[] FUEL = { 0, 64, 64, 256 }; // max number of rewrites per tree
+  private static final int MAX_DEPTH = 1000; // max depth of a rewritten tree, well within the thread stack
+
+  private volatile int level;
+  private volatile PrintStream dump;
+  private final Map<Integer, Definition> definitions = new HashMap<>();
+  private Main.Env definitionsEnv;
+
+  private long betaReductions;
+  private long inlines;
+  private long folds;
+
+  public Optimizer(int level, PrintStream dump) {
+    setLevel(level);
+    setDump(dump);
+  }
+
+  public int getLevel() { return level; }
+  public void setLevel(int level) {
+    if (level < 0 || level >= FUEL.length) { throw new IllegalArgumentException("level=" + level); }
+    this.level = level;
+  }
+
+  /** Sets the stream to print the trees before and after the optimization to, null disables the dump. */
+  public void setDump(PrintStream dump) { this.dump = dump; }
+
+  public synchronized long getBetaReductions() { return betaReductions; }
+  public synchronized long getInlines() { return inlines; }
+  public synchronized long getFolds() { return folds; }
+
+  /**
+   * Optimizes the top level node read in the given global scope.
+   *
+   * @return optimized node or the same node if nothing was rewritten
+   */
+  public PrimitiveAtom optimize(PrimitiveAtom node, LexicalScope scope) {
+    final int currentLevel = level;
+    if (currentLevel == 0 || isTooDeep(node)) { return node; }
+
+    final PrimitiveAtom value = node instanceof Define ? ((Define) node).value : node;
+    final Term term = Term.of(value, -1);
+    final Pass pass = new Pass(currentLevel);
+    final Term optimized = pass.simplify(term);
+    if (optimized == term) { return node; }
+
+    synchronized (this) {
+      betaReductions += pass.betaReductions;
+      inlines += pass.inlines;
+      folds += pass.folds;
+    }
+
+    final PrimitiveAtom optimizedValue = optimized.build(scope, new ArrayList<>());
+    final PrimitiveAtom result = node instanceof Define ? new Define(((Define) node).sym, optimizedValue)
+        : optimizedValue;
+    final PrintStream out = dump;
+    if (out != null) {
+      out.println(";; optimized: " + toSource(node) + "\n;;        => " + toSource(result));
+    }
+    return result;
+  }
+
+  /**
+   * Records the definition of a global, so that it could be inlined while the global keeps the given value.
+   */
+  public synchronized void define(GlobalLocation global, PrimitiveAtom value, Main.Atom atom) {
+    if (definitionsEnv != Main.currentEnv()) { // definitions of another environment are not valid anymore
+      definitions.clear();
+      definitionsEnv = Main.currentEnv();
+    }
+    if (value instanceof Lambda || value instanceof Int) {
+      definitions.put(global.getSlot(), new Definition(Term.of(value, -1), atom));
+    } else {
+      definitions.remove(global.getSlot());
+    }
+  }
+
+  /**
+   * Rewrites the tree for the call-by-need mode: arguments that are calls become {@code (%delay (lambda (_) arg))},
+   * which evaluates to a {@link Thunk}. Other arguments are values already. Trees deeper than {@link #MAX_DEPTH}
+   * are evaluated as read.
+   */
+  public static PrimitiveAtom delayArguments(PrimitiveAtom node, LexicalScope scope) {
+    if (isTooDeep(node)) { return node; }
+    if (node instanceof Define) {
+      final Define define = (Define) node;
+      return new Define(define.sym, delayArguments(define.value, scope));
+    }
+    final Term term = Term.of(node, -1);
+    final Term delayed = term.delay();
+    return delayed == term ? node : delayed.build(scope, new ArrayList<>());
+  }
+
+  /** @return source text of the tree, shadowed names are renamed */
+  public static String toSource(PrimitiveAtom node) {
+    if (node instanceof Define) {
+      final Define define = (Define) node;
+      return "(define " + define.sym + " " + toSource(define.value) + ")";
+    }
+    final StringBuilder builder = new StringBuilder();
+    Term.of(node, -1).append(builder, new ArrayList<>());
+    return builder.toString();
+  }
+
+  /** @return source text of the tree with the names as written, the tree may refer to variables bound outside */
+  public static String toWrittenSource(PrimitiveAtom node) {
+    if (node instanceof Define) {
+      final Define define = (Define) node;
+      return "(define " + define.sym + " " + toWrittenSource(define.value) + ")";
+    }
+    if (node instanceof Call) {
+      return "(" + toWrittenSource(((Call) node).lhs) + " " + toWrittenSource(((Call) node).rhs) + ")";
+    }
+    if (node instanceof Lambda) {
+      final Lambda lambda = (Lambda) node;
+      return "(lambda (" + lambda.scope.getLocalVarName() + ") " + toWrittenSource(lambda.body) + ")";
+    }
+    return node.toString(); // symbol or number
+  }
+
+  //
+  // Private
+  //
+
+  private synchronized Term getDefinition(Global global) {
+    final Main.Env env = Main.currentEnv();
+    if (env != definitionsEnv) { return null; }
+    final Definition definition = definitions.get(global.slot);
+    if (definition == null || !env.isDefined(global.slot) || env.get(global.slot) != definition.atom) {
+      return null; // redefined
+    }
+    return definition.term;
+  }
+
+  private static boolean isDefined(Global global) { return Main.currentEnv().isDefined(global.slot); }
+
+  private static boolean isTooDeep(PrimitiveAtom root) {
+    final ArrayDeque<PrimitiveAtom> nodes = new ArrayDeque<>();
+    final ArrayDeque<Integer> depths = new ArrayDeque<>();
+    nodes.push(root);
+    depths.push(0);
+    while (!nodes.isEmpty()) {
+      final PrimitiveAtom node = nodes.pop();
+      final int depth = depths.pop();
+      if (depth > MAX_DEPTH) { return true; }
+      if (node instanceof Define) {
+        nodes.push(((Define) node).value);
+        depths.push(depth);
+      } else if (node instanceof Lambda) {
+        nodes.push(((Lambda) node).body);
+        depths.push(depth + 1);
+      } else if (node instanceof Call) {
+        nodes.push(((Call) node).lhs);
+        depths.push(depth + 1);
+        nodes.push(((Call) node).rhs);
+        depths.push(depth + 1);
+      }
+    }
+    return false;
+  }
+
+  private static boolean isBuiltin(Global global, Main.Atom builtin) {
+    final Main.Env env = Main.currentEnv();
+    return env.isDefined(global.slot) && env.get(global.slot) == builtin;
+  }
+
+  private static final class Definition {
+    final Term term;
+    final Main.Atom atom;
+
+    Definition(Term term, Main.Atom atom) {
+      this.term = term;
+      this.atom = atom;
+    }
+  }
+
+  /** Rewrites of a single tree. */
+  private final class Pass {
+    final int level;
+    int fuel;
+    int betaReductions;
+    int inlines;
+    int folds;
+
+    Pass(int level) {
+      this.level = level;
+      this.fuel = FUEL[level];
+    }
+
+    Term simplify(Term term) {
+      if (term instanceof Abs) {
+        final Abs abs = (Abs) term;
+        final Term body = simplify(abs.body);
+        return body == abs.body ? abs : new Abs(abs.name, body, abs.position);
+      }
+
+      if (term instanceof Global && level >= 2) {
+        final Term definition = getDefinition((Global) term);
+        if (definition instanceof Lit && fuel > 0) {
+          --fuel;
+          ++inlines;
+          return definition;
+        }
+        return term;
+      }
+
+      if (!(term instanceof App)) { return term; }
+
+      final App app = (App) term;
+      final Term fn = simplify(app.fn);
+      final Term arg = simplify(app.arg);
+      if (fuel > 0) {
+        if (fn instanceof Abs && canSubstitute((Abs) fn, arg)) {
+          --fuel;
+          ++betaReductions;
+          return simplify(((Abs) fn).body.substitute(0, arg.shift(1, 0)).shift(-1, 0));
+        }
+
+        if (fn instanceof Global && level >= 2) {
+          final Global global = (Global) fn;
+          if (arg instanceof Lit && isBuiltin(global, Inc.INSTANCE)) {
+            --fuel;
+            ++folds;
+            return new Lit(Int.valueOf(((Lit) arg).value.toInt() + 1));
+          }
+          if (arg instanceof Lit && isBuiltin(global, Dec.INSTANCE)) {
+            --fuel;
+            ++folds;
+            return new Lit(Int.valueOf(((Lit) arg).value.toInt() - 1));
+          }
+
+          final Term definition = getDefinition(global); // inline only if the call can be reduced
+          if (definition instanceof Abs && definition.size() <= INLINE_SIZE[level]
+              && canSubstitute((Abs) definition, arg)) {
+            --fuel;
+            ++inlines;
+            return simplify(new App(definition, arg, app.position));
+          }
+        }
+      }
+      return fn == app.fn && arg == app.arg ? app : new App(fn, arg, app.position);
+    }
+
+    private boolean canSubstitute(Abs fn, Term arg) {
+      if (arg instanceof Ref || arg instanceof Lit) { return true; }
+      if (arg instanceof Global) {
+        if (!isDefined((Global) arg)) { // the lookup has to fail where it did
+          return fn.body.countUses(0) > 0 && !fn.body.isUsedUnderLambda(0);
+        }
+        return level >= 2 || !fn.body.isUsedUnderLambda(0);
+      }
+      if (arg instanceof Abs) { return fn.body.countUses(0) <= 1 || arg.size() <= DUPLICATE_SIZE[level]; }
+      return false; // evaluation of the call would be moved or duplicated
+    }
+  }
+
+  /**
+   * Terms with de Bruijn indices, so that substitution doesn't need renaming.
+   */
+  private static abstract class Term {
+    static Term of(PrimitiveAtom node, int depth) {
+      if (node instanceof Symbol) {
+        final Symbol symbol = (Symbol) node;
+        if (symbol.location == SimpleLocation.VAR) { return new Ref(0); }
+        if (symbol.location instanceof GlobalLocation) { return new Global(symbol); }
+        return new Ref(depth - ((ClosureLocation) symbol.location).getParameterIndex());
+      }
+      if (node instanceof Call) {
+        final Call call = (Call) node;
+        return new App(of(call.lhs, depth), of(call.rhs, depth), call.position);
+      }
+      if (node instanceof Lambda) {
+        final Lambda lambda = (Lambda) node;
+        return new Abs(lambda.scope.getLocalVarName(), of(lambda.body, lambda.getDepth()), lambda.position);
+      }
+      if (node instanceof Int) { return new Lit((Int) node); }
+      throw new UnsupportedOperationException("Can't optimize " + node);
+    }
+
+    /** Adds the delta to the indices of the variables bound outside of {@code cutoff} lambdas. */
+    abstract Term shift(int delta, int cutoff);
+    /** Replaces the variable with the given index with the term. */
+    abstract Term substitute(int index, Term term);
+    abstract int countUses(int index);
+    abstract boolean isUsedUnderLambda(int index);
+    abstract int size();
+    /** Wraps the arguments that are calls into thunks. */
+    abstract Term delay();
+    /** Builds the tree within the scope, binders are the enclosing lambda scopes, the innermost is the last one. */
+    abstract PrimitiveAtom build(LexicalScope scope, List<LexicalScope> binders);
+    abstract void append(StringBuilder builder, List<String> names);
+  }
+
+  private static final class Ref extends Term {
+    final int index;
+    Ref(int index) { this.index = index; }
+
+    Term shift(int delta, int cutoff) { return index < cutoff ? this : new Ref(index + delta); }
+    Term substitute(int index, Term term) { return this.index == index ? term : this; }
+    int countUses(int index) { return this.index == index ? 1 : 0; }
+    boolean isUsedUnderLambda(int index) { return false; }
+    int size() { return 1; }
+    Term delay() { return this; }
+
+    PrimitiveAtom build(LexicalScope scope, List<LexicalScope> binders) {
+      final LexicalScope binder = binders.get(binders.size() - 1 - index);
+      final Symbol result = index == 0 ? binder.getLocalVarNode() : binder.getLocalClosureLocation().getNode();
+      result.location.mark();
+      return result;
+    }
+
+    void append(StringBuilder builder, List<String> names) { builder.append(names.get(names.size() - 1 - index)); }
+  }
+
+  private static final class Global extends Term {
+    final Symbol symbol;
+    final int slot;
+
+    Global(Symbol symbol) {
+      this.symbol = symbol;
+      this.slot = ((GlobalLocation) symbol.location).getSlot();
+    }
+
+    Term shift(int delta, int cutoff) { return this; }
+    Term substitute(int index, Term term) { return this; }
+    int countUses(int index) { return 0; }
+    boolean isUsedUnderLambda(int index) { return false; }
+    int size() { return 1; }
+    Term delay() { return this; }
+    PrimitiveAtom build(LexicalScope scope, List<LexicalScope> binders) { return symbol; }
+    void append(StringBuilder builder, List<String> names) { builder.append(symbol); }
+  }
+
+  private static final class Lit extends Term {
+    final Int value;
+    Lit(Int value) { this.value = value; }
+
+    Term shift(int delta, int cutoff) { return this; }
+    Term substitute(int index, Term term) { return this; }
+    int countUses(int index) { return 0; }
+    boolean isUsedUnderLambda(int index) { return false; }
+    int size() { return 1; }
+    Term delay() { return this; }
+    PrimitiveAtom build(LexicalScope scope, List<LexicalScope> binders) { return value; }
+    void append(StringBuilder builder, List<String> names) { builder.append(value); }
+  }
+
+  private static final class App extends Term {
+    static final Term DELAY = new Global(GlobalLocation.of(Thunk.DELAY_SYMBOL).getNode());
+
+    final Term fn;
+    final Term arg;
+    final SourcePosition position;
+
+    App(Term fn, Term arg, SourcePosition position) {
+      this.fn = fn;
+      this.arg = arg;
+      this.position = position;
+    }
+
+    Term shift(int delta, int cutoff) {
+      return new App(fn.shift(delta, cutoff), arg.shift(delta, cutoff), position);
+    }
+
+    Term substitute(int index, Term term) {
+      return new App(fn.substitute(index, term), arg.substitute(index, term), position);
+    }
+
+    int countUses(int index) { return fn.countUses(index) + arg.countUses(index); }
+    boolean isUsedUnderLambda(int index) { return fn.isUsedUnderLambda(index) || arg.isUsedUnderLambda(index); }
+    int size() { return 1 + fn.size() + arg.size(); }
+
+    Term delay() {
+      final Term delayedFn = fn.delay();
+      final Term delayedArg = arg.delay();
+      if (arg instanceof App) { // the thunk is placed where the call was
+        final SourcePosition argPosition = ((App) arg).position;
+        return new App(delayedFn, new App(DELAY, new Abs(Thunk.CODE_VAR, delayedArg.shift(1, 0), argPosition),
+            argPosition), position);
+      }
+      return delayedFn == fn && delayedArg == arg ? this : new App(delayedFn, delayedArg, position);
+    }
+
+    PrimitiveAtom build(LexicalScope scope, List<LexicalScope> binders) {
+      return new Call(fn.build(scope, binders), arg.build(scope, binders), position);
+    }
+
+    void append(StringBuilder builder, List<String> names) {
+      builder.append('(');
+      fn.append(builder, names);
+      builder.append(' ');
+      arg.append(builder, names);
+      builder.append(')');
+    }
+  }
+
+  private static final class Abs extends Term {
+    final String name;
+    final Term body;
+    final SourcePosition position;
+
+    Abs(String name, Term body, SourcePosition position) {
+      this.name = name;
+      this.body = body;
+      this.position = position;
+    }
+
+    Term shift(int delta, int cutoff) { return new Abs(name, body.shift(delta, cutoff + 1), position); }
+
+    Term substitute(int index, Term term) {
+      return new Abs(name, body.substitute(index + 1, term.shift(1, 0)), position);
+    }
+
+    int countUses(int index) { return body.countUses(index + 1); }
+    boolean isUsedUnderLambda(int index) { return body.countUses(index + 1) > 0; }
+    int size() { return 1 + body.size(); }
+
+    Term delay() {
+      final Term delayedBody = body.delay();
+      return delayedBody == body ? this : new Abs(name, delayedBody, position);
+    }
+
+    PrimitiveAtom build(LexicalScope scope, List<LexicalScope> binders) {
+      final LexicalScope lambdaScope = new LambdaLexicalScope(binders.isEmpty() ? scope
+          : binders.get(binders.size() - 1), name);
+      binders.add(lambdaScope);
+      final PrimitiveAtom lambdaBody = body.build(scope, binders);
+      binders.remove(binders.size() - 1);
+      return new Lambda(lambdaScope, lambdaBody, position);
+    }
+
+    void append(StringBuilder builder, List<String> names) {
+      String unique = name;
+      for (int i = 1; names.contains(unique); ++i) { unique = name + i; } // shadowed by substitution
+      builder.append("(lambda (").append(unique).append(") ");
+      names.add(unique);
+      body.append(builder, names);
+      names.remove(names.size() - 1);
+      builder.append(')');
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package t34;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel mode of {@link Evaluator}: the two sides of an application are evaluated as fork/join tasks when both
+ * of them are expensive, cheap subterms are evaluated sequentially in the current task. The cost of a subterm is
+ * the number of applications it contains, lambda bodies included; only applications outside of lambdas get split,
+ * the ones in lambda bodies run when the lambda is applied.
+ * Evaluation has no side effects, so the result doesn't depend on the schedule. Failures don't either: the function
+ * side is evaluated first in the current task and its error wins, as in the sequential order.
+ */
+final class ParallelEvaluator {
+
+  /** Evaluator of the subterms that are not split. */
+  interface Sequential {
+    Main.Atom eval(PrimitiveAtom node) throws Exception;
+  }
+
+  private final ForkJoinPool pool;
+  private volatile int threshold;
+  private final AtomicLong forks = new AtomicLong();
+
+  public ParallelEvaluator(int parallelism, int threshold) {
+    this.pool = new ForkJoinPool(parallelism);
+    setThreshold(threshold);
+  }
+
+  public int getParallelism() { return pool.getParallelism(); }
+
+  public int getThreshold() { return threshold; }
+
+  /** Sets the number of applications a subterm needs to be evaluated in a task of its own. */
+  public void setThreshold(int threshold) {
+    if (threshold < 1) { throw new IllegalArgumentException("threshold=" + threshold); }
+    this.threshold = threshold;
+  }
+
+  /** @return number of subterms evaluated as separate tasks */
+  public long getForks() { return forks.get(); }
+
+  public Main.Atom eval(PrimitiveAtom node, Sequential sequential) throws Exception {
+    final Task task = new Task(node, sequential, Main.currentEnv());
+    pool.invoke(task);
+    return task.getResult();
+  }
+
+  public void shutdown() { pool.shutdown(); }
+
+  /** @return true if the node has at least {@link #threshold} applications */
+  private boolean isExpensive(PrimitiveAtom node) {
+    final int limit = threshold;
+    int calls = 0;
+    final ArrayDeque<PrimitiveAtom> pending = new ArrayDeque<>();
+    pending.push(node);
+    while (!pending.isEmpty()) {
+      final PrimitiveAtom next = pending.pop();
+      if (next instanceof Call) {
+        if (++calls >= limit) { return true; }
+        pending.push(((Call) next).lhs);
+        pending.push(((Call) next).rhs);
+      } else if (next instanceof Lambda) {
+        pending.push(((Lambda) next).body);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Evaluation of a subterm in the environment of the session that started it. The failure is kept rather than
+   * thrown, so that the joining task rethrows it as is.
+   */
+  private final class Task extends RecursiveAction {
+    private final PrimitiveAtom node;
+    private final Sequential sequential;
+    private final Main.Env env;
+    private Main.Atom result;
+    private Throwable failure;
+
+    Task(PrimitiveAtom node, Sequential sequential, Main.Env env) {
+      this.node = node;
+      this.sequential = sequential;
+      this.env = env;
+    }
+
+    @Override
+    protected void compute() {
+      final boolean bind = Main.currentEnv() != env;
+      final Main.Env previous = bind ? Main.bindEnv(env) : null;
+      try {
+        result = evaluate(node);
+      } catch (Throwable e) {
+        failure = e;
+      } finally {
+        if (bind) { Main.bindEnv(previous); }
+      }
+    }
+
+    Main.Atom getResult() throws Exception {
+      if (failure instanceof Exception) { throw (Exception) failure; }
+      if (failure instanceof Error) { throw (Error) failure; }
+      if (failure != null) { throw new IllegalStateException(failure); }
+      return result;
+    }
+
+    private Main.Atom evaluate(PrimitiveAtom term) throws Exception {
+      if (term instanceof Symbol && ((Symbol) term).location instanceof GlobalLocation) { // not worth a class
+        return Main.currentEnv().get(((GlobalLocation) ((Symbol) term).location).getSlot());
+      }
+      if (!(term instanceof Call) || !isExpensive(term)) { return sequential.eval(term); }
+      final Call call = (Call) term;
+      if (!isExpensive(call.lhs) || !isExpensive(call.rhs)) { // one of them may still be split further
+        final Main.Atom fn = evaluate(call.lhs);
+        return fn.fn(evaluate(call.rhs));
+      }
+
+      forks.incrementAndGet();
+      final Task arg = new Task(call.rhs, sequential, env);
+      arg.fork();
+      final Main.Atom fn;
+      try {
+        fn = evaluate(call.lhs);
+      } catch (Throwable e) { // the argument is not needed anymore and holds nothing to clean up, so it isn't awaited
+        arg.cancel(false);
+        throw e;
+      }
+      arg.quietlyJoin();
+      return fn.fn(arg.getResult());
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package t34;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-lambda profile of the compiled code, enabled with {@code t34.profile}. In the profiling mode every generated
+ * lambda class counts the calls of its body and its instances in a {@link Main.LambdaProfile}; with the mode off
+ * the classes are generated as they are otherwise and have no counters at all.
+ * Alpha-equivalent lambdas share a class, so they share a profile too, unless they are read from other lines of a
+ * script. Calls made while a lambda is interpreted are not counted, {@code t34.compileThreshold=0} compiles every
+ * lambda before its first call.
+ * A profile lives as long as its class, the profiler finds the live ones through weak references.
+ */
+final class Profiler {
+  // profiles of the classes that have not been initialized yet
+  private static final Map<Class<?>, Main.LambdaProfile> PENDING = Collections.synchronizedMap(new WeakHashMap<>());
+  private static final ReferenceQueue<Main.LambdaProfile> COLLECTED = new ReferenceQueue<>();
+  private static final Set<Reference<Main.LambdaProfile>> PROFILES =
+      Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private static volatile boolean enabled = Boolean.getBoolean("t34.profile");
+
+  private Profiler() {}
+
+  public static boolean isEnabled() { return enabled; }
+
+  /**
+   * Enables or disables the profiling mode for the classes generated from now on. Lambdas compiled before keep
+   * their classes, {@link Evaluator#CLASS_CACHE} is cleared so that new compilations get the new mode.
+   */
+  public static void setEnabled(boolean enabled) {
+    if (Profiler.enabled != enabled) {
+      Profiler.enabled = enabled;
+      Evaluator.CLASS_CACHE.clear();
+    }
+  }
+
+  /** Called once the class is defined and before it is used, so that its static initializer finds the source. */
+  static void register(Class<?> lambdaClass, Lambda lambda) {
+    PENDING.put(lambdaClass,
+        new Main.LambdaProfile(lambdaClass.getName(), Optimizer.toWrittenSource(lambda), lambda.position));
+  }
+
+  static Main.LambdaProfile profileOf(Class<?> lambdaClass) {
+    Main.LambdaProfile result = PENDING.remove(lambdaClass);
+    // classes defined from a snapshot or another run were never registered in this one
+    if (result == null) { result = new Main.LambdaProfile(lambdaClass.getName(), "?", null); }
+    expungeCollected();
+    PROFILES.add(new WeakReference<>(result, COLLECTED));
+    return result;
+  }
+
+  /** @return profiles of the live classes sorted by the number of calls, then by the number of allocations */
+  public static List<Main.LambdaProfile> getProfiles() {
+    expungeCollected();
+    final List<Main.LambdaProfile> result = new ArrayList<>(PROFILES.size());
+    for (final Reference<Main.LambdaProfile> reference : PROFILES) {
+      final Main.LambdaProfile profile = reference.get();
+      if (profile != null) { result.add(profile); }
+    }
+    result.sort(Comparator.comparingLong(Main.LambdaProfile::getCalls)
+        .thenComparingLong(Main.LambdaProfile::getAllocations).reversed());
+    return result;
+  }
+
+  /** Zeroes all the counters, profiles of the classes stay registered. */
+  public static void reset() {
+    for (final Main.LambdaProfile profile : getProfiles()) { profile.reset(); }
+  }
+
+  /** @return table of the busiest lambdas, one per line, each line starts with {@code ;; } */
+  public static String report(int limit) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(String.format(";; %12s %12s  %-16s %s", "calls", "allocations", "class", "lambda"));
+    int count = 0;
+    for (final Main.LambdaProfile profile : getProfiles()) {
+      if (count++ == limit || (profile.getCalls() == 0 && profile.getAllocations() == 0)) { break; }
+      final SourcePosition position = profile.getPosition();
+      builder.append(String.format("%n;; %12d %12d  %-16s %s", profile.getCalls(), profile.getAllocations(),
+          profile.getClassName(), abbreviate((position != null ? position + " " : "") + profile.getSource())));
+    }
+    if (!enabled) { builder.append(String.format("%n;; profiling is off, start with -Dt34.profile=true")); }
+    return builder.toString();
+  }
+
+  //
+  // Private
+  //
+
+  private static void expungeCollected() {
+    for (Reference<? extends Main.LambdaProfile> ref = COLLECTED.poll(); ref != null; ref = COLLECTED.poll()) {
+      PROFILES.remove(ref);
+    }
+  }
+
+  private static String abbreviate(String source) {
+    return source.length() <= 80 ? source : source.substring(0, 77) + "...";
+  }
+}
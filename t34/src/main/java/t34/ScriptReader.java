@@ -0,0 +1,232 @@
+package t34;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming source of the top level expressions for {@link AstNodeReader}.
+ * Characters are pulled from a {@link Reader} or decoded from a {@link ByteBuffer} through a fixed size chunk,
+ * only the current expression is buffered, so the memory footprint is bounded by the largest expression rather
+ * than by the script. Expressions may span any number of lines.
+ */
+final class ScriptReader implements Closeable {
+  private static final int CHUNK_SIZE = 8192;
+
+  private final Reader source;
+  private final ByteBuffer bytes;
+  private final CharsetDecoder decoder;
+  private final Closeable resource;
+  private final String sourceName;
+  private final CharBuffer chunk = CharBuffer.allocate(CHUNK_SIZE);
+  private final Parser parser = new Parser();
+  private final AstNodeReader reader = new AstNodeReader(parser);
+  private boolean flushing;
+  private boolean endOfInput;
+
+  private char[] expression = new char[256];
+  private int length;
+  private int line = 1;
+  private int column = 1;
+  private int expressionLine;
+  private int expressionColumn;
+  private int maxExpressionLength = Integer.MAX_VALUE;
+
+  public ScriptReader(Reader source) {
+    this(source, null);
+  }
+
+  /** @param sourceName name of the script in the positions of the nodes, e.g. a file name, or null */
+  public ScriptReader(Reader source, String sourceName) {
+    this(source, null, null, source, sourceName);
+  }
+
+  public ScriptReader(ByteBuffer bytes, Charset charset) {
+    this(bytes, charset, null);
+  }
+
+  /** @param sourceName name of the script in the positions of the nodes, e.g. a file name, or null */
+  public ScriptReader(ByteBuffer bytes, Charset charset, String sourceName) {
+    this(null, bytes, charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT), null, sourceName);
+  }
+
+  private ScriptReader(Reader source, ByteBuffer bytes, CharsetDecoder decoder, Closeable resource,
+                       String sourceName) {
+    this.source = source;
+    this.bytes = bytes;
+    this.decoder = decoder;
+    this.resource = resource;
+    this.sourceName = sourceName;
+    chunk.flip(); // nothing to read yet
+  }
+
+  /**
+   * Opens UTF-8 script file, the file is memory-mapped unless it exceeds the size of a single mapping.
+   * Nodes are positioned in the file given by its name, as class files name their sources.
+   */
+  public static ScriptReader open(Path path) throws IOException {
+    final String sourceName = path.getFileName().toString();
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() <= Integer.MAX_VALUE) { // mapping stays valid after the channel is closed
+        final ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return new ScriptReader(bytes, StandardCharsets.UTF_8, sourceName);
+      }
+    }
+    return new ScriptReader(Channels.newReader(FileChannel.open(path, StandardOpenOption.READ), "UTF-8"),
+        sourceName);
+  }
+
+  /**
+   * Limits the number of characters of an expression, so that an input that never closes its list can't take all
+   * the memory. Unlimited by default.
+   */
+  public ScriptReader setMaxExpressionLength(int maxExpressionLength) {
+    if (maxExpressionLength < 1) { throw new IllegalArgumentException("maxExpressionLength=" + maxExpressionLength); }
+    this.maxExpressionLength = maxExpressionLength;
+    return this;
+  }
+
+  /**
+   * Reads the next top level expression.
+   *
+   * @return expression or null at the end of input
+   */
+  public PrimitiveAtom read(LexicalScope scope) throws IOException {
+    return nextExpression() ? parse(scope) : null;
+  }
+
+  /** Parses the expression buffered by {@link #nextExpression()}. */
+  public PrimitiveAtom parse(LexicalScope scope) {
+    final Metrics metrics = Evaluator.getMetrics();
+    parser.init(expression, 0, length, sourceName, expressionLine, expressionColumn);
+    if (metrics == Metrics.NONE) { return reader.read(scope); } // no clock reads, they are not free
+    final long start = System.nanoTime();
+    try {
+      final PrimitiveAtom result = reader.read(scope);
+      metrics.parsed(System.nanoTime() - start);
+      return result;
+    } catch (RuntimeException e) {
+      metrics.syntaxError();
+      throw e;
+    }
+  }
+
+  /**
+   * Buffers the next top level expression: either a balanced list or a bare atom.
+   *
+   * @return false at the end of input
+   */
+  public boolean nextExpression() throws IOException {
+    length = 0;
+    int depth = 0;
+    for (;;) {
+      if (!chunk.hasRemaining() && !fill()) {
+        if (depth > 0) {
+          throw new ParserException("unexpected end of input, expression at line " + expressionLine + " is not closed");
+        }
+        return length > 0;
+      }
+
+      final char ch = chunk.get();
+      if (length == 0) {
+        if (ch <= ' ') { // skip whitespace between expressions
+          advance(ch);
+          continue;
+        }
+        expressionLine = line;
+        expressionColumn = column;
+      } else if (depth == 0 && (ch <= ' ' || ch == '(' || ch == ')')) { // end of a bare atom
+        chunk.position(chunk.position() - 1);
+        return true;
+      }
+
+      advance(ch);
+      append(ch);
+      if (ch == '(') {
+        ++depth;
+      } else if (ch == ')') {
+        if (depth == 0) { throw new ParserException("unexpected close brace at line " + line); }
+        if (--depth == 0) { return true; }
+      }
+    }
+  }
+
+  /** @return true if the current expression consists of the given characters */
+  public boolean isExpression(String text) {
+    if (text.length() != length) { return false; }
+    for (int i = 0; i < length; ++i) {
+      if (text.charAt(i) != expression[i]) { return false; }
+    }
+    return true;
+  }
+
+  /** @return line the current expression starts at, 1-based */
+  public int getLine() { return expressionLine; }
+
+  /** @return column the current expression starts at, 1-based */
+  public int getColumn() { return expressionColumn; }
+
+  @Override
+  public void close() throws IOException {
+    if (resource != null) { resource.close(); }
+  }
+
+  //
+  // Private
+  //
+
+  private void advance(char ch) {
+    if (ch == '\n') {
+      ++line;
+      column = 1;
+    } else {
+      ++column;
+    }
+  }
+
+  private void append(char ch) {
+    if (length == maxExpressionLength) {
+      throw new ParserException("expression at line " + expressionLine + " is longer than " + maxExpressionLength +
+          " characters");
+    }
+    if (length == expression.length) {
+      expression = Arrays.copyOf(expression, (int) Math.min(length * 2L, maxExpressionLength));
+    }
+    expression[length++] = ch;
+  }
+
+  private boolean fill() throws IOException {
+    if (endOfInput) { return false; }
+    chunk.clear();
+    if (source != null) {
+      final int count = source.read(chunk);
+      endOfInput = count < 0;
+    } else {
+      if (!flushing) {
+        final CoderResult result = decoder.decode(bytes, chunk, true);
+        if (result.isError()) { result.throwException(); }
+        flushing = result.isUnderflow(); // all the bytes are decoded
+      }
+      if (flushing) {
+        final CoderResult result = decoder.flush(chunk);
+        endOfInput = result.isUnderflow();
+      }
+    }
+    chunk.flip();
+    return chunk.hasRemaining() || (!endOfInput && fill());
+  }
+}
@@ -0,0 +1,224 @@
+package t34;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluation server on the loopback interface. Every connection is a session with its own {@link Main.Env} and
+ * {@link Evaluator}, served by a thread of its own: a virtual thread where the runtime has them, a pooled one
+ * otherwise. Requests of a session are evaluated one by one on its thread rather than on a thread per request, which
+ * would cost a hand-off on every request. Requests are expressions in the script syntax, each gets a one line
+ * response with the value or with an error starting with {@code ;; }, {@code (quit)} closes the session.
+ * An evaluation that runs longer than {@link #getRequestTimeout()} is interrupted, an expression longer than
+ * {@link #getMaxExpressionLength()} ends the session, as the rest of it can't be skipped.
+ * Generated classes are shared by the sessions, globals are resolved in the environment of the calling session.
+ * Each session numbers its globals in a symbol table of its own, which is bounded by {@link #getMaxGlobals()} and
+ * goes away with the session, so the symbols one client reads don't grow the environments of the others.
+ */
+final class Server implements Closeable {
+  static final int DEFAULT_PORT = 3434;
+  private static final String CANCELLED = ";; Error: " + CancellationException.class.getName();
+
+  private final ServerSocket serverSocket;
+  private final Snapshot prelude;
+  private final ExecutorService executor = newSessionExecutor();
+  private final ScheduledThreadPoolExecutor watchdog = newWatchdog();
+  private final AtomicInteger activeSessions = new AtomicInteger();
+  private final AtomicLong sessions = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private volatile int maxGlobals = Integer.getInteger("t34.server.maxGlobals", 16384);
+  private volatile int maxExpressionLength = Integer.getInteger("t34.server.maxExpressionLength", 1 << 20);
+  private volatile long requestTimeout = Long.getLong("t34.server.requestTimeout", 10000L);
+
+  /** Binds the server, port 0 picks a free one. */
+  public Server(int port) throws IOException { this(port, null); }
+
+  /** Binds the server, each session starts with the globals of the prelude, if any. */
+  public Server(int port, Snapshot prelude) throws IOException {
+    this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+    this.prelude = prelude;
+    Main.enableInterruption();
+  }
+
+  public int getPort() { return serverSocket.getLocalPort(); }
+
+  public int getActiveSessions() { return activeSessions.get(); }
+
+  public long getSessions() { return sessions.get(); }
+
+  public long getRequests() { return requests.get(); }
+
+  /** @return number of global symbols, built-ins and prelude included, a session may reference */
+  public int getMaxGlobals() { return maxGlobals; }
+
+  /** Sets the number of global symbols of the sessions started from now on. */
+  public void setMaxGlobals(int maxGlobals) {
+    if (maxGlobals < 1) { throw new IllegalArgumentException("maxGlobals=" + maxGlobals); }
+    this.maxGlobals = maxGlobals;
+  }
+
+  /** @return number of characters of a request expression */
+  public int getMaxExpressionLength() { return maxExpressionLength; }
+
+  /** Sets the number of characters of a request expression in the sessions started from now on. */
+  public void setMaxExpressionLength(int maxExpressionLength) {
+    if (maxExpressionLength < 1) { throw new IllegalArgumentException("maxExpressionLength=" + maxExpressionLength); }
+    this.maxExpressionLength = maxExpressionLength;
+  }
+
+  /** @return milliseconds an evaluation may take before it gets interrupted, 0 if it is never interrupted */
+  public long getRequestTimeout() { return requestTimeout; }
+
+  public void setRequestTimeout(long requestTimeout) {
+    if (requestTimeout < 0) { throw new IllegalArgumentException("requestTimeout=" + requestTimeout); }
+    this.requestTimeout = requestTimeout;
+  }
+
+  /** Accepts the connections in the background. */
+  public void start() {
+    final Thread acceptor = new Thread(this::serve, "t34-server");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /** Accepts the connections until the server gets closed. */
+  public void serve() {
+    while (!serverSocket.isClosed()) {
+      final Socket connection;
+      try {
+        connection = serverSocket.accept();
+      } catch (IOException e) {
+        if (serverSocket.isClosed()) { return; }
+        System.err.println(";; Unable to accept connection: " + e.getMessage());
+        continue;
+      }
+      executor.execute(() -> runSession(connection));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    executor.shutdownNow();
+    watchdog.shutdownNow();
+  }
+
+  //
+  // Private
+  //
+
+  private void runSession(Socket connection) {
+    sessions.incrementAndGet();
+    activeSessions.incrementAndGet();
+    final Main.Env env = new Main.Env(new GlobalLocation.Table(maxGlobals));
+    if (prelude != null) { prelude.bind(env); }
+    final Main.Env previous = Main.bindEnv(env);
+    final Evaluator evaluator = new Evaluator();
+    try (final Socket socket = connection;
+         final ScriptReader r = new ScriptReader(new InputStreamReader(socket.getInputStream(),
+             StandardCharsets.UTF_8)).setMaxExpressionLength(maxExpressionLength);
+         final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+      socket.setTcpNoDelay(true);
+      for (;;) {
+        final String response;
+        try {
+          if (!r.nextExpression() || r.isExpression("(quit)")) { break; }
+          requests.incrementAndGet();
+          response = evalRequest(evaluator, r);
+        } catch (ParserException e) { // unbalanced or too long input ends the session
+          out.write(";; Syntax error: " + e.getMessage() + "\n");
+          out.flush();
+          break;
+        }
+        out.write(response);
+        out.write('\n');
+        out.flush();
+      }
+    } catch (SocketException e) {
+      // the client is gone
+    } catch (InterruptedException e) { // the server is closed
+      Thread.currentThread().interrupt();
+    } catch (IOException | RuntimeException e) {
+      System.err.println(";; Session failed: " + e.getMessage());
+    } finally {
+      Main.bindEnv(previous);
+      activeSessions.decrementAndGet();
+    }
+  }
+
+  private String evalRequest(Evaluator evaluator, ScriptReader r) throws InterruptedException {
+    final PrimitiveAtom node;
+    try {
+      node = evaluator.optimize(r.parse(evaluator.scope));
+    } catch (RuntimeException e) {
+      return ";; Syntax error: " + e.getMessage();
+    }
+
+    final long timeout = requestTimeout;
+    if (timeout == 0) { return evaluate(evaluator, node); }
+    final Thread session = Thread.currentThread();
+    final ScheduledFuture<?> interruption = watchdog.schedule(session::interrupt, timeout, TimeUnit.MILLISECONDS);
+    String response = evaluate(evaluator, node);
+    if (!interruption.cancel(false)) { // the interrupt is awaited, so that it doesn't hit the next read
+      try {
+        interruption.get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException(e.getCause());
+      }
+      Thread.interrupted(); // unless the evaluation has consumed it
+      if (response.startsWith(CANCELLED)) {
+        response = ";; Error: evaluation has taken longer than " + timeout + " ms and has been interrupted";
+      }
+    }
+    return response;
+  }
+
+  private static String evaluate(Evaluator evaluator, PrimitiveAtom node) {
+    try {
+      return String.valueOf(evaluator.eval(node)).replace('\n', ' ');
+    } catch (Exception | StackOverflowError e) {
+      return ";; Error: " + e;
+    }
+  }
+
+  /** @return interrupter of the sessions whose requests time out, cancelled timeouts don't stay queued */
+  private static ScheduledThreadPoolExecutor newWatchdog() {
+    final ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, runnable -> {
+      final Thread thread = new Thread(runnable, "t34-watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    result.setRemoveOnCancelPolicy(true);
+    return result;
+  }
+
+  /** @return executor starting a virtual thread per task on Java 21+, a cached pool of daemon threads before */
+  private static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "t34-session");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+}
@@ -0,0 +1,546 @@
+package t34;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Archive of a global environment: the generated classes, the values of the globals as graphs of atoms and the
+ * names of the globals. Loading maps the archive and binds every global at once without parsing or generating
+ * anything, classes are defined on the first use of a global, each global is then rebound to its value.
+ * Numbers, built-ins and Church numerals are restored as they are; interpreted lambdas are stored compiled.
+ * Values of other kinds, e.g. lambdas of the stack-safe or graph reduction modes, can't be archived.
+ */
+final class Snapshot {
+  private static final int MAGIC = 0x74345350;
+
+  private static final byte INT = 0; // value
+  private static final byte BUILTIN = 1; // symbol
+  private static final byte NUMERAL = 2; // count
+  private static final byte OPERATION = 3; // name, fallback atom
+  private static final byte LAMBDA = 4; // class, number of fields, field atoms
+
+  // classes
+  private final String[] classNames;
+  private final Map<String, Integer> classIndices;
+  private final int[] classOffsets; // of the class bytes in the archive
+  private final int[] classLengths;
+  private final int[][] classDependencies;
+  private final ArchiveClassLoader loader;
+
+  // atoms, children always precede their parents
+  private final ByteBuffer archive;
+  private final int[] atomOffsets; // of the tag
+  private final Main.Atom[] atoms; // guarded by this, null until restored
+
+  // globals
+  private final String[] names; // of the globals, slots are numbered by the environment the snapshot is bound to
+  private final int[] globalAtoms;
+
+  private Snapshot(ByteBuffer archive) throws IOException {
+    this.archive = archive;
+    if (archive.getInt() != MAGIC) { throw new IOException("Not a snapshot"); }
+    if (!compilerDigest().equals(readString(archive))) {
+      throw new IOException("Snapshot has been written by another version of t34");
+    }
+
+    final int classCount = archive.getInt();
+    classNames = new String[classCount];
+    classOffsets = new int[classCount];
+    classLengths = new int[classCount];
+    classDependencies = new int[classCount][];
+    classIndices = new HashMap<>(classCount * 2);
+    int maxIndex = 0;
+    for (int i = 0; i < classCount; ++i) {
+      classNames[i] = readString(archive);
+      classIndices.put(classNames[i], i);
+      maxIndex = Math.max(maxIndex, indexOf(classNames[i]));
+      classDependencies[i] = new int[archive.getInt()];
+      for (int j = 0; j < classDependencies[i].length; ++j) { classDependencies[i][j] = archive.getInt(); }
+      classLengths[i] = archive.getInt();
+      classOffsets[i] = archive.position();
+      archive.position(classOffsets[i] + classLengths[i]);
+    }
+    Evaluator.reserveClassIndex(maxIndex); // the classes generated later get other names
+    loader = new ArchiveClassLoader(this);
+
+    atomOffsets = new int[archive.getInt()];
+    atoms = new Main.Atom[atomOffsets.length];
+    for (int i = 0; i < atomOffsets.length; ++i) {
+      atomOffsets[i] = archive.position();
+      skipAtom(archive);
+    }
+
+    names = new String[archive.getInt()];
+    globalAtoms = new int[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      names[i] = readString(archive);
+      globalAtoms[i] = archive.getInt();
+    }
+  }
+
+  /** Maps the archive, nothing is defined until {@link #bind(Main.Env)}. */
+  public static Snapshot load(Path file) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (RuntimeException e) { // truncated or corrupted
+      throw new IOException("Invalid snapshot " + file, e);
+    }
+  }
+
+  /** @return snapshot given by {@code t34.snapshot} or null if it is not set */
+  static Snapshot fromSystemProperties() throws IOException {
+    final String file = System.getProperty("t34.snapshot");
+    return file != null ? load(Paths.get(file)) : null;
+  }
+
+  /** @return number of globals */
+  public int size() { return names.length; }
+
+  /**
+   * Binds the globals of the snapshot in the environment at once, the values are restored on their first use.
+   * The restored values are shared by all the environments the snapshot is bound to.
+   */
+  public void bind(Main.Env env) {
+    final int[] slots = new int[names.length];
+    final Main.Atom[] values = new Main.Atom[names.length];
+    for (int i = 0; i < names.length; ++i) {
+      slots[i] = env.getSymbols().of(names[i]).getSlot();
+      final Main.Atom restored = restored(globalAtoms[i]);
+      values[i] = restored != null ? restored : new Pending(this, globalAtoms[i], env, slots[i]);
+    }
+    env.defineAll(slots, values);
+  }
+
+  /**
+   * Keeps the bytes of the lambda classes generated from now on, which {@link #write} needs. Off by default, so
+   * that the bytes of every class are not held for the lifetime of the class.
+   */
+  public static void setKeepClasses(boolean keep) {
+    GeneratedClassLoader.setKeepClassBytes(keep);
+    if (keep) { Evaluator.CLASS_CACHE.clear(); } // the cached classes may have no bytes
+  }
+
+  /**
+   * Writes the defined globals of the environment, the file is replaced atomically. The classes of the lambdas have
+   * to be generated after {@link #setKeepClasses}.
+   *
+   * @return number of globals written
+   */
+  public static int write(Main.Env env, Path file) throws Exception {
+    final String digest = compilerDigest(); // before anything is written
+    final Writer writer = new Writer();
+    final List<String> names = new ArrayList<>();
+    final List<Integer> ids = new ArrayList<>();
+    final Main.Env builtIns = new Main.Env();
+    for (int slot = 0; slot < env.capacity(); ++slot) {
+      if (!env.isDefined(slot) || (builtIns.isDefined(slot) && builtIns.get(slot) == env.get(slot))) { continue; }
+      names.add(env.getSymbols().symbolOf(slot));
+      ids.add(writer.addAtom(env.get(slot)));
+    }
+
+    final Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(),
+        ".tmp");
+    try {
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+          temporary)))) {
+        out.writeInt(MAGIC);
+        writeString(out, digest);
+        writer.writeClasses(out);
+        out.writeInt(writer.atoms.size());
+        out.write(writer.atomBytes.toByteArray());
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); ++i) {
+          writeString(out, names.get(i));
+          out.writeInt(ids.get(i));
+        }
+      }
+      try {
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+    return names.size();
+  }
+
+  //
+  // Restoring
+  //
+
+  private synchronized Main.Atom restored(int atom) { return atoms[atom]; }
+
+  /** Restores the atom and the ones it refers to, children first. */
+  synchronized Main.Atom restore(int atom) {
+    final ArrayDeque<Integer> pending = new ArrayDeque<>();
+    pending.push(atom);
+    while (!pending.isEmpty()) {
+      final int next = pending.peek();
+      if (atoms[next] != null) {
+        pending.pop();
+        continue;
+      }
+      final ByteBuffer in = archive.duplicate();
+      in.position(atomOffsets[next]);
+      final int[] children = children(in.duplicate());
+      boolean ready = true;
+      for (final int child : children) {
+        if (atoms[child] == null) {
+          pending.push(child);
+          ready = false;
+        }
+      }
+      if (ready) {
+        atoms[next] = newAtom(in);
+        pending.pop();
+      }
+    }
+    return atoms[atom];
+  }
+
+  private Main.Atom newAtom(ByteBuffer in) {
+    final byte tag = in.get();
+    switch (tag) {
+      case INT: return Int.valueOf(in.getInt());
+      case BUILTIN: return Main.ENV.lookup(readString(in)); // the same in every environment
+      case NUMERAL: return ChurchNat.valueOf(in.getInt());
+      case OPERATION: {
+        final String name = readString(in);
+        return ChurchNumerals.operation(name, atoms[in.getInt()]);
+      }
+      case LAMBDA: {
+        final String className = classNames[in.getInt()];
+        final Main.Atom[] fields = new Main.Atom[in.getInt()];
+        for (int i = 0; i < fields.length; ++i) { fields[i] = atoms[in.getInt()]; }
+        try {
+          final Class<?> lambdaClass = loader.loadClass(className);
+          if (fields.length == 0) { return Evaluator.getClosedInstance(lambdaClass); }
+          return (Main.Atom) lambdaClass.getConstructors()[0].newInstance((Object[]) fields);
+        } catch (Exception e) {
+          throw new IllegalStateException("Unable to restore " + className, e);
+        }
+      }
+      default: throw new IllegalStateException("Invalid atom tag " + tag);
+    }
+  }
+
+  private static int[] children(ByteBuffer in) {
+    final byte tag = in.get();
+    if (tag == OPERATION) {
+      readString(in);
+      return new int[] { in.getInt() };
+    }
+    if (tag == LAMBDA) {
+      in.getInt();
+      final int[] result = new int[in.getInt()];
+      for (int i = 0; i < result.length; ++i) { result[i] = in.getInt(); }
+      return result;
+    }
+    return new int[0];
+  }
+
+  private static void skipAtom(ByteBuffer in) {
+    final byte tag = in.get();
+    switch (tag) {
+      case INT: case NUMERAL: in.getInt(); break;
+      case BUILTIN: readString(in); break;
+      case OPERATION: readString(in); in.getInt(); break;
+      case LAMBDA: {
+        in.getInt();
+        final int fieldCount = in.getInt();
+        in.position(in.position() + 4 * fieldCount);
+        break;
+      }
+      default: throw new IllegalStateException("Invalid atom tag " + tag);
+    }
+  }
+
+  private byte[] classBytes(String className) throws ClassNotFoundException {
+    final Integer index = classIndices.get(className);
+    if (index == null) { throw new ClassNotFoundException(className); }
+    final byte[] bytes = new byte[classLengths[index]];
+    final ByteBuffer in = archive.duplicate();
+    in.position(classOffsets[index]);
+    in.get(bytes);
+    return bytes;
+  }
+
+  // GenFn<index> names take part in the numbering, the cached ones don't
+  private static int indexOf(String className) {
+    if (!className.startsWith("GenFn")) { return 0; }
+    try {
+      return Integer.parseInt(className.substring("GenFn".length()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** @return digest of the compiler, a snapshot is bound to it, so an unknown one is never written nor matched */
+  private static String compilerDigest() throws IOException {
+    final String result = BytecodeCache.COMPILER_DIGEST;
+    if (result == null) { throw new IOException("Unable to identify the version of the compiler"); }
+    return result;
+  }
+
+  private static String readString(ByteBuffer in) {
+    final byte[] bytes = new byte[in.getInt()];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream out, String text) throws IOException {
+    final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Global that has not been used yet, the first use restores the value and rebinds the global to it.
+   */
+  private static final class Pending extends Main.Atom {
+    private final Snapshot snapshot;
+    private final int atom;
+    private final WeakReference<Main.Env> env; // the pending value may be linked by the sites of shared classes
+    private final int slot;
+
+    Pending(Snapshot snapshot, int atom, Main.Env env, int slot) {
+      this.snapshot = snapshot;
+      this.atom = atom;
+      this.env = new WeakReference<>(env);
+      this.slot = slot;
+    }
+
+    Main.Atom value() {
+      final Main.Atom value = snapshot.restore(atom);
+      final Main.Env bound = env.get();
+      if (bound != null) { bound.replace(slot, this, value); } // unless redefined in the meantime
+      return value;
+    }
+
+    public Main.Atom fn(Main.Atom arg) { return value().fn(arg); }
+    public int toInt() { return value().toInt(); }
+    public int applyInt(int arg) { return value().applyInt(arg); }
+    public int toIntOrDeoptimize() { return value().toIntOrDeoptimize(); }
+    public int applyIntOrDeoptimize(int arg) { return value().applyIntOrDeoptimize(arg); }
+    public String toString() { return value().toString(); }
+  }
+
+  /**
+   * Defines the classes of the archive on demand, all in one loader.
+   */
+  private static final class ArchiveClassLoader extends ClassLoader {
+    private final Snapshot snapshot;
+    private final Map<String, byte[]> definedBytes = new HashMap<>(); // guarded by this, kept for snapshots
+
+    ArchiveClassLoader(Snapshot snapshot) {
+      super(ArchiveClassLoader.class.getClassLoader());
+      this.snapshot = snapshot;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      final byte[] bytes = snapshot.classBytes(name);
+      synchronized (this) {
+        definedBytes.put(name, bytes);
+      }
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    synchronized byte[] getClassBytes(String name) { return definedBytes.get(name); }
+
+    List<Class<?>> getDependencies(String name) throws ClassNotFoundException {
+      final int[] dependencies = snapshot.classDependencies[snapshot.classIndices.get(name)];
+      final List<Class<?>> result = new ArrayList<>(dependencies.length);
+      for (final int dependency : dependencies) { result.add(loadClass(snapshot.classNames[dependency])); }
+      return result;
+    }
+  }
+
+  //
+  // Writing
+  //
+
+  /** Atoms in post order and the classes they need. */
+  private static final class Writer {
+    final IdentityHashMap<Main.Atom, Integer> atoms = new IdentityHashMap<>();
+    final ByteArrayOutputStream atomBytes = new ByteArrayOutputStream();
+    final DataOutputStream atomOut = new DataOutputStream(atomBytes);
+    final Map<String, Integer> classIndices = new HashMap<>();
+    final List<String> classNames = new ArrayList<>();
+    final List<byte[]> classBytes = new ArrayList<>();
+    final List<int[]> classDependencies = new ArrayList<>();
+
+    int addAtom(Main.Atom root) throws Exception {
+      final ArrayDeque<Main.Atom> pending = new ArrayDeque<>();
+      pending.push(resolve(root));
+      while (!pending.isEmpty()) {
+        final Main.Atom atom = pending.peek();
+        if (atoms.containsKey(atom)) {
+          pending.pop();
+          continue;
+        }
+        final Main.Atom[] children = childrenOf(atom);
+        boolean ready = true;
+        for (int i = 0; i < children.length; ++i) {
+          children[i] = resolve(children[i]);
+          if (!atoms.containsKey(children[i])) {
+            pending.push(children[i]);
+            ready = false;
+          }
+        }
+        if (ready) {
+          writeAtom(atom, children);
+          atoms.put(atom, atoms.size());
+          pending.pop();
+        }
+      }
+      return atoms.get(resolve(root));
+    }
+
+    // the value the atom stands for
+    private static Main.Atom resolve(Main.Atom atom) {
+      if (atom instanceof Thunk) { return ((Thunk) atom).force(); }
+      if (atom instanceof Pending) { return ((Pending) atom).snapshot.restore(((Pending) atom).atom); }
+      return atom;
+    }
+
+    private static Main.Atom[] childrenOf(Main.Atom atom) throws Exception {
+      if (ChurchNumerals.operationOf(atom) != null) { return new Main.Atom[] { ChurchNumerals.fallbackOf(atom) }; }
+      if (atom instanceof InterpretedFn) { return ((InterpretedFn) atom).getClosure().clone(); }
+      if (isGenerated(atom.getClass())) {
+        final List<Field> fields = closureFields(atom.getClass());
+        final Main.Atom[] result = new Main.Atom[fields.size()];
+        for (int i = 0; i < result.length; ++i) { result[i] = (Main.Atom) fields.get(i).get(atom); }
+        return result;
+      }
+      return new Main.Atom[0];
+    }
+
+    private void writeAtom(Main.Atom atom, Main.Atom[] children) throws Exception {
+      if (atom instanceof Int) {
+        atomOut.writeByte(INT);
+        atomOut.writeInt(atom.toInt());
+      } else if (atom == Inc.INSTANCE || atom == Dec.INSTANCE || atom == Delay.INSTANCE) {
+        atomOut.writeByte(BUILTIN);
+        writeString(atomOut, atom == Inc.INSTANCE ? "inc" : atom == Dec.INSTANCE ? "dec" : Thunk.DELAY_SYMBOL);
+      } else if (atom instanceof ChurchNat) {
+        atomOut.writeByte(NUMERAL);
+        atomOut.writeInt(((ChurchNat) atom).getCount());
+      } else if (ChurchNumerals.operationOf(atom) != null) {
+        atomOut.writeByte(OPERATION);
+        writeString(atomOut, ChurchNumerals.operationOf(atom));
+        atomOut.writeInt(atoms.get(children[0]));
+      } else {
+        final Class<?> lambdaClass = atom instanceof InterpretedFn ?
+            Evaluator.genLambdaClass(((InterpretedFn) atom).getLambda()) : atom.getClass();
+        if (!isGenerated(lambdaClass)) {
+          throw new IllegalStateException("Can't write " + atom + " of " + atom.getClass() + " to a snapshot");
+        }
+        atomOut.writeByte(LAMBDA);
+        atomOut.writeInt(addClass(lambdaClass));
+        atomOut.writeInt(children.length);
+        for (final Main.Atom child : children) { atomOut.writeInt(atoms.get(child)); }
+      }
+    }
+
+    private int addClass(Class<?> root) throws Exception {
+      final ArrayDeque<Class<?>> pending = new ArrayDeque<>();
+      pending.push(root);
+      while (!pending.isEmpty()) {
+        final Class<?> next = pending.peek();
+        if (classIndices.containsKey(next.getName())) { // equal names of generated classes mean equal shapes
+          pending.pop();
+          continue;
+        }
+        final List<Class<?>> dependencies = dependenciesOf(next);
+        boolean ready = true;
+        for (final Class<?> dependency : dependencies) {
+          if (!classIndices.containsKey(dependency.getName())) {
+            pending.push(dependency);
+            ready = false;
+          }
+        }
+        if (ready) {
+          final int[] indices = new int[dependencies.size()];
+          for (int i = 0; i < indices.length; ++i) { indices[i] = classIndices.get(dependencies.get(i).getName()); }
+          classIndices.put(next.getName(), classNames.size());
+          classNames.add(next.getName());
+          classBytes.add(bytesOf(next));
+          classDependencies.add(indices);
+          pending.pop();
+        }
+      }
+      return classIndices.get(root.getName());
+    }
+
+    void writeClasses(DataOutputStream out) throws IOException {
+      out.writeInt(classNames.size());
+      for (int i = 0; i < classNames.size(); ++i) {
+        writeString(out, classNames.get(i));
+        out.writeInt(classDependencies.get(i).length);
+        for (final int dependency : classDependencies.get(i)) { out.writeInt(dependency); }
+        out.writeInt(classBytes.get(i).length);
+        out.write(classBytes.get(i));
+      }
+    }
+
+    private static boolean isGenerated(Class<?> atomClass) {
+      return GeneratedClassLoader.isGenerated(atomClass) || atomClass.getClassLoader() instanceof ArchiveClassLoader;
+    }
+
+    private static byte[] bytesOf(Class<?> generatedClass) {
+      if (!GeneratedClassLoader.isGenerated(generatedClass)) {
+        return ((ArchiveClassLoader) generatedClass.getClassLoader()).getClassBytes(generatedClass.getName());
+      }
+      final byte[] result = GeneratedClassLoader.getClassBytes(generatedClass);
+      if (result == null) {
+        throw new IllegalStateException("Bytes of " + generatedClass.getName() + " are not kept, see setKeepClasses");
+      }
+      return result;
+    }
+
+    private static List<Class<?>> dependenciesOf(Class<?> generatedClass) throws ClassNotFoundException {
+      if (GeneratedClassLoader.isGenerated(generatedClass)) {
+        return new ArrayList<>(GeneratedClassLoader.getDependencies(generatedClass));
+      }
+      return ((ArchiveClassLoader) generatedClass.getClassLoader()).getDependencies(generatedClass.getName());
+    }
+
+    // c0, c1, ... in the order of the constructor parameters
+    private static List<Field> closureFields(Class<?> lambdaClass) {
+      final List<Field> result = new ArrayList<>();
+      for (int i = 0;; ++i) {
+        final Field field;
+        try {
+          field = lambdaClass.getDeclaredField("c" + i);
+        } catch (NoSuchFieldException e) {
+          return result;
+        }
+        if (Modifier.isStatic(field.getModifiers())) { return result; }
+        field.setAccessible(true);
+        result.add(field);
+      }
+    }
+  }
+}
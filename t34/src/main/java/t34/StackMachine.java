@@ -0,0 +1,118 @@
+package t34;
+
+import java.util.Arrays;
+
+/**
+ * Stack-safe execution mode: lambda bodies are evaluated by a loop over an explicit continuation stack kept on the
+ * heap, so the nesting depth of an evaluation is limited by the heap rather than by the thread stack.
+ * Application of a lambda in the tail position replaces the current body without pushing anything, loops written
+ * with fixed point combinators run in constant space.
+ * Lambdas stay interpreted, {@link MachineFn} is never compiled. Native functions, such as {@code inc} or
+ * {@link ChurchNat}, are called directly and re-enter the machine when they apply a lambda, which nests the Java
+ * stack by one level per such call only.
+ */
+final class StackMachine {
+  private static final int INITIAL_STACK_SIZE = 64;
+  private static final Object APPLY = new Object(); // marks the frame that applies the function to the argument
+
+  /** Evaluates the top level expression. */
+  public Main.Atom eval(PrimitiveAtom node) { return run(node, null, Interpreter.NO_CLOSURE, null); }
+
+  /** Creates the instance of the top level lambda, it captures nothing. */
+  public Main.Atom instantiate(Lambda lambda) { return new MachineFn(this, lambda, Interpreter.NO_CLOSURE); }
+
+  /**
+   * Runs the body of the lambda until the continuation stack is empty.
+   * Frames take four slots: either the argument node of a call along with the environment to evaluate it in, or
+   * {@link #APPLY} and the function to apply to the value of the argument.
+   */
+  Main.Atom run(PrimitiveAtom node, Lambda owner, Main.Atom[] closure, Main.Atom arg) {
+    Object[] stack = new Object[INITIAL_STACK_SIZE];
+    int top = 0;
+    for (;;) {
+      while (node instanceof Call) { // the function first, the argument is evaluated once the function is known
+        if (top == stack.length) { stack = Arrays.copyOf(stack, top * 2); }
+        final Call call = (Call) node;
+        stack[top] = call.rhs;
+        stack[top + 1] = owner;
+        stack[top + 2] = closure;
+        stack[top + 3] = arg;
+        top += 4;
+        node = call.lhs;
+      }
+      Main.Atom value = evalLeaf(node, owner, closure, arg);
+
+      for (;;) {
+        if (top == 0) { return value; }
+        top -= 4;
+        final Object head = stack[top];
+        if (head != APPLY) { // the function is evaluated, evaluate the argument and keep the function until then
+          node = (PrimitiveAtom) head;
+          owner = (Lambda) stack[top + 1];
+          closure = (Main.Atom[]) stack[top + 2];
+          arg = (Main.Atom) stack[top + 3];
+          stack[top] = APPLY;
+          stack[top + 1] = value;
+          stack[top + 2] = null;
+          stack[top + 3] = null;
+          top += 4;
+          break;
+        }
+
+        final Main.Atom function = (Main.Atom) stack[top + 1];
+        stack[top + 1] = null;
+        if (function instanceof MachineFn) { // enter the body in place of the call
+          Main.checkInterrupted();
+          final MachineFn target = (MachineFn) function;
+          node = target.lambda.body;
+          owner = target.lambda;
+          closure = target.closure;
+          arg = value;
+          break;
+        }
+        value = function.fn(value);
+      }
+    }
+  }
+
+  private Main.Atom evalLeaf(PrimitiveAtom node, Lambda owner, Main.Atom[] closure, Main.Atom arg) {
+    if (node instanceof Symbol) {
+      final Location location = ((Symbol) node).location;
+      if (location == SimpleLocation.VAR) { return arg; }
+      if (location instanceof GlobalLocation) { return Main.currentEnv().get(((GlobalLocation) location).getSlot()); }
+      return closure[owner.getCaptureIndex(((ClosureLocation) location).getParameterIndex())];
+    }
+
+    if (node instanceof Lambda) {
+      final Lambda lambda = (Lambda) node;
+      final int[] captures = lambda.getCaptures();
+      if (captures.length == 0) { return new MachineFn(this, lambda, Interpreter.NO_CLOSURE); }
+      final Main.Atom[] nestedClosure = new Main.Atom[captures.length];
+      for (int i = 0; i < captures.length; ++i) {
+        final int level = captures[i];
+        nestedClosure[i] = level == owner.getDepth() ? arg : closure[owner.getCaptureIndex(level)];
+      }
+      return new MachineFn(this, lambda, nestedClosure);
+    }
+
+    if (node instanceof Int) { return node; }
+    throw new UnsupportedOperationException("Can't evaluate " + node);
+  }
+}
+
+/**
+ * Lambda instance of the {@link StackMachine}, native callers get it applied by a machine run of its own.
+ */
+final class MachineFn extends Main.Fn {
+  private final StackMachine machine;
+  final Lambda lambda;
+  final Main.Atom[] closure;
+
+  MachineFn(StackMachine machine, Lambda lambda, Main.Atom[] closure) {
+    this.machine = machine;
+    this.lambda = lambda;
+    this.closure = closure;
+  }
+
+  public Main.Atom fn(Main.Atom arg) { return machine.run(lambda.body, lambda, closure, arg); }
+}
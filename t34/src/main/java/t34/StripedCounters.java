@@ -0,0 +1,41 @@
+package t34;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed set of counters for the hot paths: the counters are striped by thread, one cache line per stripe, so that
+ * the atomic increments of different threads rarely contend. No increment is lost.
+ */
+final class StripedCounters {
+  private static final int PADDING = 8; // longs per cache line
+  private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+  private final AtomicLongArray values = new AtomicLongArray((STRIPES + 1) * PADDING); // stripe i at (i + 1) * PADDING
+  private final int count;
+
+  /** @param count number of the counters, at most 8 */
+  StripedCounters(int count) {
+    if (count <= 0 || count > PADDING) { throw new IllegalArgumentException("count=" + count); }
+    this.count = count;
+  }
+
+  void increment(int counter) { values.getAndIncrement(stripe() + counter); }
+
+  long sum(int counter) {
+    if (counter < 0 || counter >= count) { throw new IndexOutOfBoundsException("counter=" + counter); }
+    long result = 0;
+    for (int i = PADDING; i < values.length(); i += PADDING) { result += values.get(i + counter); }
+    return result;
+  }
+
+  /** Zeroes the counters, the increments racing with it may be kept. */
+  void reset() {
+    for (int i = 0; i < values.length(); ++i) { values.set(i, 0); }
+  }
+
+  //
+  // Private
+  //
+
+  private static int stripe() { return (((int) Thread.currentThread().getId() & (STRIPES - 1)) + 1) * PADDING; }
+}
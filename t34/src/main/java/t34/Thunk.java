@@ -0,0 +1,102 @@
+package t34;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Delayed argument of the call-by-need mode: the code is evaluated when the thunk is first used as a function or
+ * as a number, the value is cached and the code is dropped, so a thunk is evaluated at most once.
+ * Thunks are forced through {@link Main.Atom} methods, the generated code and the interpreter use them as is.
+ */
+final class Thunk extends Main.Atom {
+  /** Global bound to {@link Delay}, the parser never produces such a symbol. */
+  static final String DELAY_SYMBOL = "%delay";
+  /** Name of the variable of the thunk code lambda, never referenced. */
+  static final String CODE_VAR = "%thunk";
+
+  private static final AtomicReferenceFieldUpdater<Thunk, Object> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(Thunk.class, Object.class, "state");
+
+  // code atom until forced, Evaluation while the code runs, null once the value is known
+  private volatile Object state;
+  private volatile Main.Atom value;
+
+  Thunk(Main.Atom code) { this.state = code; }
+
+  /** @return value of the thunk or the atom itself if it is not a thunk */
+  public static Main.Atom force(Main.Atom atom) { return atom instanceof Thunk ? ((Thunk) atom).force() : atom; }
+
+  /**
+   * Evaluates the code in the thread that claims it, the others wait for the value rather than evaluate it once again.
+   * No lock is held while the code runs.
+   */
+  public Main.Atom force() {
+    for (;;) {
+      Main.Atom result = value;
+      if (result != null) { return result; }
+      final Object current = state;
+      if (current == null) { return value; } // set before the state is cleared
+      if (current instanceof Evaluation) {
+        ((Evaluation) current).await(); // then the value is known or the evaluation has failed and can be retried
+        continue;
+      }
+
+      final Evaluation evaluation = new Evaluation();
+      if (!STATE.compareAndSet(this, current, evaluation)) { continue; }
+      try {
+        result = ((Main.Atom) current).fn(null);
+        while (result instanceof Thunk) { result = ((Thunk) result).force(); }
+      } catch (RuntimeException | Error e) {
+        state = current; // let the next attempt fail the same way
+        evaluation.done.countDown();
+        throw e;
+      }
+      value = result;
+      state = null;
+      evaluation.done.countDown();
+      return result;
+    }
+  }
+
+  public boolean isForced() { return value != null; }
+
+  public Main.Atom fn(Main.Atom arg) { return force().fn(arg); }
+  public int toInt() { return force().toInt(); }
+  public int applyInt(int arg) { return force().applyInt(arg); }
+  public int toIntOrDeoptimize() { return force().toIntOrDeoptimize(); }
+  public int applyIntOrDeoptimize(int arg) { return force().applyIntOrDeoptimize(arg); }
+  public String toString() { return force().toString(); }
+
+  //
+  // Private
+  //
+
+  /** Claim of the thunk by the thread that evaluates its code. */
+  private static final class Evaluation {
+    final Thread owner = Thread.currentThread();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    void await() {
+      if (owner == Thread.currentThread()) { throw new IllegalStateException("Thunk depends on its own value"); }
+      boolean interrupted = false;
+      while (done.getCount() != 0) {
+        try {
+          done.await();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) { Thread.currentThread().interrupt(); }
+    }
+  }
+}
+
+/**
+ * Built-in bound to {@link Thunk#DELAY_SYMBOL}: wraps the code lambda, which ignores its argument, into a thunk.
+ */
+final class Delay extends Main.Fn {
+  private Delay() {}
+  public static final Delay INSTANCE = new Delay();
+  public Main.Atom fn(Main.Atom code) { return new Thunk(code); }
+  public String toString() { return "<lambda#delay>"; }
+}
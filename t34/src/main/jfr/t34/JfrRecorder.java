@@ -0,0 +1,136 @@
+package t34;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * {@link FlightEvents} as JDK Flight Recorder events. Compiled on Java 11+ only, see the {@code jfr} profile of
+ * the pom, and loaded by name.
+ */
+final class JfrRecorder implements FlightEvents.Recorder {
+
+  @Name("t34.Parse")
+  @Label("Parse")
+  @Category({"t34", "Frontend"})
+  @Description("Top level expression read by AstNodeReader")
+  @StackTrace(false)
+  static final class Parse extends Event {
+    @Label("Expression")
+    String expression;
+  }
+
+  @Name("t34.ClassDefinition")
+  @Label("Lambda Class Definition")
+  @Category({"t34", "Compiler"})
+  @Description("Lambda class generated or loaded from the bytecode cache and defined, with the classes it needs")
+  @StackTrace(false)
+  static final class ClassDefinition extends Event {
+    @Label("Class Name")
+    String className;
+
+    @Label("Class Size")
+    @DataAmount
+    int classSize;
+
+    @Label("Lambda")
+    String source;
+
+    @Label("Source Position")
+    @Description("File, line and column of the lambda in its script")
+    String position;
+
+    @Label("Cached")
+    @Description("Loaded from the bytecode cache")
+    boolean cached;
+  }
+
+  @Name("t34.Define")
+  @Label("Define")
+  @Category({"t34", "Evaluator"})
+  @Description("Evaluation of the value of a global definition")
+  @StackTrace(false)
+  static final class Define extends Event {
+    @Label("Symbol")
+    String symbol;
+  }
+
+  @Name("t34.Eval")
+  @Label("Eval")
+  @Category({"t34", "Evaluator"})
+  @Description("Top level evaluation")
+  @Threshold("20 ms")
+  static final class Eval extends Event {
+    @Label("Expression")
+    String expression;
+
+    @Label("Failed")
+    boolean failed;
+  }
+
+  @Override
+  public Object beginParse() { return begin(new Parse()); }
+
+  @Override
+  public void commitParse(Object event, PrimitiveAtom node) {
+    final Parse parse = (Parse) event;
+    if (!parse.shouldCommit()) { return; }
+    parse.expression = FlightEvents.sourceOf(node);
+    parse.commit();
+  }
+
+  @Override
+  public Object beginClassDefinition() { return begin(new ClassDefinition()); }
+
+  @Override
+  public void commitClassDefinition(Object event, Class<?> lambdaClass, int classSize, Lambda lambda,
+                                    boolean cached) {
+    final ClassDefinition definition = (ClassDefinition) event;
+    if (!definition.shouldCommit()) { return; }
+    definition.className = lambdaClass.getName();
+    definition.classSize = classSize;
+    definition.source = FlightEvents.sourceOf(lambda);
+    definition.position = lambda.position != null ? lambda.position.toString() : null;
+    definition.cached = cached;
+    definition.commit();
+  }
+
+  @Override
+  public Object beginDefine() { return begin(new Define()); }
+
+  @Override
+  public void commitDefine(Object event, Symbol symbol) {
+    final Define define = (Define) event;
+    if (!define.shouldCommit()) { return; }
+    define.symbol = symbol.toString();
+    define.commit();
+  }
+
+  @Override
+  public Object beginEval() { return begin(new Eval()); }
+
+  @Override
+  public void commitEval(Object event, Main.Atom node, boolean failed) {
+    final Eval eval = (Eval) event;
+    eval.end();
+    if (!eval.shouldCommit()) { return; }
+    eval.expression = node instanceof PrimitiveAtom ?
+        FlightEvents.sourceOf((PrimitiveAtom) node) : String.valueOf(node);
+    eval.failed = failed;
+    eval.commit();
+  }
+
+  //
+  // Private
+  //
+
+  private static <E extends Event> E begin(E event) {
+    if (event.isEnabled()) { event.begin(); } // shouldCommit is false for a disabled event, it is never committed
+    return event;
+  }
+}
@@ -3,7 +3,9 @@ package t34;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Tests for {@link AstNodeReader}.
@@ -22,8 +24,9 @@ public class AstNodeReaderTest {
     // Then:
     assertTrue(node instanceof Symbol);
     final Symbol sym = (Symbol) node;
-    assertEquals(SimpleLocation.GLOBAL, sym.location);
+    assertTrue(sym.location instanceof GlobalLocation);
     assertEquals("a", sym.toString());
+    assertSame(GlobalLocation.of("a"), sym.location);
   }
 
   @Test
@@ -80,6 +83,53 @@ public class AstNodeReaderTest {
         nodeStr);
   }
 
+  @Test
+  public void shouldResolveShadowedVariables() {
+    // Given:
+    final AstNodeReader reader = createReader("(lambda (a) ((lambda (a) (a b)) (a (lambda (b) a))))");
+
+    // When:
+    final PrimitiveAtom node = reader.read(globalScope);
+
+    // Then:
+    final String nodeStr = toString(node);
+    assertEquals("(lambda (a:CLOSURE[0]) ((lambda (a:CLOSURE[1]) (a:VAR b:GLOBAL)) " +
+        "(a:VAR (lambda (b:CLOSURE[1]) a:CLOSURE[0]))))", nodeStr);
+  }
+
+  @Test
+  public void shouldNotResolveVariablesOfSiblingLambdas() {
+    // Given:
+    final AstNodeReader reader = createReader("(lambda (f) ((lambda (x) (lambda (y) x)) (lambda (z) (x y))))");
+
+    // When:
+    final PrimitiveAtom node = reader.read(globalScope);
+
+    // Then:
+    final String nodeStr = toString(node);
+    assertEquals("(lambda (f:CLOSURE[0]) ((lambda (x:CLOSURE[1]) (lambda (y:CLOSURE[2]) x:CLOSURE[1])) " +
+        "(lambda (z:CLOSURE[1]) (x:GLOBAL y:GLOBAL))))", nodeStr);
+  }
+
+  @Test
+  public void shouldReadDeeplyNestedLambdas() {
+    // Given:
+    final int depth = 10000;
+    final StringBuilder input = new StringBuilder();
+    for (int i = 0; i < depth; ++i) { input.append("(lambda (v").append(i).append(") "); }
+    input.append("(v0 v").append(depth - 2).append(')');
+    for (int i = 0; i < depth; ++i) { input.append(')'); }
+
+    // When:
+    PrimitiveAtom node = createReader(input.toString()).read(globalScope);
+
+    // Then:
+    for (int i = 1; i < depth; ++i) { node = ((Lambda) node).body; }
+    final Lambda innermost = (Lambda) node;
+    assertEquals(depth - 1, innermost.scope.getLocalClosureLocation().getParameterIndex());
+    assertEquals("(v0:CLOSURE[0] v9998:CLOSURE[9998])", toString(innermost.body));
+  }
+
   @Test
   public void shouldReadCall() {
     // Given:
@@ -130,6 +180,54 @@ public class AstNodeReaderTest {
     assertTrue(node instanceof Define);
   }
 
+  @Test
+  public void shouldRejectDefinitionOfNonSymbol() {
+    // Given:
+    final AstNodeReader reader = createReader("(define 5 x)");
+
+    // When:
+    try {
+      reader.read(globalScope);
+      fail("number is defined");
+    } catch (ParserException e) {
+      // Then:
+      assertEquals("defined name is not a symbol", e.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldRejectDefinitionOfSeveralValues() {
+    // Given:
+    final AstNodeReader reader = createReader("(define x 1 2)");
+
+    // When:
+    try {
+      reader.read(globalScope);
+      fail("extra value is dropped");
+    } catch (ParserException e) {
+      // Then:
+      assertEquals("token expected: )", e.getMessage());
+    }
+  }
+
+  @Test
+  public void shouldTrackPositionsOfLists() {
+    // Given:
+    final String input = "(lambda (f)\n  (f\n   (f 1)))";
+    final AstNodeReader reader = new AstNodeReader(new Parser().init(input.toCharArray(), 0, input.length(),
+        "test.t34", 3, 5));
+
+    // When:
+    final Lambda lambda = (Lambda) reader.read(globalScope);
+
+    // Then:
+    final Call outer = (Call) lambda.body;
+    final Call inner = (Call) outer.rhs;
+    assertEquals("test.t34:3:5", lambda.position.toString());
+    assertEquals("test.t34:4:3", outer.position.toString());
+    assertEquals("test.t34:5:4", inner.position.toString());
+  }
+
   //
   // Private
   //
@@ -189,7 +287,7 @@ public class AstNodeReaderTest {
       return;
     }
 
-    if (location == SimpleLocation.GLOBAL) {
+    if (location instanceof GlobalLocation) {
       builder.append("GLOBAL");
       return;
     }
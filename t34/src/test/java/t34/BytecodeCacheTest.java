@@ -0,0 +1,135 @@
+package t34;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BytecodeCache}.
+ */
+public class BytecodeCacheTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void init() {
+    directory = folder.getRoot().toPath().resolve("cache");
+  }
+
+  @After
+  public void disable() {
+    Evaluator.setBytecodeCache(null);
+    Evaluator.CLASS_CACHE.clear();
+  }
+
+  @Test
+  public void shouldLoadClassesOfPreviousRun() throws Exception {
+    // Given:
+    final BytecodeCache first = new BytecodeCache(directory);
+    final List<String> generated = run(first);
+    assertTrue(first.getWrites() > 0);
+
+    // When:
+    final BytecodeCache second = new BytecodeCache(directory);
+    final List<String> loaded = run(second);
+
+    // Then:
+    assertEquals(generated, loaded);
+    assertEquals(0, second.getMisses());
+    assertEquals(0, second.getWrites());
+    assertEquals(first.getWrites(), second.getHits());
+  }
+
+  @Test
+  public void shouldRegenerateCorruptedEntries() throws Exception {
+    // Given:
+    final BytecodeCache first = new BytecodeCache(directory);
+    final List<String> generated = run(first);
+    for (final Path entry : listEntries()) {
+      final byte[] bytes = Files.readAllBytes(entry);
+      bytes[bytes.length - 20] ^= 1; // within the class bytes
+      Files.write(entry, bytes);
+    }
+
+    // When:
+    final BytecodeCache second = new BytecodeCache(directory);
+    final List<String> regenerated = run(second);
+
+    // Then:
+    assertEquals(generated, regenerated);
+    assertEquals(first.getWrites(), second.getRejects());
+    assertEquals(0, second.getHits());
+  }
+
+  @Test
+  public void shouldStoreEntryOnceFromConcurrentWriters() throws Exception {
+    // Given:
+    final Lambda lambda = (Lambda) Corpus.parse(new Evaluator(), "(lambda (x) (inc x))");
+    final String key = BytecodeCache.key(lambda.getShape());
+    final byte[] classBytes = new byte[4096];
+    final List<Thread> writers = new ArrayList<>();
+    for (int i = 0; i < 8; ++i) {
+      final BytecodeCache cache = new BytecodeCache(directory);
+      writers.add(new Thread(() -> cache.write(key, lambda.getShape(), Collections.<String>emptyList(), classBytes)));
+    }
+
+    // When:
+    for (final Thread writer : writers) { writer.start(); }
+    for (final Thread writer : writers) { writer.join(); }
+
+    // Then:
+    assertEquals(1, listEntries().size());
+    assertEquals(1, listFiles().size()); // no temporary files left
+    final BytecodeCache.Entry entry = new BytecodeCache(directory).load(key, lambda.getShape());
+    assertEquals(classBytes.length, entry.classBytes.length);
+  }
+
+  //
+  // Private
+  //
+
+  // evaluates the corpus as a fresh process would, with nothing generated in memory
+  private List<String> run(BytecodeCache cache) throws Exception {
+    Evaluator.CLASS_CACHE.clear();
+    Evaluator.setBytecodeCache(cache);
+    Main.ENV = new Main.Env();
+    final Evaluator evaluator = new Evaluator();
+    evaluator.setChurchNumerals(false);
+    evaluator.setCompileThreshold(0);
+    Corpus.defineAll(evaluator, Corpus.PRELUDE);
+    final List<String> results = Corpus.evalAll(evaluator, Corpus.EXPRESSIONS);
+    BytecodeCache.flush(); // as on exit
+    return results;
+  }
+
+  private List<Path> listEntries() throws IOException {
+    final List<Path> result = new ArrayList<>();
+    for (final Path path : listFiles()) {
+      if (path.toString().endsWith(".t34c")) { result.add(path); }
+    }
+    return result;
+  }
+
+  private List<Path> listFiles() throws IOException {
+    final List<Path> result = new ArrayList<>();
+    try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (final Path path : files) { result.add(path); }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,156 @@
+package t34;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ChurchNat} and {@link ChurchNumerals}.
+ */
+public class ChurchNumeralsTest {
+  private final GlobalLexicalScope globalScope = new GlobalLexicalScope();
+
+  @Test
+  public void shouldApplyFunctionCountTimes() {
+    // Given:
+    final Main.Atom twice = new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) { return Int.valueOf(arg.toInt() * 2); }
+    };
+
+    // When:
+    final Main.Atom a = ChurchNat.valueOf(10).fn(twice).fn(Int.valueOf(1));
+    final Main.Atom b = ChurchNat.valueOf(10).fn(Inc.INSTANCE).fn(Int.valueOf(1));
+    final Main.Atom c = ChurchNat.valueOf(10).fn(Dec.INSTANCE).fn(Int.valueOf(1));
+
+    // Then:
+    assertEquals(Int.valueOf(1024), a);
+    assertEquals(Int.valueOf(11), b);
+    assertEquals(Int.valueOf(-9), c);
+  }
+
+  @Test
+  public void shouldFallBackToBoxedStepsOnceFunctionIsReturned() {
+    // Given:
+    final int[] calls = new int[1];
+    final Main.Atom wrapThree = new Main.Fn() { // returns a function for 3, maps functions to 100
+      public Main.Atom fn(Main.Atom arg) {
+        ++calls[0];
+        if (arg instanceof Int && arg.toInt() == 3) { return Inc.INSTANCE; }
+        return arg instanceof Int ? Int.valueOf(arg.toInt() + 1) : Int.valueOf(100);
+      }
+    };
+
+    // When:
+    final Main.Atom result = ChurchNat.valueOf(5).fn(wrapThree).fn(Int.valueOf(0));
+
+    // Then:
+    assertEquals(Int.valueOf(100), result);
+    assertEquals(6, calls[0]); // only the step that has returned the function is repeated
+  }
+
+  @Test
+  public void shouldNotHideTypeErrors() {
+    // Given:
+    final int[] calls = new int[1];
+    final Main.Atom broken = new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) {
+        ++calls[0];
+        throw new UnsupportedOperationException("broken");
+      }
+    };
+
+    // When:
+    try {
+      ChurchNat.valueOf(3).fn(broken).fn(Int.valueOf(0));
+      fail("error is hidden");
+    } catch (UnsupportedOperationException e) {
+      // Then:
+      assertEquals("broken", e.getMessage());
+      assertEquals(1, calls[0]);
+    }
+  }
+
+  @Test
+  public void shouldApplyNumeralToNumeralAsPow() {
+    assertEquals(ChurchNat.valueOf(8), ChurchNat.valueOf(3).fn(ChurchNat.valueOf(2)));
+    assertEquals(ChurchNat.valueOf(0), ChurchNat.valueOf(5).fn(ChurchNat.ZERO));
+  }
+
+  @Test
+  public void shouldApplyZeroToNumeralAsIdentity() throws Exception {
+    // Given:
+    Main.ENV = new Main.Env();
+    final Evaluator evaluator = new Evaluator();
+    evaluator.eval(parse(evaluator, "(define zero (lambda (s) (lambda (z) z)))"));
+    evaluator.eval(parse(evaluator, "(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))"));
+    evaluator.eval(parse(evaluator, "(define n3 (succ (succ (succ zero))))"));
+
+    // When:
+    final Main.Atom a = evaluator.eval(parse(evaluator, "((zero n3) 5)"));
+    final Main.Atom b = ChurchNat.ZERO.fn(ChurchNat.valueOf(7)).fn(Inc.INSTANCE);
+
+    // Then:
+    assertEquals(Int.valueOf(5), a);
+    assertSame(Inc.INSTANCE, b);
+  }
+
+  @Test
+  public void shouldRaiseToZeroAsIdentity() throws Exception {
+    // Given:
+    Main.ENV = new Main.Env();
+    final Evaluator evaluator = new Evaluator();
+    evaluator.eval(parse(evaluator, "(define zero (lambda (s) (lambda (z) z)))"));
+    evaluator.eval(parse(evaluator, "(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))"));
+    evaluator.eval(parse(evaluator, "(define pow (lambda (b) (lambda (e) (e b))))"));
+    evaluator.eval(parse(evaluator, "(define n3 (succ (succ (succ zero))))"));
+
+    // When:
+    final Main.Atom a = evaluator.eval(parse(evaluator, "(((pow n3) zero) 5)"));
+    final Main.Atom b = evaluator.eval(parse(evaluator, "(((pow zero) zero) 5)"));
+    final Main.Atom c = evaluator.eval(parse(evaluator, "((((pow n3) (succ zero)) inc) 0)"));
+
+    // Then:
+    assertEquals(Int.valueOf(5), a);
+    assertEquals(Int.valueOf(5), b);
+    assertEquals(Int.valueOf(3), c);
+  }
+
+  @Test
+  public void shouldNotOverflowPow() {
+    // Given:
+    final ChurchNat big = ChurchNat.valueOf(1 << 16);
+
+    // When:
+    final Main.Atom a = ChurchNat.valueOf(2).fn(big);
+
+    // Then:
+    assertNull(ChurchNumerals.pow(big, ChurchNat.valueOf(2)));
+    assertFalse(a instanceof ChurchNat); // composition of big with itself
+  }
+
+  @Test
+  public void shouldRecognizeZeroAndOperations() {
+    final Main.Atom compiled = Inc.INSTANCE; // stands for the compiled lambda
+    assertSame(ChurchNat.ZERO, ChurchNumerals.recognize(lambda("(lambda (f) (lambda (x) x))"), compiled));
+    assertTrue(ChurchNumerals.recognize(lambda("(lambda (a) (lambda (b) (lambda (c) (b ((a b) c)))))"),
+        compiled) != compiled);
+    assertSame(compiled, ChurchNumerals.recognize(lambda("(lambda (f) (lambda (x) f))"), compiled));
+  }
+
+  //
+  // Private
+  //
+
+  private static PrimitiveAtom parse(Evaluator evaluator, String input) {
+    return AstNodeReaderTest.createReader(input).read(evaluator.scope);
+  }
+
+  private Lambda lambda(String input) {
+    return (Lambda) AstNodeReaderTest.createReader(input).read(globalScope);
+  }
+}
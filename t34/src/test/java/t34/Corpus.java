@@ -0,0 +1,73 @@
+package t34;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Church numeral definitions and expressions the evaluation modes are compared on, shared by their tests.
+ */
+final class Corpus {
+  static final String[] PRELUDE = {
+      "(define zero (lambda (s) (lambda (z) z)))",
+      "(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))",
+      "(define add (lambda (m) (lambda (n) (lambda (s) (lambda (z) ((m s) ((n s) z)))))))",
+      "(define mul (lambda (m) (lambda (n) (lambda (s) (m (n s))))))",
+      "(define pow (lambda (b) (lambda (e) (e b))))",
+      "(define k (lambda (a) (lambda (b) a)))",
+      "(define twice (lambda (f) (lambda (x) (f (f x)))))",
+      "(define n3 (succ (succ (succ zero))))",
+      "(define n4 (succ n3))"
+  };
+
+  static final String[] EXPRESSIONS = {
+      "(inc (inc 0))",
+      "((lambda (a) (dec a)) 5)",
+      "(((add n3) n4) inc)",
+      "((((add n3) n4) inc) 0)",
+      "(((k (lambda (x) (inc x))) 7) 40)",
+      "(((twice twice) inc) 0)",
+      "(((twice (lambda (f) (lambda (x) (f (f x))))) (twice inc)) 0)",
+      "(((n3 ((add n4) n3)) inc) 0)",
+      "((((pow n3) n4) inc) 0)",
+      "(((lambda (a) (lambda (b) (a (dec b)))) inc) 5)",
+      "(lambda (x) (lambda (y) (x (dec y))))",
+      "inc"
+  };
+
+  private Corpus() {}
+
+  static String[] with(String[] base, String... more) {
+    final String[] result = Arrays.copyOf(base, base.length + more.length);
+    System.arraycopy(more, 0, result, base.length, more.length);
+    return result;
+  }
+
+  static void defineAll(Evaluator evaluator, String[] prelude) throws Exception {
+    for (final String define : prelude) {
+      evaluator.eval(parse(evaluator, define));
+    }
+  }
+
+  static List<String> evalAll(Evaluator evaluator, String[] expressions) throws Exception {
+    final List<String> results = new ArrayList<>();
+    for (final String expression : expressions) {
+      results.add(toString(evaluator.eval(parse(evaluator, expression))));
+    }
+    return results;
+  }
+
+  // numbers as is, functions are probed by applying them to inc and 0 or to 0
+  static String toString(Main.Atom atom) {
+    if (atom instanceof Int) { return atom.toString(); }
+    try {
+      return "fn:" + toString(atom.fn(Inc.INSTANCE).fn(Int.valueOf(0)));
+    } catch (UnsupportedOperationException e) {
+      return "fn:" + toString(atom.fn(Int.valueOf(0)));
+    }
+  }
+
+  static PrimitiveAtom parse(Evaluator evaluator, String input) {
+    return AstNodeReaderTest.createReader(input).read(evaluator.scope);
+  }
+}
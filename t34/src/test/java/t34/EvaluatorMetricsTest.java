@@ -0,0 +1,134 @@
+package t34;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link EvaluatorMetrics}.
+ */
+public class EvaluatorMetricsTest {
+  private Metrics previous;
+  private EvaluatorMetrics metrics;
+
+  @Before
+  public void init() {
+    previous = Evaluator.getMetrics();
+    metrics = new EvaluatorMetrics();
+    Evaluator.setMetrics(metrics);
+    Main.ENV = new Main.Env();
+  }
+
+  @After
+  public void restore() {
+    Evaluator.setMetrics(previous);
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldMeasureEveryStage() throws Exception {
+    // Given:
+    final Evaluator evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0);
+    final ScriptReader reader = new ScriptReader(new StringReader(
+        "(define twice (lambda (f) (lambda (x) (f (f x))))) ((twice inc) 40) (1 2) (lambda)"));
+
+    // When:
+    for (int i = 0; i < 3; ++i) {
+      assertTrue(reader.nextExpression());
+      try {
+        evaluator.eval(reader.parse(evaluator.scope));
+      } catch (UnsupportedOperationException e) {
+        assertEquals(2, i); // number applied as a function
+      }
+    }
+    assertTrue(reader.nextExpression());
+    try {
+      reader.parse(evaluator.scope);
+      fail("Lambda without parameters has been parsed");
+    } catch (RuntimeException e) {
+      // expected
+    }
+
+    // Then:
+    assertEquals(3, metrics.getParseLatency().getCount());
+    assertEquals(1, metrics.getSyntaxErrors());
+    assertTrue(metrics.getCompileLatency().getCount() >= 2); // both lambdas of twice
+    assertEquals(3, metrics.getExecuteLatency().getCount() + metrics.getEvalErrors());
+    assertEquals(1, metrics.getEvalErrors());
+    assertEquals(1, metrics.getDefines());
+    assertTrue(metrics.getExecuteLatency().getP99() <= metrics.getExecuteLatency().getMax());
+  }
+
+  @Test
+  public void shouldReportGlobalsOfCurrentEnvironment() throws Exception {
+    // Given:
+    final Evaluator evaluator = new Evaluator();
+    final Main.Env session = new Main.Env();
+    final int builtins = session.size();
+    evaluator.eval(Corpus.parse(evaluator, "(define one 1)"));
+
+    // When:
+    Main.bindEnv(session);
+    final int sessionGlobals;
+    try {
+      sessionGlobals = metrics.getGlobals();
+    } finally {
+      Main.bindEnv(null);
+    }
+
+    // Then:
+    assertEquals(builtins, sessionGlobals);
+    assertEquals(builtins + 1, metrics.getGlobals());
+    assertTrue(metrics.getGlobalSlots() >= metrics.getGlobals());
+  }
+
+  @Test
+  public void shouldCountIntCacheWhileMetricsAreOn() throws Exception {
+    // Given:
+    final long hits = Int.getCacheHits();
+    final long misses = Int.getCacheMisses();
+    final Evaluator evaluator = new Evaluator();
+
+    // When:
+    final Main.Atom result = evaluator.eval(new ScriptReader(new StringReader("(inc 1000)")).read(evaluator.scope));
+
+    // Then:
+    assertEquals(1001, result.toInt());
+    if (!EvaluatorMetrics.ENABLED) {
+      assertTrue(Double.isNaN(metrics.getIntCacheHitRate()));
+      return;
+    }
+    assertTrue(Int.getCacheMisses() >= misses + 2); // 1000 and 1001, the counters are process-wide
+    assertTrue(Int.getCacheHits() >= hits);
+    final double hitRate = metrics.getIntCacheHitRate();
+    assertTrue(hitRate >= 0 && hitRate <= 1);
+  }
+
+  @Test
+  public void shouldExposeMetricsThroughPlatformServer() throws Exception {
+    // Given:
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(EvaluatorMetrics.OBJECT_NAME);
+    if (!server.isRegistered(name)) { server.registerMBean(new EvaluatorMetrics(), name); } // t34.metrics=false
+
+    // When:
+    final CompositeData latency = (CompositeData) server.getAttribute(name, "ExecuteLatency");
+    final Object hitRate = server.getAttribute(name, "IntCacheHitRate");
+
+    // Then:
+    assertTrue((Long) latency.get("p99") >= 0);
+    assertTrue(hitRate instanceof Double);
+    assertTrue((Long) server.getAttribute(name, "GeneratedClassBytes") >= 0);
+  }
+}
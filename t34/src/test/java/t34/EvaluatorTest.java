@@ -1,10 +1,28 @@
 package t34;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Tests evaluator
@@ -137,6 +155,500 @@ public class EvaluatorTest {
     assertEquals(Int.valueOf(1), a);
   }
 
+  @Test
+  public void shouldRecognizeChurchNumerals() throws Exception {
+    // Given:
+    defineChurchNumerals();
+
+    // When:
+    final Main.Atom n9 = evaluator.eval(parse("n9"));
+    final Main.Atom a = evaluator.eval(parse("((((pow n9) n9) inc) 0)"));
+
+    // Then:
+    assertEquals(ChurchNat.valueOf(9), n9);
+    assertEquals(Int.valueOf(387420489), a);
+  }
+
+  @Test
+  public void shouldFallbackToClosuresForNonNumerals() throws Exception {
+    // Given:
+    defineChurchNumerals();
+    evaluator.eval(parse("(define two (lambda (f) (lambda (x) (f (f x)))))"));
+
+    // When:
+    final Main.Atom a = evaluator.eval(parse("((((add two) ((mul n2) two)) inc) 1)"));
+    final Main.Atom b = evaluator.eval(parse("(((succ two) (lambda (x) (inc (inc x)))) 0)"));
+
+    // Then:
+    assertEquals(Int.valueOf(7), a);
+    assertEquals(Int.valueOf(6), b);
+  }
+
+  @Test
+  public void shouldEvalChurchNumeralsAsClosuresIfDisabled() throws Exception {
+    // Given:
+    evaluator.setChurchNumerals(false);
+    defineChurchNumerals();
+
+    // When:
+    final Main.Atom n2 = evaluator.eval(parse("n2"));
+    final Main.Atom a = evaluator.eval(parse("((((add ((pow n2) n3)) ((mul n3) n2)) inc) 0)"));
+
+    // Then:
+    assertFalse(n2 instanceof ChurchNat);
+    assertEquals(Int.valueOf(14), a);
+  }
+
+  @Test
+  public void shouldReferGlobalsFromLambda() throws Exception {
+    // Given:
+    evaluator.eval(parse("(define twice (lambda (f) (lambda (x) (f (f x)))))"));
+    evaluator.eval(parse("(define inc2 (twice inc))"));
+
+    // When:
+    final Main.Atom a = evaluator.eval(parse("((lambda (x) (inc2 (inc2 x))) 1)"));
+
+    // Then:
+    assertEquals(Int.valueOf(5), a);
+  }
+
+  @Test
+  public void shouldRelinkRedefinedGlobal() throws Exception {
+    // Given:
+    evaluator.eval(parse("(define step inc)"));
+    evaluator.eval(parse("(define apply (lambda (x) (step x)))"));
+    assertEquals(Int.valueOf(11), evaluator.eval(parse("(apply 10)")));
+
+    // When:
+    evaluator.eval(parse("(define step dec)"));
+
+    // Then:
+    assertEquals(Int.valueOf(9), evaluator.eval(parse("(apply 10)")));
+  }
+
+  @Test
+  public void shouldAllowForwardReference() throws Exception {
+    // Given:
+    evaluator.eval(parse("(define later (lambda (x) (notyet x)))"));
+
+    // When:
+    evaluator.eval(parse("(define notyet inc)"));
+
+    // Then:
+    assertEquals(Int.valueOf(2), evaluator.eval(parse("(later 1)")));
+  }
+
+  @Test
+  public void shouldRelinkGlobalsOnNewEnvironment() throws Exception {
+    // Given:
+    evaluator.eval(parse("(define val 1)"));
+    assertEquals(Int.valueOf(1), evaluator.eval(parse("val")));
+
+    // When:
+    Main.ENV = new Main.Env();
+    evaluator = new Evaluator();
+
+    // Then:
+    try {
+      evaluator.eval(parse("val"));
+      fail("Undefined symbol expected");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("val"));
+    }
+  }
+
+  @Test
+  public void shouldResolveGlobalsInEnvironmentOfCurrentThread() throws Exception {
+    // Given:
+    final Main.Env session = new Main.Env();
+    evaluator.setCompileThreshold(0);
+    evaluator.eval(parse("(define val 1)"));
+    final Main.Atom fn = evaluator.eval(parse("(lambda (a) (inc val))")); // the class is shared by both
+    Main.bindEnv(session);
+    try {
+      evaluator.eval(parse("(define val 10)"));
+
+      for (int i = 0; i < 20; ++i) {
+        // When:
+        Main.bindEnv(i % 2 == 0 ? session : null);
+        final Main.Atom result = fn.fn(Int.valueOf(0));
+
+        // Then:
+        assertEquals(Int.valueOf(i % 2 == 0 ? 11 : 2), result);
+      }
+    } finally {
+      Main.bindEnv(null);
+    }
+    assertSame(Main.ENV, Main.currentEnv());
+  }
+
+  @Test
+  public void shouldLinkGlobalsInEachEnvironment() throws Exception {
+    evalInEnvironments(3); // each one is linked
+  }
+
+  @Test
+  public void shouldLookUpGlobalsSharedByManyEnvironments() throws Exception {
+    evalInEnvironments(6); // beyond the links of a call site, then looked up on each call
+  }
+
+  @Test
+  public void shouldNotKeepEnvironmentLinkedBySharedClass() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    evaluator.eval(parse("(define val 1)"));
+    final Main.Atom fn = evaluator.eval(parse("(lambda (a) (inc val))"));
+    Main.Env session = new Main.Env();
+    session.define(session.getSymbols().of("val").getSlot(), Int.valueOf(10));
+    Main.bindEnv(session);
+    try {
+      assertEquals(Int.valueOf(11), fn.fn(Int.valueOf(0))); // linked in the session
+    } finally {
+      Main.bindEnv(null);
+    }
+    final ReferenceQueue<Main.Env> collected = new ReferenceQueue<>();
+    final WeakReference<Main.Env> sessionRef = new WeakReference<>(session, collected);
+
+    // When:
+    session = null;
+    boolean released = false;
+    for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); !released && System.nanoTime() < deadline;) {
+      System.gc();
+      released = collected.remove(100L) == sessionRef;
+    }
+
+    // Then:
+    assertTrue("environment of the closed session is kept", released);
+    assertEquals(Int.valueOf(2), fn.fn(Int.valueOf(0)));
+  }
+
+  @Test
+  public void shouldKeepFlatEnvironment() throws Exception {
+    // Given:
+    evaluator.eval(parse("(define one 1)"));
+    evaluator.eval(parse("(define two (inc one))"));
+
+    // When:
+    final Main.Env env = Main.ENV;
+
+    // Then:
+    assertSame(Main.Env.class, env.getClass());
+    assertSame(Inc.INSTANCE, env.inc());
+    assertEquals(Int.valueOf(2), env.lookup("two"));
+  }
+
+  @Test
+  public void shouldDefineAll() throws Exception {
+    // Given:
+    final List<Define> defines = new ArrayList<>();
+    for (final String define : new String[] {
+        "(define zero (lambda (s) (lambda (z) z)))",
+        "(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))",
+        "(define one (succ zero))",
+        "(define two (succ one))",
+        "(define add (lambda (m) (lambda (n) (lambda (s) (lambda (z) ((m s) ((n s) z)))))))",
+        "(define base 10)"
+    }) {
+      defines.add((Define) parse(define));
+    }
+
+    // When:
+    final int count = evaluator.defineAll(defines);
+
+    // Then:
+    assertEquals(defines.size(), count);
+    assertEquals(Int.valueOf(13), evaluator.eval(parse("((((add two) one) inc) base)")));
+  }
+
+  @Test
+  public void shouldReuseClassOfAlphaEquivalentLambda() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final Main.Atom a = evaluator.eval(parse("(lambda (n) (lambda (s) (lambda (z) (s ((n s) z)))))"));
+
+    // When:
+    final Main.Atom b = evaluator.eval(parse("(lambda (m) (lambda (f) (lambda (x) (f ((m f) x)))))"));
+    final Main.Atom c = evaluator.eval(parse("(lambda (m) (lambda (f) (lambda (x) (x ((m f) f)))))"));
+
+    // Then:
+    assertSame(a.getClass(), b.getClass());
+    assertNotSame(a.getClass(), c.getClass());
+  }
+
+  @Test
+  public void shouldCaptureUsedVariablesOnly() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final Main.Atom k3 = evaluator.eval(parse("(lambda (a) (lambda (b) (lambda (c) a)))"));
+
+    // When:
+    final Main.Atom curried = k3.fn(Int.valueOf(1)).fn(Int.valueOf(2));
+
+    // Then:
+    assertEquals(1, countInstanceFields(curried.getClass())); // b is not captured
+    assertEquals(Int.valueOf(1), curried.fn(Int.valueOf(3)));
+  }
+
+  @Test
+  public void shouldApplyCompiledLambdaToUnboxedInt() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final Main.Atom addTwo = evaluator.eval(parse("(lambda (x) (inc (inc x)))"));
+    final Main.Atom keepArg = evaluator.eval(parse("(lambda (x) ((lambda (y) (dec x)) 0))"));
+
+    // When:
+    final int result = addTwo.applyInt(1000);
+    final int captured = keepArg.applyInt(1000);
+
+    // Then:
+    assertEquals(1002, result);
+    assertEquals(999, captured);
+    assertEquals(Int.valueOf(1002), addTwo.fn(Int.valueOf(1000)));
+    assertTrue(((Main.NumericFn) addTwo).speculation().isUnboxed());
+    assertTrue(((Main.NumericFn) keepArg).speculation().isUnboxed());
+  }
+
+  @Test
+  public void shouldFallBackToBoxedBodyWhenResultIsFunction() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final Main.Atom selectInc = evaluator.eval(parse("(lambda (x) ((lambda (y) y) inc))"));
+
+    // When:
+    final Main.Atom result = selectInc.fn(Int.valueOf(1));
+
+    // Then:
+    assertSame(Inc.INSTANCE, result);
+    assertFalse(((Main.NumericFn) selectInc).speculation().isUnboxed());
+    assertSame(Inc.INSTANCE, selectInc.fn(Int.valueOf(2)));
+  }
+
+  @Test
+  public void shouldKeepUnboxedBodyOnErrorOfCall() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final Main.Atom callArg = evaluator.eval(parse("(lambda (x) (inc (x 1)))"));
+
+    // When:
+    try {
+      callArg.fn(Int.valueOf(2));
+      fail("number should not be called");
+    } catch (UnsupportedOperationException e) {
+      // Then:
+      assertEquals("Treating " + Int.class + " as Fn", e.getMessage());
+    }
+    assertTrue(((Main.NumericFn) callArg).speculation().isUnboxed());
+  }
+
+  @Test
+  public void shouldShareInstancesOfClosedLambdas() throws Exception {
+    for (final int compileThreshold : new int[] { 0, Integer.MAX_VALUE }) {
+      // Given:
+      evaluator.setCompileThreshold(compileThreshold);
+      final Main.Atom k = evaluator.eval(parse("(lambda (a) (lambda (b) (inc b)))")); // refers globals only
+
+      // When:
+      final Main.Atom first = k.fn(Int.valueOf(1));
+      final Main.Atom second = k.fn(Int.valueOf(2));
+
+      // Then:
+      assertSame(first, second);
+      assertEquals(Int.valueOf(4), second.fn(Int.valueOf(3)));
+    }
+  }
+
+  @Test
+  public void shouldUnloadUnreferencedClass() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    Main.Atom a = evaluator.eval(parse("(lambda (unloadme) (lambda (b) ((b b) (unloadme dec))))"));
+    final ReferenceQueue<Class<?>> collected = new ReferenceQueue<>();
+    final WeakReference<Class<?>> classRef = new WeakReference<Class<?>>(a.getClass(), collected);
+    final int liveWithClass = GeneratedClassLoader.getLiveClassCount();
+
+    // When:
+    a = null;
+    Evaluator.CLASS_CACHE.clear();
+    boolean unloaded = false;
+    for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); !unloaded && System.nanoTime() < deadline;) {
+      System.gc();
+      unloaded = collected.remove(100L) == classRef;
+    }
+
+    // Then:
+    Assume.assumeTrue(unloaded); // explicit GC may be disabled or may not reach the class
+    assertNull(classRef.get());
+    // the loader's own reference to the class may be enqueued a bit later than ours
+    for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+         GeneratedClassLoader.getLiveClassCount() >= liveWithClass && System.nanoTime() < deadline;) {
+      Thread.sleep(10L);
+    }
+    assertTrue(GeneratedClassLoader.getLiveClassCount() < liveWithClass);
+  }
+
+  @Test
+  public void shouldAttributeCompiledCodeToSourceLinesByDefault() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final String input = "(lambda (x)\n  (inc\n    (x 1)))";
+    Evaluator.CLASS_CACHE.clear();
+
+    // When:
+    StackTraceElement frame = null;
+    try {
+      final Main.Atom fn = evaluator.eval(new AstNodeReader(new Parser().init(input.toCharArray(), 0,
+          input.length(), "trace.t34", 1, 1)).read(evaluator.scope));
+      fn.fn(Int.valueOf(2));
+      fail("number should not be called");
+    } catch (UnsupportedOperationException e) {
+      for (final StackTraceElement element : e.getStackTrace()) {
+        if (element.getClassName().startsWith("GenFn")) { // the compiled lambda
+          frame = element;
+          break;
+        }
+      }
+    } finally {
+      Evaluator.CLASS_CACHE.clear();
+    }
+
+    // Then:
+    assertTrue(Evaluator.isLineNumbers());
+    assertTrue("generated class should be on the stack", frame != null);
+    assertEquals("trace.t34", frame.getFileName());
+    assertEquals(3, frame.getLineNumber());
+  }
+
+  @Test
+  public void shouldShareClassOfEquivalentLambdasOnSameLinesOnly() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final String input = "(lambda (a) (dec (a 1)))\n(lambda (b) (dec (b 1))) (lambda (c) (dec (c 1)))";
+    final AstNodeReader reader = new AstNodeReader(new Parser().init(input.toCharArray(), 0, input.length(),
+        "lines.t34", 1, 1));
+    Evaluator.CLASS_CACHE.clear();
+
+    // When:
+    final Main.Atom first;
+    final Main.Atom second;
+    final Main.Atom third;
+    try {
+      first = evaluator.eval(reader.read(evaluator.scope));
+      second = evaluator.eval(reader.read(evaluator.scope));
+      third = evaluator.eval(reader.read(evaluator.scope));
+    } finally {
+      Evaluator.CLASS_CACHE.clear();
+    }
+
+    // Then:
+    assertNotSame(first.getClass(), second.getClass());
+    assertSame(second.getClass(), third.getClass());
+  }
+
+  @Test
+  public void shouldShareClassOfEquivalentLambdasOnAnyLinesWithoutLineNumbers() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    final String input = "(lambda (a) (dec (a 1)))\n(lambda (b) (dec (b 1)))";
+    final AstNodeReader reader = new AstNodeReader(new Parser().init(input.toCharArray(), 0, input.length(),
+        "lines.t34", 1, 1));
+    Evaluator.setLineNumbers(false);
+    Evaluator.CLASS_CACHE.clear();
+
+    // When:
+    final Main.Atom first;
+    final Main.Atom second;
+    final Main.Atom unpositioned;
+    try {
+      first = evaluator.eval(reader.read(evaluator.scope));
+      second = evaluator.eval(reader.read(evaluator.scope));
+      unpositioned = evaluator.eval(parse("(lambda (d) (dec (d 1)))"));
+    } finally {
+      Evaluator.setLineNumbers(true);
+      Evaluator.CLASS_CACHE.clear();
+    }
+
+    // Then:
+    assertSame(first.getClass(), second.getClass());
+    assertSame(first.getClass(), unpositioned.getClass());
+  }
+
+  @Test
+  public void shouldDumpGeneratedClasses() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(0);
+    Evaluator.CLASS_CACHE.clear();
+    final Path directory = Files.createTempDirectory("t34-dump");
+    GeneratedClassLoader.setDumpDirectory(directory);
+
+    // When:
+    final Path dumped;
+    final byte[] classBytes;
+    try {
+      final Main.Atom fn = evaluator.eval(parse("(lambda (dumpme) (dumpme dumpme))"));
+      dumped = directory.resolve(fn.getClass().getName() + ".class");
+      classBytes = Files.readAllBytes(dumped);
+    } finally {
+      GeneratedClassLoader.setDumpDirectory(null);
+    }
+
+    // Then:
+    try {
+      assertEquals(0xCAFEBABE, ByteBuffer.wrap(classBytes).getInt());
+    } finally {
+      try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+        for (final Path file : files) { Files.delete(file); }
+      }
+      Files.delete(directory);
+    }
+  }
+
+  private void evalInEnvironments(int count) throws Exception {
+    // Given:
+    final Main.Env[] sessions = new Main.Env[count]; // the last one is Main.ENV
+    for (int i = 0; i < count - 1; ++i) { sessions[i] = new Main.Env(); }
+    evaluator.setCompileThreshold(0);
+    evaluator.eval(parse("(define val 0)"));
+    final Main.Atom fn = evaluator.eval(parse("(lambda (a) (inc val))")); // the class is shared by all of them
+    try {
+      for (int i = 0; i < count; ++i) {
+        Main.bindEnv(sessions[i]);
+        evaluator.eval(parse("(define val " + (i * 10) + ")"));
+      }
+
+      for (int i = 0; i < 10 * count; ++i) {
+        // When:
+        final int session = i % count;
+        Main.bindEnv(sessions[session]);
+        if (i == 5 * count) { evaluator.eval(parse("(define val 100)")); } // the other environments keep theirs
+        final Main.Atom result = fn.fn(Int.valueOf(0));
+
+        // Then:
+        assertEquals(Int.valueOf(i >= 5 * count && session == 0 ? 101 : session * 10 + 1), result);
+      }
+    } finally {
+      Main.bindEnv(null);
+    }
+  }
+
+  private void defineChurchNumerals() throws Exception {
+    evaluator.eval(parse("(define zero (lambda (s) (lambda (z) z)))"));
+    evaluator.eval(parse("(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))"));
+    evaluator.eval(parse("(define add (lambda (m) (lambda (n) (lambda (s) (lambda (z) ((m s) ((n s) z)))))))"));
+    evaluator.eval(parse("(define mul (lambda (m) (lambda (n) (lambda (s) (m (n s))))))"));
+    evaluator.eval(parse("(define pow (lambda (b) (lambda (e) (e b))))"));
+    evaluator.eval(parse("(define n2 (succ (succ zero)))"));
+    evaluator.eval(parse("(define n3 (succ n2))"));
+    evaluator.eval(parse("(define n9 ((mul n3) n3))"));
+  }
+
+  private static int countInstanceFields(Class<?> lambdaClass) {
+    int count = 0;
+    for (final Field field : lambdaClass.getDeclaredFields()) {
+      if (!Modifier.isStatic(field.getModifiers())) { ++count; }
+    }
+    return count;
+  }
+
   private Symbol lookupGlobal(String val) {
     return new Symbol(val, evaluator.scope.lookup(val));
   }
@@ -0,0 +1,154 @@
+package t34;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link GraphReducer}.
+ */
+public class GraphReducerTest {
+  private static final String[] PRELUDE = Corpus.with(Corpus.PRELUDE, "(define n9 ((mul n3) n3))");
+
+  // the global read by a shared application gets redefined
+  private static final String[] CORPUS = Corpus.with(Corpus.EXPRESSIONS,
+      "(define g (lambda (x) 1))",
+      "(define f (lambda (x) (g 0)))",
+      "(f 0)",
+      "(define g (lambda (x) 2))",
+      "(f 0)",
+      "(define h ((lambda (x) (lambda (y) (g x))) 0))",
+      "(h 0)",
+      "(define g (lambda (x) 3))",
+      "(h 0)");
+
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    evaluator = new Evaluator();
+    evaluator.setChurchNumerals(false);
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldGiveSameResultsAsBytecodeBackend() throws Exception {
+    final List<String> bytecode = evalCorpus(false);
+    assertEquals(bytecode, evalCorpus(true));
+  }
+
+  @Test
+  public void shouldShareClosedSubexpressionsOfLambdas() throws Exception {
+    // Given:
+    evaluator.setGraphReduction(true);
+    defineAll();
+    final String expensive = "((((pow n3) n4) inc) 0)";
+
+    // When:
+    final long cost = countReductions(expensive);
+    final long once = countReductions("((lambda (g) (g 0)) (lambda (y) " + expensive + "))");
+    final long twice = countReductions("((lambda (g) ((k (g 0)) (g 1))) (lambda (y) " + expensive + "))");
+
+    // Then:
+    assertTrue("second call recomputed the body: " + cost + ", " + once + ", " + twice, twice - once < cost / 2);
+  }
+
+  @Test
+  public void shouldCollectGarbage() throws Exception {
+    // Given:
+    evaluator.setGraphReduction(true);
+    defineAll();
+    final long collections = evaluator.getGraphReducer().getCollections();
+
+    // When:
+    final Main.Atom result = evaluator.eval(parse("((((pow n4) n9) inc) 0)"));
+
+    // Then:
+    assertEquals(Int.valueOf(262144), result);
+    assertTrue(evaluator.getGraphReducer().getCollections() > collections);
+    final Main.Atom n9 = evaluator.eval(parse("n9"));
+    assertEquals(Int.valueOf(9), n9.fn(Inc.INSTANCE).fn(Int.valueOf(0)));
+  }
+
+  @Test
+  public void shouldKeepSharedSubexpressionsUntilRedefinition() throws Exception {
+    // Given:
+    evaluator.setGraphReduction(true);
+    defineAll();
+    evaluator.eval(parse("(define big (lambda (y) ((((pow n4) n9) inc) 0)))"));
+    final long collections = evaluator.getGraphReducer().getCollections();
+    final long cost = countReductions("(big 0)");
+
+    // When:
+    final long shared = countReductions("(big 1)");
+    evaluator.eval(parse("(define n9 n3)"));
+    final Main.Atom redefined = evaluator.eval(parse("(big 2)"));
+
+    // Then:
+    assertTrue(evaluator.getGraphReducer().getCollections() > collections);
+    assertTrue("second call recomputed the body: " + cost + ", " + shared, shared < cost / 2);
+    assertEquals(Int.valueOf(64), redefined);
+  }
+
+  @Test
+  public void shouldReduceDeeplyNestedTerms() throws Exception {
+    // Given:
+    evaluator.setGraphReduction(true);
+    final int depth = 10000;
+    final StringBuilder input = new StringBuilder();
+    for (int i = 0; i < depth; ++i) { input.append("((lambda (v").append(i).append(") "); }
+    input.append("(inc v0)");
+    for (int i = 0; i < depth; ++i) { input.append(") ").append(i).append(')'); }
+
+    // When:
+    final Main.Atom result = evaluator.eval(parse(input.toString()));
+
+    // Then:
+    assertEquals(Int.valueOf(depth), result); // v0 is bound to the last argument
+  }
+
+  @Test
+  public void shouldReportUndefinedSymbol() throws Exception {
+    // Given:
+    evaluator.setGraphReduction(true);
+
+    // When:
+    try {
+      evaluator.eval(parse("(inc undefined)"));
+      fail("undefined symbol is reduced");
+    } catch (IllegalStateException e) {
+      // Then:
+      assertEquals("Undefined symbol undefined", e.getMessage());
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private long countReductions(String expression) throws Exception {
+    final long before = evaluator.getGraphReducer().getReductions();
+    evaluator.eval(parse(expression));
+    return evaluator.getGraphReducer().getReductions() - before;
+  }
+
+  private List<String> evalCorpus(boolean graphReduction) throws Exception {
+    init();
+    evaluator.setGraphReduction(graphReduction);
+    defineAll();
+    return Corpus.evalAll(evaluator, CORPUS);
+  }
+
+  private void defineAll() throws Exception {
+    Corpus.defineAll(evaluator, PRELUDE);
+  }
+
+  private PrimitiveAtom parse(String input) {
+    return Corpus.parse(evaluator, input);
+  }
+}
@@ -0,0 +1,89 @@
+package t34;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Interpreter} tier.
+ */
+public class InterpreterTest {
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    evaluator = new Evaluator();
+    evaluator.setChurchNumerals(false); // keep the closures to run through both tiers
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldGiveSameResultsInBothTiers() throws Exception {
+    final List<String> compiled = evalCorpus(0, false);
+    assertEquals(compiled, evalCorpus(Integer.MAX_VALUE, false)); // never compiled
+    assertEquals(compiled, evalCorpus(1, false));
+    assertEquals(compiled, evalCorpus(3, false));
+    assertEquals(compiled, evalCorpus(3, true));
+  }
+
+  @Test
+  public void shouldPromoteAfterThreshold() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(3);
+    final long promotions = evaluator.getInterpreter().getPromotions();
+    final InterpretedFn fn = (InterpretedFn) evaluator.eval(parse("(lambda (promoteme) (inc promoteme))"));
+
+    // When:
+    assertEquals(Int.valueOf(1), fn.fn(Int.valueOf(0)));
+    assertEquals(Int.valueOf(2), fn.fn(Int.valueOf(1)));
+    assertFalse(fn.isCompiled());
+    assertEquals(Int.valueOf(3), fn.fn(Int.valueOf(2)));
+
+    // Then:
+    assertTrue(fn.isCompiled());
+    assertEquals(promotions + 1, evaluator.getInterpreter().getPromotions());
+    assertEquals(Int.valueOf(4), fn.fn(Int.valueOf(3)));
+  }
+
+  @Test
+  public void shouldInterpretWithoutCompilation() throws Exception {
+    // Given:
+    evaluator.setCompileThreshold(Integer.MAX_VALUE);
+    final long defined = GeneratedClassLoader.getDefinedClassCount();
+
+    // When:
+    Corpus.defineAll(evaluator, Corpus.PRELUDE);
+    final Main.Atom a = evaluator.eval(parse("((((add n3) n4) inc) 0)"));
+
+    // Then:
+    assertEquals(Int.valueOf(7), a);
+    assertEquals(defined, GeneratedClassLoader.getDefinedClassCount());
+  }
+
+  //
+  // Private
+  //
+
+  private List<String> evalCorpus(int compileThreshold, boolean background) throws Exception {
+    init();
+    evaluator.setCompileThreshold(compileThreshold);
+    evaluator.setBackgroundCompilation(background);
+    Corpus.defineAll(evaluator, Corpus.PRELUDE);
+
+    final List<String> results = new ArrayList<>();
+    for (int round = 0; round < 5; ++round) { // let the lambdas cross the threshold
+      results.addAll(Corpus.evalAll(evaluator, Corpus.EXPRESSIONS));
+    }
+    return results;
+  }
+
+  private PrimitiveAtom parse(String input) {
+    return Corpus.parse(evaluator, input);
+  }
+}
@@ -0,0 +1,105 @@
+package t34;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link LambdaShape} and {@link LambdaClassCache}.
+ */
+public class LambdaClassCacheTest {
+  private final GlobalLexicalScope globalScope = new GlobalLexicalScope();
+
+  @Test
+  public void shouldIgnoreParameterNames() {
+    assertEquals(shape("(lambda (a) (lambda (b) (b a)))"), shape("(lambda (x) (lambda (y) (y x)))"));
+    assertEquals(shape("(lambda (a) (inc a))"), shape("(lambda (b) (inc b))"));
+  }
+
+  @Test
+  public void shouldDistinguishStructure() {
+    assertFalse(shape("(lambda (a) (lambda (b) (b a)))").equals(shape("(lambda (a) (lambda (b) (a b)))")));
+    assertFalse(shape("(lambda (a) (inc a))").equals(shape("(lambda (a) (dec a))")));
+    assertFalse(shape("(lambda (a) (inc 1))").equals(shape("(lambda (a) (inc 10))")));
+  }
+
+  @Test
+  public void shouldDistinguishClosureLayout() {
+    final Lambda outer = (Lambda) parse("(lambda (a) (lambda (b) (b a)))");
+    final Lambda inner = (Lambda) outer.body;
+    assertFalse(shape("(lambda (b) (b b))").equals(inner.getShape()));
+    assertEquals(1, inner.getShape().getClosureSize());
+  }
+
+  @Test
+  public void shouldCaptureUsedVariablesOnly() {
+    // Given:
+    final Lambda outer = (Lambda) parse("(lambda (a) (lambda (b) (lambda (c) (lambda (d) (a c)))))");
+    final Lambda second = (Lambda) outer.body;
+    final Lambda third = (Lambda) second.body;
+    final Lambda fourth = (Lambda) third.body;
+
+    // Then:
+    assertEquals(0, outer.getCaptures().length);
+    assertEquals("[0]", Arrays.toString(second.getCaptures()));
+    assertEquals("[0]", Arrays.toString(third.getCaptures()));
+    assertEquals("[0, 2]", Arrays.toString(fourth.getCaptures()));
+    assertEquals(shape("(lambda (b) b)"), ((Lambda) ((Lambda) parse("(lambda (a) (lambda (b) b))")).body).getShape());
+    assertEquals(shape("(lambda (x) (lambda (y) x))"), // shape doesn't depend on the nesting depth
+        ((Lambda) ((Lambda) parse("(lambda (u) (lambda (x) (lambda (y) x)))")).body).getShape());
+  }
+
+  @Test
+  public void shouldCountHitsAndMisses() {
+    // Given:
+    final LambdaClassCache cache = new LambdaClassCache(10);
+    final LambdaShape shape = shape("(lambda (a) a)");
+
+    // When:
+    assertNull(cache.get(shape));
+    cache.put(shape, Object.class);
+    assertSame(Object.class, cache.get(shape("(lambda (b) b)")));
+
+    // Then:
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() {
+    // Given:
+    final LambdaClassCache cache = new LambdaClassCache(2);
+    final LambdaShape a = shape("(lambda (a) a)");
+    final LambdaShape b = shape("(lambda (a) (a a))");
+    final LambdaShape c = shape("(lambda (a) ((a a) a))");
+    cache.put(a, Integer.class);
+    cache.put(b, Long.class);
+
+    // When:
+    cache.get(a); // a is used more recently than b
+    cache.put(c, Short.class);
+
+    // Then:
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertSame(Integer.class, cache.get(a));
+    assertNull(cache.get(b));
+  }
+
+  //
+  // Private
+  //
+
+  private PrimitiveAtom parse(String input) {
+    return AstNodeReaderTest.createReader(input).read(globalScope);
+  }
+
+  private LambdaShape shape(String input) {
+    return ((Lambda) parse(input)).getShape();
+  }
+}
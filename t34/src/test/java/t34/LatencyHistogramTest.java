@@ -0,0 +1,56 @@
+package t34;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void shouldKeepPercentilesWithinBucketPrecision() {
+    // Given:
+    final LatencyHistogram histogram = new LatencyHistogram();
+
+    // When:
+    for (int i = 1; i <= 100000; ++i) { histogram.record(i * 10L); }
+
+    // Then:
+    assertEquals(100000, histogram.getCount());
+    assertEquals(500005, histogram.getMean());
+    assertEquals(1000000, histogram.getMax());
+    for (final double percentile : new double[] { 50, 90, 99, 99.9 }) {
+      final long exact = (long) (percentile * 10000);
+      final long reported = histogram.getPercentile(percentile);
+      assertTrue(percentile + ": " + reported, reported >= exact && reported <= exact + exact / 16);
+    }
+    assertEquals(1000000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void shouldMapEveryValueToBucketContainingIt() {
+    for (long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE }) {
+      final int index = LatencyHistogram.indexOf(value);
+      assertTrue(value + " above its bucket", value <= LatencyHistogram.highestValueOf(index));
+      assertTrue(value + " below its bucket", index == 0 || value > LatencyHistogram.highestValueOf(index - 1));
+    }
+  }
+
+  @Test
+  public void shouldForgetValuesOnReset() {
+    // Given:
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(42);
+
+    // When:
+    histogram.reset();
+
+    // Then:
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(99));
+    assertEquals(0, histogram.getMax());
+  }
+}
@@ -0,0 +1,150 @@
+package t34;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link Optimizer}.
+ */
+public class OptimizerTest {
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    evaluator = new Evaluator();
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldReduceLiteralLambdaApplication() {
+    assertEquals("(inc 5)", optimize(1, "((lambda (x) (inc x)) 5)"));
+    assertEquals("5", optimize(1, "(((lambda (x) x) (lambda (y) y)) 5)"));
+    assertEquals("(inc (inc 1))", optimize(1, "((lambda (f) (f (f 1))) inc)"));
+  }
+
+  @Test
+  public void shouldNotMoveOrDuplicateCalls() {
+    // Given:
+    final PrimitiveAtom node = parse("((lambda (x) ((x x) x)) (f g))");
+
+    // Then:
+    assertSame(node, evaluator.getOptimizer().optimize(node, evaluator.scope));
+    assertEquals("((lambda (x) (lambda (y) x)) inc)", optimize(1, "((lambda (x) (lambda (y) x)) inc)"));
+  }
+
+  @Test
+  public void shouldNotDropUndefinedGlobals() {
+    assertEquals("((lambda (x) 1) nosuchsym)", optimize(1, "((lambda (x) 1) nosuchsym)"));
+    assertEquals("((lambda (x) (lambda (y) x)) nosuchsym)", optimize(3, "((lambda (x) (lambda (y) x)) nosuchsym)"));
+    assertEquals("(inc nosuchsym)", optimize(1, "((lambda (x) (inc x)) nosuchsym)"));
+    assertEquals("1", optimize(1, "((lambda (x) 1) inc)"));
+  }
+
+  @Test
+  public void shouldSkipDeeplyNestedTerms() {
+    // Given:
+    final int depth = 10000;
+    final StringBuilder input = new StringBuilder();
+    for (int i = 0; i < depth; ++i) { input.append("((lambda (v").append(i).append(") "); }
+    input.append("(inc v0)");
+    for (int i = 0; i < depth; ++i) { input.append(") ").append(i).append(')'); }
+    final PrimitiveAtom node = parse(input.toString());
+
+    // When:
+    evaluator.getOptimizer().setLevel(3);
+    final PrimitiveAtom optimized = evaluator.optimize(node);
+
+    // Then:
+    assertSame(node, optimized);
+    assertSame(node, Optimizer.delayArguments(node, evaluator.scope));
+  }
+
+  @Test
+  public void shouldAvoidVariableCapture() {
+    assertEquals("(lambda (y) (lambda (y1) (y y1)))", optimize(1, "(lambda (y) ((lambda (x) (lambda (y) (x y))) y))"));
+  }
+
+  @Test
+  public void shouldStopOnTermsWithoutNormalForm() {
+    assertEquals("((lambda (x) (x x)) (lambda (x) (x x)))",
+        optimize(3, "((lambda (x) (x x)) (lambda (x) (x x)))"));
+  }
+
+  @Test
+  public void shouldFoldAndInlineGlobals() throws Exception {
+    // Given:
+    define("(define twice (lambda (f) (lambda (x) (f (f x)))))");
+    define("(define ten 10)");
+
+    // Then:
+    assertEquals("((twice inc) ten)", optimize(1, "((twice inc) ten)"));
+    assertEquals("12", optimize(2, "((twice inc) ten)"));
+    assertEquals("(lambda (x) (inc (inc x)))", optimize(2, "(twice inc)"));
+  }
+
+  @Test
+  public void shouldNotInlineRedefinedGlobals() throws Exception {
+    // Given:
+    define("(define twice (lambda (f) (lambda (x) (f (f x)))))");
+    evaluator.getOptimizer().setLevel(2);
+    final PrimitiveAtom optimized = evaluator.optimize(parse("(twice inc)"));
+
+    // When:
+    Main.ENV.define(GlobalLocation.of("twice").getSlot(), Inc.INSTANCE);
+
+    // Then:
+    assertEquals("(lambda (x) (inc (inc x)))", Optimizer.toSource(optimized));
+    assertEquals("(twice inc)", optimize(2, "(twice inc)"));
+  }
+
+  @Test
+  public void shouldNotInlineChurchNumerals() throws Exception {
+    // Given:
+    define("(define zero (lambda (s) (lambda (z) z)))");
+    define("(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))");
+
+    // Then:
+    assertEquals("((succ zero) inc)", optimize(3, "((succ zero) inc)"));
+  }
+
+  @Test
+  public void shouldKeepResults() throws Exception {
+    define("(define twice (lambda (f) (lambda (x) (f (f x)))))");
+    define("(define compose (lambda (f) (lambda (g) (lambda (x) (f (g x))))))");
+    final String[] corpus = {
+        "((lambda (x) (inc x)) 5)",
+        "((((lambda (a) (lambda (b) (lambda (c) ((a b) c)))) twice) inc) 3)",
+        "(((compose (twice inc)) (lambda (y) ((lambda (x) (dec x)) y))) 10)",
+        "((lambda (y) (((lambda (x) (lambda (y) (x y))) y) 7)) inc)",
+        "(((twice twice) inc) 0)"
+    };
+
+    for (final String expression : corpus) {
+      final Main.Atom expected = evaluator.eval(parse(expression));
+      for (int level = 1; level <= 3; ++level) {
+        evaluator.getOptimizer().setLevel(level);
+        assertEquals(expression + " at level " + level, expected, evaluator.eval(evaluator.optimize(parse(expression))));
+      }
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private String optimize(int level, String input) {
+    evaluator.getOptimizer().setLevel(level);
+    return Optimizer.toSource(evaluator.optimize(parse(input)));
+  }
+
+  private void define(String input) throws Exception {
+    evaluator.eval(evaluator.optimize(parse(input)));
+  }
+
+  private PrimitiveAtom parse(String input) {
+    return AstNodeReaderTest.createReader(input).read(evaluator.scope);
+  }
+}
@@ -0,0 +1,165 @@
+package t34;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ParallelEvaluator} and the parallel mode of {@link Evaluator}.
+ */
+public class ParallelEvaluatorTest {
+  private static final String[] PRELUDE = Corpus.with(Corpus.PRELUDE,
+      "(define pair (lambda (a) (lambda (b) (lambda (f) ((f a) b)))))",
+      "(define second (lambda (p) (p (lambda (a) (lambda (b) b)))))");
+
+  // both sides of the outer applications are above the threshold
+  private static final String WIDE = "((k ((((add ((add n3) n4)) ((add n4) n3)) inc) 0)) " +
+      "(second ((pair ((((add ((add n4) n4)) ((add n3) n3)) inc) 0)) ((((add ((add n3) n3)) n4) inc) 1))))";
+
+  private static final String[] CORPUS = Corpus.with(Corpus.EXPRESSIONS,
+      WIDE,
+      "(second ((pair " + WIDE + ") " + WIDE + "))",
+      "((k (lambda (y) y)) " + WIDE + ")");
+
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    evaluator = new Evaluator();
+    evaluator.setChurchNumerals(false);
+    Main.ENV = new Main.Env();
+  }
+
+  @After
+  public void shutdown() { evaluator.setParallelism(0); }
+
+  @Test
+  public void shouldGiveSameResultsAsSequentialMode() throws Exception {
+    for (final int compileThreshold : new int[] { 0, Integer.MAX_VALUE }) {
+      final List<String> sequential = evalCorpus(0, compileThreshold);
+      assertEquals(sequential, evalCorpus(4, compileThreshold));
+    }
+  }
+
+  @Test
+  public void shouldForkExpensiveSides() throws Exception {
+    // Given:
+    evaluator.setParallelism(2);
+    evaluator.getParallelEvaluator().setThreshold(4);
+    defineAll();
+
+    // When:
+    final Main.Atom result = evaluator.eval(parse(WIDE));
+
+    // Then:
+    assertEquals(Int.valueOf(14), result);
+    assertTrue(evaluator.getParallelEvaluator().getForks() > 0);
+  }
+
+  @Test
+  public void shouldNotForkCheapSides() throws Exception {
+    // Given:
+    evaluator.setParallelism(2);
+    defineAll();
+
+    // When:
+    final Main.Atom result = evaluator.eval(parse("((k (inc (inc 1))) (dec (dec 1)))"));
+
+    // Then:
+    assertEquals(Int.valueOf(3), result);
+    assertEquals(0, evaluator.getParallelEvaluator().getForks());
+  }
+
+  @Test
+  public void shouldReportFailureOfFunctionSideFirst() throws Exception {
+    // Given:
+    evaluator.setParallelism(2);
+    evaluator.getParallelEvaluator().setThreshold(2);
+    defineAll();
+    final PrimitiveAtom node = parse("((k (inc (inc (nofn 0)))) (inc (inc (noarg 0))))");
+
+    for (int i = 0; i < 100; ++i) {
+      // When:
+      try {
+        evaluator.eval(node);
+        fail("undefined symbol is evaluated");
+      } catch (IllegalStateException e) {
+        // Then:
+        assertEquals("Undefined symbol nofn", e.getMessage());
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void shouldNotAwaitArgumentSideOnceFunctionSideFails() throws Exception {
+    // Given:
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    evaluator.setParallelism(2);
+    evaluator.getParallelEvaluator().setThreshold(2);
+    defineAll();
+    Main.ENV.define(GlobalLocation.of("boom").getSlot(), new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) {
+        await(started);
+        throw new IllegalStateException("boom");
+      }
+    });
+    Main.ENV.define(GlobalLocation.of("block").getSlot(), new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) {
+        started.countDown();
+        await(released);
+        return arg;
+      }
+    });
+
+    // When:
+    try {
+      evaluator.eval(parse("((k (inc (inc (boom 0)))) (inc (inc (block 0))))"));
+      fail("failure is hidden");
+    } catch (IllegalStateException e) {
+      // Then:
+      assertEquals("boom", e.getMessage());
+    } finally {
+      released.countDown();
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private List<String> evalCorpus(int parallelism, int compileThreshold) throws Exception {
+    init();
+    evaluator.setParallelism(parallelism);
+    evaluator.setCompileThreshold(compileThreshold);
+    defineAll();
+
+    final List<String> results = Corpus.evalAll(evaluator, CORPUS);
+    evaluator.setParallelism(0);
+    return results;
+  }
+
+  private void defineAll() throws Exception {
+    Corpus.defineAll(evaluator, PRELUDE);
+  }
+
+  private PrimitiveAtom parse(String input) {
+    return Corpus.parse(evaluator, input);
+  }
+}
@@ -3,6 +3,7 @@ package t34;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ParserTest {
@@ -40,6 +41,55 @@ public class ParserTest {
     assertEquals(Special.CLOSE_BRACE, parser.next(scope));
   }
 
+  @Test
+  public void shouldParseNumbers() {
+    assertEquals(Int.valueOf(0), createParser("0").next(scope));
+    assertEquals(Int.valueOf(42), createParser(" 42)").next(scope));
+    assertEquals(Int.valueOf(Integer.MAX_VALUE), createParser("2147483647").next(scope));
+  }
+
+  @Test(expected = ParserException.class)
+  public void shouldRejectTooBigNumber() {
+    createParser("2147483648").next(scope);
+  }
+
+  @Test(expected = ParserException.class)
+  public void shouldRejectIllegalNumber() {
+    createParser("12ab").next(scope);
+  }
+
+  @Test
+  public void shouldShareSymbolsAcrossParsers() {
+    final PrimitiveAtom first = createParser("(sym)").init("  sym".toCharArray(), 0, 5).next(scope);
+    final PrimitiveAtom second = createParser("sym").next(new GlobalLexicalScope());
+    assertSame(first, second);
+    assertSame("sym", first.toString());
+  }
+
+  @Test
+  public void shouldInternNames() {
+    // Given:
+    final SymbolTable table = new SymbolTable();
+    final char[] buffer = "(define abc abd)".toCharArray();
+
+    // When:
+    final Special define = table.getKeyword(table.intern(buffer, 1, 7));
+    final String abc = table.getName(table.intern(buffer, 8, 11));
+    final String abd = table.getName(table.intern(buffer, 12, 15));
+    for (int i = 0; i < 1000; ++i) { // grow the table
+      final char[] name = ("n" + i).toCharArray();
+      table.intern(name, 0, name.length);
+    }
+
+    // Then:
+    assertSame(Special.DEFINE, define);
+    assertSame("abc", abc);
+    assertSame("abd", abd);
+    assertSame("abc", table.getName(table.intern(buffer, 8, 11)));
+    assertSame("n999", table.getName(table.intern("n999".toCharArray(), 0, 4)));
+    assertEquals(1004, table.size());
+  }
+
   //
   // Private
   //
@@ -0,0 +1,142 @@
+package t34;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link Profiler}.
+ */
+public class ProfilerTest {
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    Main.ENV = new Main.Env();
+    evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0);
+  }
+
+  @After
+  public void disable() {
+    Profiler.setEnabled(false);
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldCountCallsAndAllocationsPerLambda() throws Exception {
+    // Given:
+    Profiler.setEnabled(true);
+    eval("(define twice (lambda (f) (lambda (x) (f (f x)))))");
+    Profiler.reset();
+
+    // When:
+    for (int i = 0; i < 5; ++i) {
+      assertEquals("2", eval("((twice inc) 0)").toString());
+    }
+
+    // Then:
+    final Main.LambdaProfile outer = findProfile("(lambda (f) (lambda (x) (f (f x))))");
+    assertEquals(5, outer.getCalls());
+    assertEquals(0, outer.getAllocations()); // shared instance, created before the reset
+    final Main.LambdaProfile inner = findProfile("(lambda (x) (f (f x)))");
+    assertEquals(5, inner.getCalls());
+    assertEquals(5, inner.getAllocations());
+    assertTrue(Profiler.report(10).contains(inner.getClassName()));
+  }
+
+  @Test
+  public void shouldReportPositionOfLambda() throws Exception {
+    // Given:
+    Profiler.setEnabled(true);
+    final String input = "\n  (lambda (placeme) (dec placeme))";
+    final Main.Atom fn = evaluator.eval(new AstNodeReader(new Parser().init(input.toCharArray(), 0, input.length(),
+        "profile.t34", 1, 1)).read(evaluator.scope));
+
+    // When:
+    assertEquals("0", fn.fn(Int.valueOf(1)).toString());
+
+    // Then:
+    final Main.LambdaProfile profile = findProfile("(lambda (placeme) (dec placeme))");
+    assertEquals("profile.t34:2:3", String.valueOf(profile.getPosition()));
+    assertTrue(Profiler.report(100).contains("profile.t34:2:3 (lambda (placeme) (dec placeme))"));
+  }
+
+  @Test
+  public void shouldGenerateNoCountersWhenDisabled() throws Exception {
+    // Given:
+    Profiler.setEnabled(false);
+
+    // When:
+    final Main.Atom fn = eval("(lambda (y) (inc y))");
+
+    // Then:
+    assertFalse(hasProfileField(fn.getClass()));
+    Profiler.setEnabled(true);
+    assertTrue(hasProfileField(eval("(lambda (y) (inc y))").getClass()));
+  }
+
+  @Test
+  public void shouldDropProfileOfUnloadedClass() throws Exception {
+    // Given:
+    Profiler.setEnabled(true);
+    Main.Atom fn = eval("(lambda (dropme) (inc dropme))");
+    assertEquals("1", fn.fn(Int.valueOf(0)).toString());
+    final WeakReference<Main.LambdaProfile> profileRef =
+        new WeakReference<>(findProfile("(lambda (dropme) (inc dropme))"));
+    final ReferenceQueue<Class<?>> collected = new ReferenceQueue<>();
+    final WeakReference<Class<?>> classRef = new WeakReference<Class<?>>(fn.getClass(), collected);
+
+    // When:
+    fn = null;
+    Evaluator.CLASS_CACHE.clear();
+    boolean unloaded = false;
+    for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); !unloaded && System.nanoTime() < deadline;) {
+      System.gc();
+      unloaded = collected.remove(100L) == classRef;
+    }
+
+    // Then:
+    Assume.assumeTrue(unloaded); // explicit GC may be disabled or may not reach the class
+    assertNull(profileRef.get());
+    for (final Main.LambdaProfile profile : Profiler.getProfiles()) {
+      assertFalse(profile.getSource().equals("(lambda (dropme) (inc dropme))"));
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private Main.Atom eval(String input) throws Exception {
+    return evaluator.eval(AstNodeReaderTest.createReader(input).read(evaluator.scope));
+  }
+
+  private static Main.LambdaProfile findProfile(String source) {
+    for (final Main.LambdaProfile profile : Profiler.getProfiles()) {
+      if (profile.getSource().equals(source)) { return profile; }
+    }
+    assertNotNull("No profile of " + source + " in " + Profiler.report(100), null);
+    return null;
+  }
+
+  private static boolean hasProfileField(Class<?> lambdaClass) {
+    try {
+      lambdaClass.getDeclaredField(Evaluator.PROFILE_FIELD);
+      return true;
+    } catch (NoSuchFieldException e) {
+      return false;
+    }
+  }
+}
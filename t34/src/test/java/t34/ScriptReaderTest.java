@@ -0,0 +1,145 @@
+package t34;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ScriptReader}.
+ */
+public class ScriptReaderTest {
+  private final GlobalLexicalScope globalScope = new GlobalLexicalScope();
+
+  @Test
+  public void shouldReadMultilineExpressions() throws Exception {
+    // Given:
+    final ScriptReader reader = new ScriptReader(new StringReader("(define a\n  (lambda (x)\n    x))\n\n  b 12(c d)"));
+
+    // When:
+    final PrimitiveAtom define = reader.read(globalScope);
+    final PrimitiveAtom symbol = reader.read(globalScope);
+    final PrimitiveAtom number = reader.read(globalScope);
+    final int numberLine = reader.getLine();
+    final PrimitiveAtom call = reader.read(globalScope);
+
+    // Then:
+    assertTrue(define instanceof Define);
+    assertTrue(((Define) define).value instanceof Lambda);
+    assertEquals("b", symbol.toString());
+    assertEquals(Int.valueOf(12), number);
+    assertEquals(5, numberLine);
+    assertTrue(call instanceof Call);
+    assertNull(reader.read(globalScope));
+  }
+
+  @Test
+  public void shouldReadExpressionsSpanningChunks() throws Exception {
+    // Given:
+    final StringBuilder source = new StringBuilder();
+    for (int i = 0; i < 3000; ++i) { source.append("(inc "); }
+    source.append('0');
+    for (int i = 0; i < 3000; ++i) { source.append(')'); }
+    source.append("\n(quit)");
+    final ScriptReader reader = new ScriptReader(ByteBuffer.wrap(source.toString().getBytes(StandardCharsets.UTF_8)),
+        StandardCharsets.UTF_8);
+
+    // When:
+    final PrimitiveAtom call = reader.read(globalScope);
+
+    // Then:
+    assertTrue(call instanceof Call);
+    assertTrue(reader.nextExpression());
+    assertTrue(reader.isExpression("(quit)"));
+    assertFalse(reader.isExpression("(stats)"));
+    assertFalse(reader.nextExpression());
+  }
+
+  @Test
+  public void shouldPositionNodesInScript() throws Exception {
+    // Given:
+    final ScriptReader reader = new ScriptReader(new StringReader("1 (inc 1)\n\n  (define a\n    (lambda (x) x))"),
+        "test.t34");
+
+    // When:
+    reader.read(globalScope);
+    final Call call = (Call) reader.read(globalScope);
+    final Define define = (Define) reader.read(globalScope);
+
+    // Then:
+    assertEquals("test.t34:1:3", call.position.toString());
+    assertEquals(3, reader.getLine());
+    assertEquals(3, reader.getColumn());
+    assertEquals("test.t34:4:5", ((Lambda) define.value).position.toString());
+  }
+
+  @Test(expected = ParserException.class)
+  public void shouldRejectUnterminatedExpression() throws Exception {
+    new ScriptReader(new StringReader("(inc\n(inc 0)")).nextExpression();
+  }
+
+  @Test(expected = ParserException.class)
+  public void shouldRejectUnbalancedCloseBrace() throws Exception {
+    new ScriptReader(new StringReader(")")).nextExpression();
+  }
+
+  @Test
+  public void shouldRunMappedScript() throws Exception {
+    // Given:
+    final Path script = Files.createTempFile("t34", ".lc");
+    Files.write(script, ("(define one\n  (lambda (s) (lambda (z) (s z))))\n" +
+        "(define two (lambda (s) (lambda (z) (s (s z)))))\n" +
+        "((two inc)\n  ((one inc) 0))\n" +
+        "(inc 41)\n").getBytes(StandardCharsets.UTF_8));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final PrintStream stdout = System.out;
+    Main.ENV = new Main.Env();
+
+    // When:
+    final boolean succeeded;
+    System.setOut(new PrintStream(out, true));
+    try (final ScriptReader reader = ScriptReader.open(script)) {
+      succeeded = Main.runScript(reader);
+    } finally {
+      System.setOut(stdout);
+      Files.delete(script);
+    }
+
+    // Then:
+    assertTrue(succeeded);
+    assertEquals("3\n42\n", out.toString().replace(System.lineSeparator(), "\n"));
+  }
+
+  @Test
+  public void shouldReportLineOfFailedDefinition() throws Exception {
+    // Given:
+    final ScriptReader reader = new ScriptReader(new StringReader("(define one 1)\n(define bad\n  (1 2))\n" +
+        "(define two 2)\n(define three 3)\n"));
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+    final PrintStream stderr = System.err;
+    Main.ENV = new Main.Env();
+
+    // When:
+    final boolean succeeded;
+    System.setErr(new PrintStream(err, true));
+    try {
+      succeeded = Main.runScript(reader);
+    } finally {
+      System.setErr(stderr);
+    }
+
+    // Then:
+    assertFalse(succeeded);
+    assertTrue(err.toString(), err.toString().startsWith(";; Error at line 2 in definition of bad"));
+  }
+}
@@ -0,0 +1,211 @@
+package t34;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link Server}.
+ */
+public class ServerTest {
+  private Server server;
+
+  @Before
+  public void init() throws IOException {
+    server = new Server(0);
+    server.start();
+  }
+
+  @After
+  public void close() throws IOException { server.close(); }
+
+  @Test
+  public void shouldIsolateSessionEnvironments() throws Exception {
+    try (final Client first = new Client(); final Client second = new Client()) {
+      // Given:
+      assertEquals("0", first.eval("(define x 1)"));
+      assertEquals("0", second.eval("(define x 2)"));
+      assertEquals("0", first.eval("(define only 5)"));
+
+      // When:
+      final String firstValue = first.eval("((lambda (a) (inc a)) x)");
+      final String secondValue = second.eval("((lambda (a) (inc a)) x)");
+
+      // Then:
+      assertEquals("2", firstValue);
+      assertEquals("3", secondValue);
+      assertEquals(";; Error: java.lang.IllegalStateException: Undefined symbol only", second.eval("(inc only)"));
+    }
+  }
+
+  @Test
+  public void shouldShareGeneratedClasses() throws Exception {
+    try (final Client first = new Client(); final Client second = new Client()) {
+      // Given:
+      first.eval("(define f (lambda (a) (lambda (b) (inc (inc a)))))");
+      second.eval("(define f (lambda (a) (lambda (b) (dec (dec a)))))");
+
+      // When:
+      final String firstValue = first.eval("((lambda (g) ((g 40) 0)) f)");
+      final long afterFirst = GeneratedClassLoader.getDefinedClassCount();
+      final String secondValue = second.eval("((lambda (g) ((g 40) 0)) f)");
+
+      // Then:
+      assertEquals("42", firstValue);
+      assertEquals("38", secondValue);
+      assertEquals(afterFirst, GeneratedClassLoader.getDefinedClassCount()); // same shapes, no new classes
+    }
+  }
+
+  @Test
+  public void shouldServeConcurrentSessions() throws Exception {
+    // Given:
+    final int sessions = 64;
+    final ExecutorService clients = Executors.newFixedThreadPool(sessions);
+    final List<Future<String>> results = new ArrayList<>();
+
+    // When:
+    for (int i = 0; i < sessions; ++i) {
+      final int value = i;
+      results.add(clients.submit(new Callable<String>() {
+        public String call() throws Exception {
+          try (final Client client = new Client()) {
+            client.eval("(define v " + value + ")");
+            String result = null;
+            for (int j = 0; j < 20; ++j) { result = client.eval("((lambda (x) (inc (dec (inc x)))) v)"); }
+            return result;
+          }
+        }
+      }));
+    }
+
+    // Then:
+    for (int i = 0; i < sessions; ++i) {
+      assertEquals(Integer.toString(i + 1), results.get(i).get());
+    }
+    clients.shutdown();
+  }
+
+  @Test
+  public void shouldReportSyntaxErrorAndKeepSession() throws Exception {
+    try (final Client client = new Client()) {
+      // When:
+      final String error = client.eval("(lambda)");
+
+      // Then:
+      assertEquals(true, error.startsWith(";; Syntax error: "));
+      assertEquals("1", client.eval("(inc 0)"));
+    }
+  }
+
+  @Test
+  public void shouldKeepSymbolsOfSessionsApart() throws Exception {
+    // Given:
+    final int sharedSymbols = GlobalLocation.SHARED.size();
+
+    // When:
+    for (int i = 0; i < 200; ++i) {
+      try (final Client client = new Client()) {
+        assertEquals("0", client.eval("(define session" + i + " " + i + ")"));
+        assertEquals(";; Error: java.lang.IllegalStateException: Undefined symbol unknown" + i,
+            client.eval("(inc unknown" + i + ")"));
+      }
+    }
+
+    // Then:
+    assertEquals(sharedSymbols, GlobalLocation.SHARED.size());
+  }
+
+  @Test
+  public void shouldLimitGlobalsOfSession() throws Exception {
+    // Given:
+    server.setMaxGlobals(5); // 3 built-ins
+
+    try (final Client client = new Client()) {
+      // When:
+      assertEquals("0", client.eval("(define a 1)"));
+      assertEquals("0", client.eval("(define b 2)"));
+      final String error = client.eval("(define c 3)");
+
+      // Then:
+      assertEquals(";; Syntax error: Too many global symbols, the limit is 5", error);
+      assertEquals("3", client.eval("(inc b)"));
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void shouldInterruptLongEvaluationAndKeepSession() throws Exception {
+    // Given:
+    server.setRequestTimeout(200L);
+
+    try (final Client client = new Client()) {
+      client.eval("(define zero (lambda (s) (lambda (z) z)))");
+      client.eval("(define succ (lambda (n) (lambda (s) (lambda (z) (s ((n s) z))))))");
+      client.eval("(define n9 (succ (succ (succ (succ (succ (succ (succ (succ (succ zero))))))))))");
+
+      // When:
+      final String error = client.eval("(((n9 n9) (lambda (x) (((n9 n9) (lambda (y) (inc y))) x))) 0)");
+
+      // Then:
+      assertEquals(";; Error: evaluation has taken longer than 200 ms and has been interrupted", error);
+      assertEquals("1", client.eval("(inc 0)"));
+    }
+  }
+
+  @Test
+  public void shouldEndSessionOnTooLongExpression() throws Exception {
+    // Given:
+    server.setMaxExpressionLength(64);
+
+    try (final Client client = new Client()) {
+      // When:
+      final StringBuilder unclosed = new StringBuilder("(");
+      for (int i = 0; i < 100; ++i) { unclosed.append("(inc "); }
+      final String error = client.eval(unclosed.toString());
+
+      // Then:
+      assertEquals(";; Syntax error: expression at line 1 is longer than 64 characters", error);
+      assertNull(client.in.readLine()); // closed
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private final class Client implements AutoCloseable {
+    private final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+    private final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+        StandardCharsets.UTF_8));
+    private final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+    Client() throws IOException {}
+
+    String eval(String expression) throws IOException {
+      out.write(expression + "\n");
+      out.flush();
+      return in.readLine();
+    }
+
+    @Override
+    public void close() throws IOException { socket.close(); }
+  }
+}
@@ -0,0 +1,162 @@
+package t34;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link Snapshot}.
+ */
+public class SnapshotTest {
+  // globals of every kind a snapshot keeps
+  private static final String[] PRELUDE = Corpus.with(Corpus.PRELUDE,
+      "(define n6 ((add n3) n3))",
+      "(define plus2 (twice inc))",
+      "(define seven 7)",
+      "(define increment inc)");
+
+  private static final String[] CORPUS = Corpus.with(Corpus.EXPRESSIONS,
+      "((n6 inc) 0)",
+      "(plus2 seven)",
+      "(increment ((((add n3) n6) inc) 0))",
+      "(((lambda (a) (lambda (b) (a (dec b)))) plus2) seven)");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void keepClasses() {
+    Snapshot.setKeepClasses(true);
+  }
+
+  @After
+  public void restore() {
+    Snapshot.setKeepClasses(false);
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldRestoreInterpretedGlobals() throws Exception {
+    shouldEvaluateAsDefinitions(false, 100);
+  }
+
+  @Test
+  public void shouldRestoreCompiledGlobals() throws Exception {
+    shouldEvaluateAsDefinitions(false, 0);
+  }
+
+  @Test
+  public void shouldRestoreChurchNumerals() throws Exception {
+    shouldEvaluateAsDefinitions(true, 0);
+  }
+
+  @Test
+  public void shouldKeepGlobalRedefinedBeforeFirstUse() throws Exception {
+    // Given:
+    final Path file = folder.getRoot().toPath().resolve("prelude.t34s");
+    define(false, 0);
+    Snapshot.write(Main.ENV, file);
+    Main.ENV = new Main.Env();
+    Snapshot.load(file).bind(Main.ENV);
+    final Evaluator evaluator = new Evaluator();
+
+    // When:
+    evaluator.eval(Corpus.parse(evaluator, "(define plus2 (lambda (x) (inc (inc (inc x)))))"));
+
+    // Then:
+    assertEquals("10", evaluator.eval(Corpus.parse(evaluator, "(plus2 seven)")).toString());
+    assertEquals("10", evaluator.eval(Corpus.parse(evaluator, "(plus2 seven)")).toString());
+  }
+
+  @Test
+  public void shouldNotKeepClassesUnlessRequested() throws Exception {
+    // Given:
+    Snapshot.setKeepClasses(false);
+    Main.ENV = new Main.Env();
+    final Evaluator evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0);
+    evaluator.eval(Corpus.parse(evaluator, "(define unkept (lambda (unkept) (dec (inc unkept))))"));
+
+    // When:
+    try {
+      Snapshot.write(Main.ENV, folder.getRoot().toPath().resolve("unkept.t34s"));
+      fail("Snapshot has been written without the class bytes");
+    } catch (IllegalStateException e) {
+      // Then:
+      assertTrue(e.getMessage(), e.getMessage().endsWith("are not kept, see setKeepClasses"));
+    }
+  }
+
+  @Test
+  public void shouldRejectDamagedArchive() throws Exception {
+    // Given:
+    final Path file = folder.getRoot().toPath().resolve("prelude.t34s");
+    define(false, 0);
+    Snapshot.write(Main.ENV, file);
+    final byte[] bytes = Files.readAllBytes(file);
+    final Path truncated = folder.getRoot().toPath().resolve("truncated.t34s");
+    Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 3));
+    final Path foreign = folder.getRoot().toPath().resolve("foreign.t34s");
+    bytes[8] ^= 1; // within the compiler digest
+    Files.write(foreign, bytes);
+
+    for (final Path damaged : Arrays.asList(truncated, foreign)) {
+      // When:
+      try {
+        Snapshot.load(damaged);
+        fail("Damaged archive has been loaded: " + damaged);
+      } catch (IOException e) {
+        // Then:
+        assertTrue(e.getMessage().length() > 0);
+      }
+    }
+  }
+
+  //
+  // Private
+  //
+
+  private void shouldEvaluateAsDefinitions(boolean churchNumerals, int compileThreshold) throws Exception {
+    // Given:
+    final Path file = folder.getRoot().toPath().resolve("prelude.t34s");
+    final List<String> expected = evaluate(define(churchNumerals, compileThreshold));
+    final int written = Snapshot.write(Main.ENV, file);
+
+    // When:
+    Main.ENV = new Main.Env();
+    final Snapshot snapshot = Snapshot.load(file);
+    snapshot.bind(Main.ENV);
+    final Evaluator evaluator = new Evaluator();
+    evaluator.setChurchNumerals(churchNumerals);
+
+    // Then:
+    assertEquals(PRELUDE.length, written);
+    assertEquals(PRELUDE.length, snapshot.size());
+    assertEquals(expected, evaluate(evaluator));
+  }
+
+  private static Evaluator define(boolean churchNumerals, int compileThreshold) throws Exception {
+    Main.ENV = new Main.Env();
+    final Evaluator evaluator = new Evaluator();
+    evaluator.setChurchNumerals(churchNumerals);
+    evaluator.setCompileThreshold(compileThreshold);
+    Corpus.defineAll(evaluator, PRELUDE);
+    return evaluator;
+  }
+
+  private static List<String> evaluate(Evaluator evaluator) throws Exception {
+    return Corpus.evalAll(evaluator, CORPUS);
+  }
+}
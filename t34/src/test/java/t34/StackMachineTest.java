@@ -0,0 +1,85 @@
+package t34;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StackMachine}.
+ */
+public class StackMachineTest {
+  private static final String[] CORPUS = Corpus.with(Corpus.EXPRESSIONS, "((k 1) (lambda (y) y))");
+
+  private static final int DEPTH = 1000000; // far beyond the thread stack of the direct mode
+
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    evaluator = new Evaluator();
+    evaluator.setChurchNumerals(false); // numerals as closures, so that applying them nests
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldGiveSameResultsAsDirectMode() throws Exception {
+    final List<String> direct = evalCorpus(false);
+    assertEquals(direct, evalCorpus(true));
+  }
+
+  @Test
+  public void shouldApplyDeepNumeral() throws Exception {
+    // Given:
+    evaluator.setStackSafe(true);
+    defineAll();
+    final Main.Atom succ = evaluator.eval(parse("succ"));
+    Main.Atom numeral = evaluator.eval(parse("zero"));
+    for (int i = 0; i < DEPTH; ++i) { numeral = succ.fn(numeral); }
+
+    // When:
+    final Main.Atom result = numeral.fn(Inc.INSTANCE).fn(Int.valueOf(0));
+
+    // Then:
+    assertEquals(Int.valueOf(DEPTH), result);
+  }
+
+  @Test
+  public void shouldRunTailCallsInPlace() throws Exception {
+    // Given:
+    evaluator.setStackSafe(true);
+    defineAll();
+    final Main.Atom wrap = evaluator.eval(parse("(lambda (f) (lambda (x) (f x)))"));
+    Main.Atom chain = evaluator.eval(parse("(lambda (x) (inc x))"));
+    for (int i = 0; i < DEPTH; ++i) { chain = wrap.fn(chain); }
+
+    // When:
+    final Main.Atom result = chain.fn(Int.valueOf(41));
+
+    // Then:
+    assertTrue(chain instanceof MachineFn);
+    assertEquals(Int.valueOf(42), result);
+  }
+
+  //
+  // Private
+  //
+
+  private List<String> evalCorpus(boolean stackSafe) throws Exception {
+    init();
+    evaluator.setStackSafe(stackSafe);
+    defineAll();
+    return Corpus.evalAll(evaluator, CORPUS);
+  }
+
+  private void defineAll() throws Exception {
+    Corpus.defineAll(evaluator, Corpus.PRELUDE);
+  }
+
+  private PrimitiveAtom parse(String input) {
+    return Corpus.parse(evaluator, input);
+  }
+}
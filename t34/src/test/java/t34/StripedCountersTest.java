@@ -0,0 +1,48 @@
+package t34;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link StripedCounters}.
+ */
+public class StripedCountersTest {
+  @Test
+  public void shouldNotLoseConcurrentIncrements() throws Exception {
+    // Given:
+    final StripedCounters counters = new StripedCounters(2);
+    final int threadCount = 64; // more than the stripes, so that threads share them
+    final int increments = 10000;
+    final List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < threadCount; ++i) {
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < increments; ++j) { counters.increment(1); }
+      }));
+    }
+
+    // When:
+    for (final Thread thread : threads) { thread.start(); }
+    for (final Thread thread : threads) { thread.join(); }
+
+    // Then:
+    assertEquals(threadCount * increments, counters.sum(1));
+    assertEquals(0, counters.sum(0));
+  }
+
+  @Test
+  public void shouldReset() {
+    // Given:
+    final StripedCounters counters = new StripedCounters(1);
+    counters.increment(0);
+
+    // When:
+    counters.reset();
+
+    // Then:
+    assertEquals(0, counters.sum(0));
+  }
+}
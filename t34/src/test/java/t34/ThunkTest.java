@@ -0,0 +1,204 @@
+package t34;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link Thunk} and the call-by-need mode of {@link Evaluator}.
+ */
+public class ThunkTest {
+  // arguments that are calls, passed as thunks in the lazy mode
+  private static final String[] CORPUS = Corpus.with(Corpus.EXPRESSIONS,
+      "((lambda (a) (dec a)) (inc 5))",
+      "(((k (lambda (x) (inc x))) (inc 7)) (inc 40))",
+      "((lambda (x) x) (inc 1))");
+
+  private final AtomicInteger calls = new AtomicInteger();
+  private final Main.Atom counted = new Main.Fn() { // counts calls and returns the argument
+    public Main.Atom fn(Main.Atom arg) {
+      calls.incrementAndGet();
+      return arg;
+    }
+  };
+
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    evaluator = new Evaluator();
+    evaluator.setChurchNumerals(false);
+    Main.ENV = new Main.Env();
+    Main.ENV.define(GlobalLocation.of("counted").getSlot(), counted);
+  }
+
+  @Test
+  public void shouldGiveSameResultsAsStrictMode() throws Exception {
+    for (final int compileThreshold : new int[] { 0, Integer.MAX_VALUE }) {
+      final List<String> strict = evalCorpus(false, compileThreshold);
+      assertEquals(strict, evalCorpus(true, compileThreshold));
+    }
+  }
+
+  @Test
+  public void shouldNotEvaluateUnusedArgument() throws Exception {
+    // Given:
+    evaluator.setLazy(true);
+    defineAll();
+
+    // When:
+    final Main.Atom result = evaluator.eval(parse("((k 1) (counted (undefined 0)))"));
+
+    // Then:
+    assertEquals(Int.valueOf(1), result);
+    assertEquals(0, calls.get());
+  }
+
+  @Test
+  public void shouldEvaluateArgumentOnce() throws Exception {
+    for (final int compileThreshold : new int[] { 0, Integer.MAX_VALUE }) {
+      // Given:
+      init();
+      calls.set(0);
+      evaluator.setLazy(true);
+      evaluator.setCompileThreshold(compileThreshold);
+
+      // When:
+      final Main.Atom result = evaluator.eval(parse("((lambda (f) (f (f (f 0)))) (counted inc))"));
+
+      // Then:
+      assertEquals(Int.valueOf(3), result);
+      assertEquals(1, calls.get());
+    }
+  }
+
+  @Test
+  public void shouldCacheValue() {
+    // Given:
+    final Thunk thunk = new Thunk(new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) { return counted.fn(Int.valueOf(42)); }
+    });
+    assertFalse(thunk.isForced());
+
+    // When:
+    final int first = thunk.toInt();
+    final int second = thunk.toInt();
+
+    // Then:
+    assertTrue(thunk.isForced());
+    assertEquals(42, first);
+    assertEquals(42, second);
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void shouldDetectSelfDependency() {
+    // Given:
+    final Thunk[] self = new Thunk[1];
+    self[0] = new Thunk(new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) { return self[0].force(); }
+    });
+
+    // When:
+    try {
+      self[0].force();
+      fail("self-dependent thunk has no value");
+    } catch (IllegalStateException e) {
+      // Then:
+      assertFalse(self[0].isForced());
+    }
+  }
+
+  @Test
+  public void shouldEvaluateOnceOutsideOfMonitor() throws Exception {
+    // Given:
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final boolean[] locked = new boolean[1];
+    final Thunk[] thunk = new Thunk[1];
+    thunk[0] = new Thunk(new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) {
+        locked[0] = Thread.holdsLock(thunk[0]);
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return counted.fn(Int.valueOf(42));
+      }
+    });
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) { results.add(executor.submit(thunk[0]::toInt)); }
+
+      // When:
+      started.await();
+      synchronized (thunk[0]) { release.countDown(); } // the evaluation doesn't need the monitor to complete
+
+      // Then:
+      for (final Future<Integer> result : results) { assertEquals(Integer.valueOf(42), result.get()); }
+      assertFalse(locked[0]);
+      assertEquals(1, calls.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldRetryFailedEvaluation() {
+    // Given:
+    final Thunk thunk = new Thunk(new Main.Fn() {
+      public Main.Atom fn(Main.Atom arg) {
+        if (calls.incrementAndGet() == 1) { throw new IllegalArgumentException("first"); }
+        return Int.valueOf(7);
+      }
+    });
+
+    // When:
+    try {
+      thunk.force();
+      fail("failure is hidden");
+    } catch (IllegalArgumentException e) {
+      assertFalse(thunk.isForced());
+    }
+    final int value = thunk.toInt();
+
+    // Then:
+    assertEquals(7, value);
+    assertEquals(2, calls.get());
+  }
+
+  //
+  // Private
+  //
+
+  private List<String> evalCorpus(boolean lazy, int compileThreshold) throws Exception {
+    init();
+    evaluator.setLazy(lazy);
+    evaluator.setCompileThreshold(compileThreshold);
+    defineAll();
+    return Corpus.evalAll(evaluator, CORPUS);
+  }
+
+  private void defineAll() throws Exception {
+    Corpus.defineAll(evaluator, Corpus.PRELUDE);
+  }
+
+  private PrimitiveAtom parse(String input) {
+    return Corpus.parse(evaluator, input);
+  }
+}
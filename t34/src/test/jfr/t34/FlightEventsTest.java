@@ -0,0 +1,109 @@
+package t34;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link FlightEvents}.
+ */
+public class FlightEventsTest {
+  private static final String[] EVENTS = { "t34.Parse", "t34.ClassDefinition", "t34.Define", "t34.Eval" };
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Evaluator evaluator;
+
+  @Before
+  public void init() {
+    Main.ENV = new Main.Env();
+    Evaluator.CLASS_CACHE.clear();
+    evaluator = new Evaluator();
+    evaluator.setCompileThreshold(0);
+  }
+
+  @After
+  public void disable() {
+    FlightEvents.setEnabled(false);
+    Main.ENV = new Main.Env();
+  }
+
+  @Test
+  public void shouldRecordPhasesOfEvaluation() throws Exception {
+    // Given:
+    FlightEvents.setEnabled(true);
+
+    // When:
+    final List<RecordedEvent> events = record();
+
+    // Then:
+    assertTrue(events.toString(), contains(events, "t34.Parse", "expression", "((twice inc) 40)"));
+    assertTrue(events.toString(), contains(events, "t34.ClassDefinition", "source", "(lambda (x) (f (f x)))"));
+    assertTrue(events.toString(), contains(events, "t34.ClassDefinition", "position", "<input>:1:27"));
+    assertTrue(events.toString(), contains(events, "t34.Define", "symbol", "twice"));
+    assertTrue(events.toString(), contains(events, "t34.Eval", "expression", "((twice inc) 40)"));
+    for (final RecordedEvent event : events) {
+      if (event.getEventType().getName().equals("t34.ClassDefinition")) {
+        assertTrue(event.getInt("classSize") > 0);
+      }
+    }
+  }
+
+  @Test
+  public void shouldRecordNothingWhenDisabled() throws Exception {
+    // Given:
+    FlightEvents.setEnabled(false);
+
+    // When:
+    final List<RecordedEvent> events = record();
+
+    // Then:
+    assertEquals(0, events.size());
+  }
+
+  //
+  // Private
+  //
+
+  private List<RecordedEvent> record() throws Exception {
+    final Path file = folder.newFile("t34.jfr").toPath();
+    try (final Recording recording = new Recording()) {
+      for (final String event : EVENTS) { recording.enable(event).withThreshold(Duration.ZERO); }
+      recording.start();
+      eval("(define twice (lambda (f) (lambda (x) (f (f x)))))");
+      assertEquals("42", eval("((twice inc) 40)").toString());
+      recording.stop();
+      recording.dump(file);
+    }
+    final List<RecordedEvent> result = new ArrayList<>();
+    for (final RecordedEvent event : RecordingFile.readAllEvents(file)) {
+      if (event.getEventType().getName().startsWith("t34.")) { result.add(event); }
+    }
+    return result;
+  }
+
+  private Main.Atom eval(String input) throws Exception {
+    return evaluator.eval(AstNodeReaderTest.createReader(input).read(evaluator.scope));
+  }
+
+  private static boolean contains(List<RecordedEvent> events, String name, String field, String value) {
+    for (final RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name) && value.equals(event.getValue(field))) { return true; }
+    }
+    return false;
+  }
+}